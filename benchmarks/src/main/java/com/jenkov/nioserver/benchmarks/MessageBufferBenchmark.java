@@ -0,0 +1,78 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageBuffer.getMessage() and expandMessage() - each operation returns the message again, so the buffer never
+ * runs out of blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBufferBenchmark {
+
+    @Param({"heap", "direct"})
+    public String bufferType;
+
+    private MessageBuffer messageBuffer = null;
+    private byte[]        data          = new byte[100];
+
+    @Setup
+    public void setup() {
+        this.messageBuffer = "direct".equals(this.bufferType) ? new MessageBuffer(true) : new MessageBuffer();
+    }
+
+    @Benchmark
+    public Message getMessage() {
+        Message message = this.messageBuffer.getMessage();
+        message.release();
+        return message;
+    }
+
+    @Benchmark
+    public Message getMessageAndWrite() {
+        Message message = this.messageBuffer.getMessage();
+        message.writeToMessage(this.data);
+        message.release();
+        return message;
+    }
+
+    /** 4KB -> 8KB block, copying 100 bytes of data. */
+    @Benchmark
+    public Message expandMessage() {
+        Message message = this.messageBuffer.getMessage();
+        message.writeToMessage(this.data);
+        this.messageBuffer.expandMessage(message);
+        message.release();
+        return message;
+    }
+
+    /** 4KB -> 8KB -> 16KB block. */
+    @Benchmark
+    public Message expandMessageTwice() {
+        Message message = this.messageBuffer.getMessage();
+        message.writeToMessage(this.data);
+        this.messageBuffer.expandMessage(message);
+        this.messageBuffer.expandMessage(message);
+        message.release();
+        return message;
+    }
+
+}
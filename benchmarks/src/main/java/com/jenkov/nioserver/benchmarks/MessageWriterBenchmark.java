@@ -0,0 +1,94 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.MessageWriter;
+import com.jenkov.nioserver.Socket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageWriter.write() over a loopback connection: enqueue messageCount messages of messageSize bytes, write them
+ * with the MessageWriter until its queue is empty, and read them back on the client side.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageWriterBenchmark {
+
+    @Param({"1", "16"})
+    public int messageCount;
+
+    @Param({"128", "4096"})
+    public int messageSize;
+
+    private ServerSocketChannel serverChannel = null;
+    private SocketChannel       clientChannel = null;
+    private Socket              socket        = null;
+
+    private MessageBuffer messageBuffer = new MessageBuffer();
+    private MessageWriter messageWriter = new MessageWriter();
+    private byte[]        data          = null;
+    private ByteBuffer    readBuffer    = null;
+
+    @Setup
+    public void setup() throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+        this.clientChannel = SocketChannel.open(this.serverChannel.getLocalAddress());
+        SocketChannel peerChannel = this.serverChannel.accept();
+        peerChannel.configureBlocking(false);
+        this.socket = new Socket(peerChannel);
+
+        this.data       = new byte[this.messageSize];
+        this.readBuffer = ByteBuffer.allocateDirect(this.messageCount * this.messageSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.clientChannel.close();
+        this.socket.socketChannel.close();
+        this.serverChannel.close();
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        for(int i=0; i<this.messageCount; i++){
+            Message message = this.messageBuffer.getMessage();
+            message.writeToMessage(this.data);
+            this.messageWriter.enqueue(message);
+        }
+
+        this.readBuffer.clear();
+        while(!this.messageWriter.isEmpty()){
+            this.messageWriter.write(this.socket);
+            this.clientChannel.read(this.readBuffer);
+        }
+        while(this.readBuffer.hasRemaining()){
+            this.clientChannel.read(this.readBuffer);
+        }
+        return this.readBuffer.position();
+    }
+
+}
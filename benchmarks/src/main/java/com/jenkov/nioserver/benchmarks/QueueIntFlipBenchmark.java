@@ -0,0 +1,74 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.QueueIntFlip;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QueueIntFlip single and bulk put / take. The queue is half full when the measurement starts, so put and take
+ * both wrap around ("flip") regularly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueIntFlipBenchmark {
+
+    private static final int CAPACITY = 1024;
+
+    @Param({"16", "256"})
+    public int batchSize;
+
+    private QueueIntFlip queue = null;
+    private int[]        batch = null;
+
+    @Setup
+    public void setup() {
+        this.queue = new QueueIntFlip(CAPACITY);
+        for(int i=0; i<CAPACITY / 2; i++){
+            this.queue.put(i);
+        }
+        this.batch = new int[this.batchSize];
+    }
+
+    /** One put followed by one take. */
+    @Benchmark
+    public int putTakeSingle() {
+        this.queue.put(42);
+        return this.queue.take();
+    }
+
+    /** batchSize single puts followed by batchSize single takes - compare with putTakeBulk. */
+    @Benchmark
+    public int putTakeSingleBatch() {
+        int sum = 0;
+        for(int i=0; i<this.batchSize; i++){
+            this.queue.put(i);
+        }
+        for(int i=0; i<this.batchSize; i++){
+            sum += this.queue.take();
+        }
+        return sum;
+    }
+
+    /** One bulk put and one bulk take of batchSize elements. */
+    @Benchmark
+    public int putTakeBulk() {
+        this.queue.put(this.batch, this.batchSize);
+        return this.queue.take(this.batch, this.batchSize);
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.jenkov.nioserver.benchmarks;
+
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.ServerConfig;
+import com.jenkov.nioserver.example.Main;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The full server loop: a Server running the example.Main HTTP responder, driven over loopback by a blocking client
+ * per benchmark thread. One operation sends pipelineDepth requests in one write and reads all responses back -
+ * pipelineDepth 1 is a plain request / response round trip.
+ *
+ * Run with -t to drive the server from several client threads at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerLoopbackBenchmark {
+
+    private static final int    PORT    = 9985;
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"selector", "threadPerConnection"})
+    public String serverMode;
+
+    private Server server = null;
+
+    @Setup
+    public void startServer() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.serverMode = "threadPerConnection".equals(this.serverMode)
+                ? ServerConfig.SERVER_MODE_THREAD_PER_CONNECTION
+                : ServerConfig.SERVER_MODE_SELECTOR;
+
+        this.server = new Server(PORT, new HttpMessageReaderFactory(), Main.createMessageProcessor(), config);
+        this.server.start();
+    }
+
+    @TearDown
+    public void stopServer() {
+        this.server.stop();
+    }
+
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        @Param({"1", "16"})
+        public int pipelineDepth;
+
+        private SocketChannel channel   = null;
+        private ByteBuffer    requests  = null;
+        private ByteBuffer    responses = null;
+
+        // takes the ServerLoopbackBenchmark state, so JMH starts the server before connecting.
+        @Setup
+        public void connect(ServerLoopbackBenchmark benchmark) throws Exception {
+            this.channel = connectWithRetry();
+            this.channel.socket().setTcpNoDelay(true);
+
+            this.requests = ByteBuffer.allocateDirect(REQUEST.length * this.pipelineDepth);
+            for(int i=0; i<this.pipelineDepth; i++){
+                this.requests.put(REQUEST);
+            }
+            int responseLength = Main.HTTP_RESPONSE.getBytes(StandardCharsets.UTF_8).length;
+            this.responses = ByteBuffer.allocateDirect(responseLength * this.pipelineDepth);
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            this.channel.close();
+        }
+
+        private static SocketChannel connectWithRetry() throws Exception {
+            // the accepter thread binds the port asynchronously after Server.start().
+            for(int attempt = 0; ; attempt++){
+                try {
+                    return SocketChannel.open(new InetSocketAddress("localhost", PORT));
+                } catch(ConnectException e){
+                    if(attempt == 50){
+                        throw e;
+                    }
+                    Thread.sleep(20);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int requestResponse(Client client) throws IOException {
+        client.requests.clear();
+        while(client.requests.hasRemaining()){
+            client.channel.write(client.requests);
+        }
+
+        client.responses.clear();
+        while(client.responses.hasRemaining()){
+            if(client.channel.read(client.responses) == -1){
+                throw new IOException("Server closed the connection");
+            }
+        }
+        return client.responses.position();
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.jenkov.nioserver;
+
+/**
+ * Guesses how many bytes the next read from a socket brings, from the sizes of the recent reads - so the first block
+ * of the next message can be taken large enough, instead of starting with the smallest block and copying the message
+ * into larger blocks as it grows. The guess is one of the sizes minSize, 2 x minSize, 4 x minSize ... maxSize.
+ *
+ * Grows fast - two steps as soon as a read fills the guess - and shrinks slowly - one step after two reads in a row
+ * which would have fit into the next smaller size - like Netty's AdaptiveRecvByteBufAllocator.
+ *
+ * Not thread safe - one per socket, used by the thread reading from the socket.
+ */
+public class AdaptiveReadSize {
+
+    private static final int INDEX_INCREMENT = 2;
+    private static final int INDEX_DECREMENT = 1;
+
+    private int     minSize      = 0;
+    private int     maxIndex     = 0;
+    private int     index        = 0;
+    private boolean decreaseNow  = false;
+
+    /**
+     * @param minSize The smallest guess - and the first one.
+     * @param maxSize The largest guess - rounded down to minSize times a power of two.
+     */
+    public AdaptiveReadSize(int minSize, int maxSize) {
+        this.minSize = Math.max(1, minSize);
+        while(((long) this.minSize << (this.maxIndex + 1)) <= maxSize){
+            this.maxIndex++;
+        }
+    }
+
+    /**
+     * @return The number of bytes the next read is expected to bring.
+     */
+    public int getReadSize() {
+        return this.minSize << this.index;
+    }
+
+    /**
+     * Adjusts the guess to the number of bytes the last read brought.
+     */
+    public void record(int bytesRead) {
+        if(bytesRead <= 0){
+            return;
+        }
+        if(bytesRead <= sizeAt(this.index - INDEX_DECREMENT)){
+            if(this.decreaseNow){
+                this.index       = Math.max(0, this.index - INDEX_DECREMENT);
+                this.decreaseNow = false;
+            } else {
+                this.decreaseNow = true;
+            }
+        } else if(bytesRead >= getReadSize()){
+            this.index       = Math.min(this.maxIndex, this.index + INDEX_INCREMENT);
+            this.decreaseNow = false;
+        }
+    }
+
+    private int sizeAt(int index) {
+        return index < 0 ? 0 : this.minSize << index;
+    }
+
+}
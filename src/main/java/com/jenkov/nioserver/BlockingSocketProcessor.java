@@ -0,0 +1,144 @@
+package com.jenkov.nioserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The thread per connection alternative to the SocketProcessor. Every socket gets its own thread - a virtual thread
+ * on Java 21+ - which reads from the socket in blocking mode, calls the IMessageProcessor and writes the responses
+ * back, one message at a time.
+ *
+ * It uses the same IMessageReader framing and the same IMessageProcessor / WriteProxy API as the SocketProcessor,
+ * so applications can switch between the two modes via ServerConfig.serverMode without changes. The one
+ * difference: responses must be enqueued from within IMessageProcessor.process(), because they are written by the
+ * socket's own thread when process() returns.
+ *
+ * Streamed bodies need no flow control here - the socket's thread does not read while the message processor runs.
+ * Body chunks kept by an IStreamingMessageProcessor do not pause reading though.
+ *
+ * The socket is closed after the response to a "Connection: close" request. The idle, header and write timeouts
+ * of ServerConfig are not applied in this mode.
+ *
+ * All sockets share the read and write MessageBuffer - which is synchronized.
+ */
+public class BlockingSocketProcessor {
+
+    // per connection buffer the socket thread waits for the next request in - see HttpMessageReader.read().
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+    private MessageBuffer         readMessageBuffer    = null;
+    private MessageBuffer         writeMessageBuffer   = null;
+    private IMessageReaderFactory messageReaderFactory = null;
+    private IMessageProcessor     messageProcessor     = null;
+    private ExecutorService       socketExecutor       = null;
+    private int                   writeQueueCapacity   = 128;
+
+    private Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private AtomicLong nextSocketId = new AtomicLong(16 * 1024); //start incoming socket ids from 16K - reserve bottom ids for pre-defined sockets (servers).
+
+    public BlockingSocketProcessor(MessageBuffer readMessageBuffer, MessageBuffer writeMessageBuffer, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor, ExecutorService socketExecutor, ServerConfig config) {
+        this.readMessageBuffer    = readMessageBuffer;
+        this.writeMessageBuffer   = writeMessageBuffer;
+        this.messageReaderFactory = messageReaderFactory;
+        this.messageProcessor     = messageProcessor;
+        this.socketExecutor       = socketExecutor;
+        this.writeQueueCapacity   = config.writeQueueCapacity;
+    }
+
+    /**
+     * Starts a thread serving the socket. Called by the SocketAccepter.
+     */
+    public void addSocket(Socket socket) {
+        socket.socketId = this.nextSocketId.getAndIncrement();
+        this.sockets.add(socket);
+        this.socketExecutor.execute(() -> serve(socket));
+    }
+
+    /**
+     * Closes all sockets - which makes their threads return from blocking reads and writes and exit.
+     */
+    public void stop() {
+        for(Socket socket : this.sockets){
+            try {
+                socket.socketChannel.close();
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.socketChannel.configureBlocking(true);
+            socket.blocking = true;
+
+            socket.messageReader = this.messageReaderFactory.createMessageReader();
+            socket.messageReader.init(this.readMessageBuffer);
+            socket.messageWriter = new MessageWriter(this.writeQueueCapacity);
+
+            ByteBuffer readByteBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            Queue<Message> outboundMessages = new ArrayDeque<>();
+            WriteProxy writeProxy = new WriteProxy(this.writeMessageBuffer, outboundMessages);
+            writeProxy.socket = socket;
+
+            while(!socket.endOfStreamReached && !socket.closeRequested){
+                socket.messageReader.read(socket, readByteBuffer);
+
+                List<Message> fullMessages = socket.messageReader.getMessages();
+                for(int i=0; i<fullMessages.size(); i++){
+                    Message message = fullMessages.get(i);
+                    message.socketId = socket.socketId;
+                    if(IStreamingMessageProcessor.process(this.messageProcessor, message, writeProxy)){
+                        message.release();
+                    }
+                }
+                fullMessages.clear();
+
+                writeResponses(socket, outboundMessages);
+            }
+        } catch(IOException e){
+            // the client closed or reset the connection.
+        } finally {
+            close(socket);
+        }
+    }
+
+    private void writeResponses(Socket socket, Queue<Message> outboundMessages) throws IOException {
+        Message outMessage = outboundMessages.poll();
+        while(outMessage != null){
+            while(!socket.messageWriter.enqueue(outMessage)){
+                socket.messageWriter.write(socket); // e.g. many pipelined requests in one read - make room first.
+            }
+            outMessage = outboundMessages.poll();
+        }
+
+        // blocking writes - returns when everything has been written.
+        while(!socket.messageWriter.isEmpty()){
+            socket.messageWriter.write(socket);
+        }
+    }
+
+    private void close(Socket socket) {
+        this.sockets.remove(socket);
+        if(socket.messageReader != null){
+            socket.messageReader.dispose();
+        }
+        if(socket.messageWriter != null){
+            socket.messageWriter.dispose();
+        }
+        try {
+            socket.socketChannel.close();
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+}
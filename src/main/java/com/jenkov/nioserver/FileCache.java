@@ -0,0 +1,175 @@
+package com.jenkov.nioserver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps files open for file responses - see Message.setFile() - so serving a file does not open and close it for
+ * every request. Holds at most maxOpenFiles files, and closes the least recently used file when another one is
+ * opened. A file still being sent when it is evicted is closed once its last response has been released.
+ *
+ * A cached file is checked for changes at most every revalidateMillis, and reopened if it has changed.
+ *
+ * Thread safe - message processors on worker threads open files, the SocketProcessor releases them.
+ */
+public class FileCache {
+
+    private int  maxOpenFiles     = 256;
+    private long revalidateMillis = 1000;
+
+    private LinkedHashMap<String, OpenFile> openFiles = new LinkedHashMap<>(16, 0.75f, true); // in LRU order.
+
+    private long hits      = 0;
+    private long misses    = 0;
+    private long evictions = 0;
+
+    public FileCache() {
+    }
+
+    public FileCache(int maxOpenFiles, long revalidateMillis) {
+        this.maxOpenFiles     = Math.max(1, maxOpenFiles);
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    /**
+     * Returns the open file - from the cache, or opened now. The caller must call release() on it when done - which
+     * Message does when a message holding the file is released.
+     *
+     * @throws FileNotFoundException if there is no such file, or it is a directory.
+     */
+    public synchronized OpenFile open(File file) throws IOException {
+        String  path = file.getPath();
+        long    now  = System.currentTimeMillis();
+
+        OpenFile openFile = this.openFiles.get(path);
+        if(openFile != null && now - openFile.checkedTime >= this.revalidateMillis){
+            openFile.checkedTime = now;
+            if(file.lastModified() != openFile.lastModified || file.length() != openFile.size){
+                evict(openFile);
+                openFile = null;
+            }
+        }
+
+        if(openFile != null){
+            this.hits++;
+        } else {
+            this.misses++;
+            if(!file.isFile()){
+                throw new FileNotFoundException(path);
+            }
+            openFile = new OpenFile(this, path, FileChannel.open(file.toPath(), StandardOpenOption.READ), file.lastModified(), now);
+            this.openFiles.put(path, openFile);
+            evictLeastRecentlyUsed();
+        }
+
+        openFile.references++;
+        return openFile;
+    }
+
+    synchronized void release(OpenFile openFile) {
+        openFile.references--;
+        if(openFile.evicted && openFile.references == 0){
+            openFile.close();
+        }
+    }
+
+    /**
+     * Removes the file from the cache - e.g. because it has changed while being sent. The next open() opens it again.
+     */
+    synchronized void invalidate(OpenFile openFile) {
+        if(!openFile.evicted){
+            evict(openFile);
+        }
+    }
+
+    /**
+     * Closes all files not in use, and the files in use once they are released.
+     */
+    public synchronized void clear() {
+        for(OpenFile openFile : this.openFiles.values().toArray(new OpenFile[0])){
+            evict(openFile);
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Iterator<Map.Entry<String, OpenFile>> iterator = this.openFiles.entrySet().iterator();
+        while(this.openFiles.size() > this.maxOpenFiles && iterator.hasNext()){
+            OpenFile openFile = iterator.next().getValue();
+            iterator.remove();
+            markEvicted(openFile);
+        }
+    }
+
+    private void evict(OpenFile openFile) {
+        this.openFiles.remove(openFile.path);
+        markEvicted(openFile);
+    }
+
+    private void markEvicted(OpenFile openFile) {
+        openFile.evicted = true;
+        this.evictions++;
+        if(openFile.references == 0){
+            openFile.close();
+        }
+    }
+
+    public synchronized int  getOpenFileCount() { return this.openFiles.size(); }
+    public synchronized long getHits()          { return this.hits;      }
+    public synchronized long getMisses()        { return this.misses;    }
+    public synchronized long getEvictions()     { return this.evictions; }
+
+
+    /**
+     * A file kept open by a FileCache. Shared by all responses sending it - they read it with absolute positions.
+     */
+    public static class OpenFile {
+
+        public final String      path;
+        public final FileChannel channel;
+        public final long        size;
+
+        private FileCache cache        = null;
+        private long      lastModified = 0;
+        private long      checkedTime  = 0;
+        private int       references   = 0;
+        private boolean   evicted      = false;
+
+        OpenFile(FileCache cache, String path, FileChannel channel, long lastModified, long checkedTime) throws IOException {
+            this.cache        = cache;
+            this.path         = path;
+            this.channel      = channel;
+            this.size         = channel.size();
+            this.lastModified = lastModified;
+            this.checkedTime  = checkedTime;
+        }
+
+        /**
+         * Gives the file back to its cache. Called once per FileCache.open().
+         */
+        public void release() {
+            this.cache.release(this);
+        }
+
+        /**
+         * Removes the file from its cache, without waiting for the next revalidation. It is closed once released.
+         */
+        public void invalidate() {
+            this.cache.invalidate(this);
+        }
+
+        private void close() {
+            try {
+                this.channel.close();
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
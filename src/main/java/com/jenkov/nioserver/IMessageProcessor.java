@@ -5,6 +5,11 @@ package com.jenkov.nioserver;
  */
 public interface IMessageProcessor {
 
+    /**
+     * Processes an incoming message. The message is released back to the read MessageBuffer when this method
+     * returns, so a processor must copy out any data it wants to keep. Response messages obtained from
+     * writeProxy.getMessage() are released by the MessageWriter once they have been written.
+     */
     public void process(Message message, WriteProxy writeProxy);
 
 }
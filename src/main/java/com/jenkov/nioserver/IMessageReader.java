@@ -15,6 +15,19 @@ public interface IMessageReader {
 
     public List<Message> getMessages();
 
+    /**
+     * @return true while the reader has part of the headers of a request, but not all of them - for the header
+     *         timeout of the SocketProcessor.
+     */
+    public default boolean isReadingHeaders() {
+        return false;
+    }
+
+    /**
+     * Called when the socket the reader belongs to is closed. Releases any partially read message.
+     */
+    public default void dispose() {
+    }
 
 
 }
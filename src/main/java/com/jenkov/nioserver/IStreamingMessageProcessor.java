@@ -0,0 +1,54 @@
+package com.jenkov.nioserver;
+
+/**
+ * A message processor which gets large messages in parts, as they are read from the socket, instead of as one
+ * message once the whole message has been read - so uploads can be stored or proxied with constant memory.
+ *
+ * Which messages are streamed is decided by the message reader - see HttpMessageReaderFactory(int). Messages which
+ * are not streamed still go to process().
+ *
+ * Flow control: a socket has at most ServerConfig.maxBodyChunksInFlight body chunks being processed, or kept by the
+ * processor, at a time. Reading from the socket stops while it has that many, and continues once chunks are released.
+ */
+public interface IStreamingMessageProcessor extends IMessageProcessor {
+
+    /**
+     * Processes the head of a streamed message - for HTTP the request line and the headers, with contentLength set
+     * to the length of the whole body. The body follows in processBody() calls. The head is released when this
+     * method returns, like the messages passed to process().
+     */
+    public void processHead(Message head, WriteProxy writeProxy);
+
+    /**
+     * Processes a chunk of the body of the message whose head was passed to processHead() before.
+     *
+     * @param last true for the last chunk of the body.
+     * @return true if the processor is done with the chunk - it is released then. false if the processor keeps the
+     *         chunk, e.g. until it has been forwarded. It must hand the chunk back via writeProxy.release() later.
+     */
+    public boolean processBody(Message chunk, boolean last, WriteProxy writeProxy);
+
+
+    /**
+     * Passes the message to the method of the processor matching message.part.
+     *
+     * @return false if the processor keeps the message - it must not be released then.
+     */
+    public static boolean process(IMessageProcessor messageProcessor, Message message, WriteProxy writeProxy) {
+        if(message.part == Message.PART_WHOLE){
+            messageProcessor.process(message, writeProxy);
+            return true;
+        }
+        if(!(messageProcessor instanceof IStreamingMessageProcessor)){
+            throw new IllegalStateException("Streamed message, but the message processor is no IStreamingMessageProcessor");
+        }
+
+        IStreamingMessageProcessor streamingMessageProcessor = (IStreamingMessageProcessor) messageProcessor;
+        if(message.part == Message.PART_HEAD){
+            streamingMessageProcessor.processHead(message, writeProxy);
+            return true;
+        }
+        return streamingMessageProcessor.processBody(message, message.part == Message.PART_LAST_BODY, writeProxy);
+    }
+
+}
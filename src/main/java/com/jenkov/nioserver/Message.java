@@ -3,49 +3,109 @@ package com.jenkov.nioserver;
 import java.nio.ByteBuffer;
 
 /**
+ * A message is a block of a MessageBuffer - sharedBuffer from offset to offset + capacity - of which the first
+ * length bytes are used.
+ *
+ * Once a message has outgrown MessageBufferConfig.chainBlockSize it is no longer copied to a larger block when it
+ * grows, but gets more blocks appended - a chained message. Its length then counts the bytes in all blocks, and
+ * indexes from offset + capacity on continue in the chained blocks, as if the blocks were one buffer. Use
+ * getByte(), getDataByteBuffers() or writeToByteBuffer() to read a chained message - sharedBuffer only holds the
+ * first capacity bytes of it.
+ *
+ * A message to write may also carry a section of a file, set via setFile(). The MessageWriter sends the file
+ * section after the data of the message, straight from the file to the socket.
+ *
  * Created by jjenkov on 16-10-2015.
  */
 public class Message {
 
+    // what part of a message this is - see IStreamingMessageProcessor.
+    public static final int PART_WHOLE     = 0; // a complete message.
+    public static final int PART_HEAD      = 1; // the head of a message whose body follows in PART_BODY messages.
+    public static final int PART_BODY      = 2; // a chunk of a streamed body.
+    public static final int PART_LAST_BODY = 3; // the last chunk of a streamed body.
+
     private MessageBuffer messageBuffer = null;
 
     public long socketId = 0; // the id of source socket or destination socket, depending on whether is going in or out.
 
-    public byte[] sharedArray = null;
-    public int    offset      = 0; //offset into sharedArray where this message data starts.
-    public int    capacity    = 0; //the size of the section in the sharedArray allocated to this message.
-    public int    length      = 0; //the number of bytes used of the allocated section.
+    public byte[]     sharedArray  = null; //null if the MessageBuffer is not heap backed - use sharedBuffer then.
+    public ByteBuffer sharedBuffer = null; //the buffer holding the message data. Only accessed with absolute indexes.
+    public int        offset       = 0; //offset into sharedArray where this message data starts.
+    public int        capacity     = 0; //the size of the section in the sharedArray allocated to this message.
+    public int        length       = 0; //the number of bytes used - of the allocated section and the chained blocks.
 
     public Object metaData    = null;
+    public int    part        = PART_WHOLE; //set by the message reader. Reset when the message is released.
+
+    public FileCache.OpenFile file         = null; //file section written after the data of this message - see setFile().
+    public long               filePosition = 0;
+    public long               fileLength   = 0;
+
+    int sizeClass = -1; //the size class and block id of the block in the MessageBuffer - set by the MessageBuffer.
+    int block     = -1;
+
+    Message[] chain       = null; //the blocks appended after the first one - each a Message of its own. Set by the MessageBuffer.
+    int       chainLength = 0;
+
+    private ByteBuffer view       = null; //a duplicate of sharedBuffer - returned by the view methods, so they do not allocate.
+    private ByteBuffer viewSource = null; //the sharedBuffer the view was created from.
 
     public Message(MessageBuffer messageBuffer) {
         this.messageBuffer = messageBuffer;
     }
 
+    /**
+     * @return true if blocks have been appended to the block of this message.
+     */
+    public boolean isChained() {
+        return this.chainLength > 0;
+    }
+
+    /**
+     * @return The capacity of the block of this message plus the capacity of all chained blocks.
+     */
+    public int getTotalCapacity() {
+        return this.chainLength == 0 ? this.capacity : this.capacity + this.chainLength * this.chain[0].capacity;
+    }
+
+    /**
+     * @return true if all blocks of this message are full - expand() before reading more into it.
+     */
+    public boolean isFull() {
+        return this.length == getTotalCapacity();
+    }
+
     /**
      * Writes data from the ByteBuffer into this message - meaning into the buffer backing this message.
      * 把buffer中的数据写入到message(即底层的sharedArray字节数组)
      *
      * @param byteBuffer The ByteBuffer containing the message data to write.
-     * @return
+     * @return The number of bytes written, or -1 if this message could not be expanded to hold them.
      */
     public int writeToMessage(ByteBuffer byteBuffer){
         int remaining = byteBuffer.remaining();
 
-        while(this.length + remaining > capacity){
-            // 如果 [当前的消息长度+buffer里的消息长度] 超过上限(上限是当前小中大的一格大小限制)了,也就是消息的长度超过一格了,需要扩容
-            // 消息的长度超过当前messageBuffer的一个限制了,就扩张,换大号的槽
-            if(!this.messageBuffer.expandMessage(this)) {
+        if(this.length + remaining > getTotalCapacity()){
+            // 如果 [当前的消息长度+buffer里的消息长度] 超过上限了,也就是消息的长度超过一格了,需要扩容 - copied to a
+            // larger block while the message is small, larger messages get blocks appended.
+            if(!this.messageBuffer.expandMessage(this, this.length + remaining)) {
                 return -1;
             }
         }
 
-        int bytesToCopy = Math.min(remaining, this.capacity - this.length);
-        // 把buffer中的数据写入到sharedArray
-        byteBuffer.get(this.sharedArray, this.offset + this.length, bytesToCopy);
-        this.length += bytesToCopy;
+        // 把buffer中的数据写入到sharedArray - block by block, if the message is chained.
+        int limit = byteBuffer.limit();
+        while(byteBuffer.hasRemaining()){
+            ByteBuffer freeSection = getFreeSectionByteBuffer();
+            int bytesToCopy = Math.min(byteBuffer.remaining(), freeSection.remaining());
+            byteBuffer.limit(byteBuffer.position() + bytesToCopy);
+            freeSection.put(byteBuffer);
+            byteBuffer.limit(limit);
+            this.length += bytesToCopy;
+        }
 
-        return bytesToCopy;
+        return remaining;
     }
 
 
@@ -66,21 +126,30 @@ public class Message {
      * Writes data from the byte array into this message - meaning into the buffer backing this message.
      *
      * @param byteArray The byte array containing the message data to write.
-     * @return
+     * @return The number of bytes written, or -1 if this message could not be expanded to hold them.
      */
     public int writeToMessage(byte[] byteArray, int offset, int length){
-        int remaining = length;
-
-        while(this.length + remaining > capacity){
-            if(!this.messageBuffer.expandMessage(this)) {
+        if(this.length + length > getTotalCapacity()){
+            if(!this.messageBuffer.expandMessage(this, this.length + length)) {
                 return -1;
             }
         }
 
-        int bytesToCopy = Math.min(remaining, this.capacity - this.length);
-        System.arraycopy(byteArray, offset, this.sharedArray, this.offset + this.length, bytesToCopy);
-        this.length += bytesToCopy;
-        return bytesToCopy;
+        if(this.sharedArray != null && this.chainLength == 0){
+            System.arraycopy(byteArray, offset, this.sharedArray, this.offset + this.length, length);
+            this.length += length;
+            return length;
+        }
+
+        int bytesCopied = 0;
+        while(bytesCopied < length){
+            ByteBuffer freeSection = getFreeSectionByteBuffer();
+            int bytesToCopy = Math.min(length - bytesCopied, freeSection.remaining());
+            freeSection.put(byteArray, offset + bytesCopied, bytesToCopy);
+            this.length += bytesToCopy;
+            bytesCopied += bytesToCopy;
+        }
+        return length;
     }
 
 
@@ -92,16 +161,190 @@ public class Message {
      *
      * @param message   The message containing the partial message (after the first message).
      * @param endIndex  The end index of the first message in the buffer of the message given as parameter.
+     * @return The number of bytes copied, or -1 if this message could not be expanded to hold them.
+     */
+    public int writePartialMessageToMessage(Message message, int endIndex){
+        return writePartialMessageToMessage(message, endIndex, message.offset + message.length);
+    }
+
+    /**
+     * Copies the bytes from startIndex to endIndex of the given message into this message, replacing its data -
+     * e.g. one of several pipelined requests read into the same message. Expands this message if needed. The
+     * indexes are absolute, like offset - and continue into the chained blocks of a chained message.
+     *
+     * @return The number of bytes copied, or -1 if this message could not be expanded to hold them.
+     */
+    public int writePartialMessageToMessage(Message message, int startIndex, int endIndex){
+        int lengthOfPartialMessage = endIndex - startIndex;
+
+        this.length = 0;
+        if(lengthOfPartialMessage > getTotalCapacity()){
+            if(!this.messageBuffer.expandMessage(this, lengthOfPartialMessage)){
+                return -1;
+            }
+        }
+
+        if(message.chainLength == 0 && this.chainLength == 0){
+            MessageBuffer.copy(message.sharedBuffer, startIndex, this.sharedBuffer, this.offset, lengthOfPartialMessage);
+            this.length = lengthOfPartialMessage;
+            return lengthOfPartialMessage;
+        }
+
+        int index = startIndex - message.offset;
+        int end   = endIndex   - message.offset;
+        while(index < end){
+            ByteBuffer segment = message.getSegment(index, end);
+            index += segment.remaining();
+            writeToMessage(segment);
+        }
+        return lengthOfPartialMessage;
+    }
+
+    /**
+     * Makes the MessageWriter send the given section of the file after the data of this message - e.g. the headers
+     * of a HTTP response in the message, and the file as the body. The file is sent with FileChannel.transferTo(),
+     * without copying it into the MessageBuffer. The message takes over the reference to the file - it releases the
+     * file when the message itself is released.
+     */
+    public void setFile(FileCache.OpenFile file, long position, long length) {
+        if(this.file != null){
+            this.file.release();
+        }
+        this.file         = file;
+        this.filePosition = position;
+        this.fileLength   = Math.max(0, Math.min(length, file.size - position)); // transferTo() sends nothing beyond the end.
+    }
+
+    /**
+     * Makes room for more data: a small message is moved to a block of the MessageBuffer twice as large, a message
+     * as large as MessageBufferConfig.chainBlockSize gets another block appended.
+     *
+     * @return true if the message was expanded, false if there is no free block.
+     */
+    public boolean expand() {
+        return this.messageBuffer.expandMessage(this);
+    }
+
+    /**
+     * Shortens the message to the given length, and returns the chained blocks no longer needed to the MessageBuffer.
+     */
+    public void truncate(int length) {
+        this.messageBuffer.truncateMessage(this, length);
+    }
+
+    /**
+     * @param index Absolute index, like offset - indexes from offset + capacity on are in the chained blocks.
+     */
+    public byte getByte(int index) {
+        int relativeIndex = index - this.offset;
+        if(relativeIndex < this.capacity){
+            return this.sharedBuffer.get(index);
+        }
+        int chainBlockCapacity = this.chain[0].capacity;
+        Message chainBlock = this.chain[(relativeIndex - this.capacity) / chainBlockCapacity];
+        return chainBlock.sharedBuffer.get(chainBlock.offset + (relativeIndex - this.capacity) % chainBlockCapacity);
+    }
+
+    /**
+     * Returns a ByteBuffer over the unused part of the block allocated to this message - from offset + length up
+     * to offset + capacity, or over the unused part of the chained block length falls into. A SocketChannel can
+     * read straight into it. The caller must add the number of bytes put into the ByteBuffer to length.
+     *
+     * The same ByteBuffer object is returned on every call, and it is invalid once the message is expanded or
+     * released.
+     */
+    public ByteBuffer getFreeSectionByteBuffer() {
+        return getSegment(this.length, getTotalCapacity());
+    }
+
+    /**
+     * Returns a ByteBuffer over the message data from fromIndex (relative to the start of the message) up to
+     * length - for a chained message only up to the end of the block fromIndex falls into. A SocketChannel can
+     * write straight out of it.
+     *
+     * The same ByteBuffer object is returned on every call, and it is invalid once the message is expanded or
+     * released.
+     */
+    public ByteBuffer getDataByteBuffer(int fromIndex) {
+        return getSegment(fromIndex, this.length);
+    }
+
+    /**
+     * Puts one ByteBuffer per block over the message data from fromIndex (relative to the start of the message) up
+     * to length into byteBuffers, from startIndex on - for a gathering write of a chained message.
+     *
+     * @return The number of ByteBuffers put into byteBuffers - fewer than the message has blocks if byteBuffers is
+     *         full.
+     */
+    public int getDataByteBuffers(int fromIndex, ByteBuffer[] byteBuffers, int startIndex) {
+        int count = 0;
+        while(fromIndex < this.length && startIndex + count < byteBuffers.length){
+            ByteBuffer segment = getSegment(fromIndex, this.length);
+            fromIndex += segment.remaining();
+            byteBuffers[startIndex + count++] = segment;
+        }
+        return count;
+    }
+
+    /**
+     * A view of this message from fromIndex (relative) up to toIndex, or up to the end of the block fromIndex falls
+     * into, whichever comes first. Each block has its own view, so the views of different blocks can be used together.
      */
-    public void writePartialMessageToMessage(Message message, int endIndex){
-        int startIndexOfPartialMessage = message.offset + endIndex;
-        int lengthOfPartialMessage     = (message.offset + message.length) - endIndex;
+    private ByteBuffer getSegment(int fromIndex, int toIndex) {
+        if(fromIndex < this.capacity || this.chainLength == 0){
+            ByteBuffer view = getView();
+            view.limit(this.offset + Math.min(toIndex, this.capacity)).position(this.offset + fromIndex);
+            return view;
+        }
+        int chainBlockCapacity = this.chain[0].capacity;
+        int chainIndex         = (fromIndex - this.capacity) / chainBlockCapacity;
+        int chainBlockStart    = this.capacity + chainIndex * chainBlockCapacity;
+
+        Message    chainBlock = this.chain[chainIndex];
+        ByteBuffer view       = chainBlock.getView();
+        view.limit(chainBlock.offset + Math.min(toIndex - chainBlockStart, chainBlockCapacity));
+        view.position(chainBlock.offset + fromIndex - chainBlockStart);
+        return view;
+    }
 
-        System.arraycopy(message.sharedArray, startIndexOfPartialMessage, this.sharedArray, this.offset, lengthOfPartialMessage);
+    private ByteBuffer getView() {
+        if(this.viewSource != this.sharedBuffer){
+            this.view       = this.sharedBuffer.duplicate();
+            this.viewSource = this.sharedBuffer;
+        }
+        return this.view;
     }
 
+    /**
+     * Drops the view of the block - called by the MessageBuffer when the block is freed.
+     */
+    void clearView() {
+        this.view       = null;
+        this.viewSource = null;
+    }
+
+    /**
+     * Returns the block backing this message to the MessageBuffer it came from, and this Message object to the
+     * MessageBuffer's message pool. Must be called exactly once when the message is no longer needed. The message
+     * must not be used after it has been released - the block and the Message object are handed out again.
+     */
+    public void release() {
+        this.messageBuffer.freeMessage(this);
+    }
+
+    /**
+     * Copies the message data into the ByteBuffer, as much as fits.
+     *
+     * @return The number of bytes copied.
+     */
     public int writeToByteBuffer(ByteBuffer byteBuffer){
-        return 0;
+        int index = 0;
+        while(index < this.length && byteBuffer.hasRemaining()){
+            ByteBuffer segment = getSegment(index, Math.min(this.length, index + byteBuffer.remaining()));
+            index += segment.remaining();
+            byteBuffer.put(segment);
+        }
+        return index;
     }
 
 
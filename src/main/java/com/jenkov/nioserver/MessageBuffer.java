@@ -1,12 +1,41 @@
 package com.jenkov.nioserver;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * A shared buffer which can contain many messages inside. A message gets a section of the buffer to use. If the
- * message outgrows the section in size, the message requests a larger section and the message is copied to that
- * larger section. The smaller section is then freed again.
+ * A shared buffer which can contain many messages inside. A message gets a block of the buffer to use. If the
+ * message outgrows the block in size, the message requests a larger block and the message is copied to that
+ * larger block. The smaller block is then freed again.
  *
  * 通过复制实现的自适应buffer，非阻塞型IO的只能读取和写入部分数据的问题的解决办法的核心
  *
+ * The blocks come in size classes from MessageBufferConfig.minBlockSize to maxBlockSize, with
+ * sizeClassesPerDoubling classes per power of two - so a 5KB message takes a 5KB block, not a 128KB one. Each size
+ * class cuts its blocks out of slabs of about MessageBufferConfig.slabSize bytes, and gets another slab when it
+ * runs out of blocks - until all slabs together reach MessageBufferConfig.maxMemory. Then slabs without any blocks
+ * in use are freed, so memory held by one size class (e.g. after a burst of large uploads) can go to another.
+ *
+ * Messages are copied to a larger block only while they are smaller than MessageBufferConfig.chainBlockSize. Beyond
+ * that they grow by appending blocks of chainBlockSize - see Message - so a large upload is copied at most once, into
+ * its first chainBlockSize bytes, and can be as large as maxMemory allows.
+ *
+ * The memory can be on the heap (the default), in direct ByteBuffers outside the GC scanned heap, or in a memory
+ * mapped file. For heap buffers Message.sharedArray is the backing byte array. For direct and mapped buffers
+ * Message.sharedArray is null, and the data must be accessed via Message.sharedBuffer or the ByteBuffer views
+ * returned by the Message.
+ *
+ * Getting, expanding and freeing messages is synchronized, so worker threads can get and fill response messages
+ * from the write MessageBuffer while the SocketProcessor frees the messages it has written.
+ *
  * Created by jjenkov on 18-10-2015.
  */
 public class MessageBuffer {
@@ -14,96 +43,533 @@ public class MessageBuffer {
     public static int KB = 1024;
     public static int MB = 1024 * KB;
 
-    private static final int CAPACITY_SMALL  =   4  * KB; // 小型区域一格存4KB
-    private static final int CAPACITY_MEDIUM = 128  * KB; // 中型区域一格存128KB
-    private static final int CAPACITY_LARGE  = 1024 * KB; // 大型区域一格存1024KB
+    private MessageBufferConfig config = null;
+
+    // where the slabs live. Heap when both are off.
+    private boolean          direct     = false;
+    private RandomAccessFile mappedFile = null;
+    private long             mappedFileLength = 0;
+    // file regions of freed slabs, by size - reused before the file is made any longer.
+    private Map<Integer, ArrayDeque<Long>> freeFileRegions = new HashMap<>();
 
-    // 各个区域的总容量
     //package scope (default) - so they can be accessed from unit tests.
-    byte[]  smallMessageBuffer  = new byte[1024 *   4 * KB];   //1024 x   4KB messages =  4MB.
-    byte[]  mediumMessageBuffer = new byte[128  * 128 * KB];   // 128 x 128KB messages = 16MB.
-    byte[]  largeMessageBuffer  = new byte[16   *   1 * MB];   //  16 *   1MB messages = 16MB.
+    int[]       blockSizes     = null;
+    SizeClass[] sizeClasses    = null;
+    int         chainSizeClass = 0; // the size class of the blocks appended to chained messages
 
-    // 搞了小、中、大三种规格的内存（这些里面都存的是消息在smallMessageBuffer的偏移量）
-    QueueIntFlip smallMessageBufferFreeBlocks  = new QueueIntFlip(1024); // 1024 free sections
-    QueueIntFlip mediumMessageBufferFreeBlocks = new QueueIntFlip(128);  // 128  free sections
-    QueueIntFlip largeMessageBufferFreeBlocks  = new QueueIntFlip(16);   // 16   free sections
+    private long reservedBytes     = 0; // memory of all slabs
+    private long blockBytesInUse   = 0;
+    private int  blocksInUse       = 0;
+    private long failedAllocations = 0;
+    // capacity and length of all messages freed so far - for the internal fragmentation.
+    private long freedCapacity     = 0;
+    private long freedLength       = 0;
 
-    //todo make all message buffer capacities and block sizes configurable
-    //todo calculate free block queue sizes based on capacity and block size of buffers.
+    // released Message objects, reused by getMessage(). Grows to the max number of messages in use at the same time.
+    Message[] messagePool     = new Message[64];
+    int       messagePoolSize = 0;
 
+    /**
+     * Creates a MessageBuffer backed by byte arrays on the heap.
+     */
     public MessageBuffer() {
-        //add all free sections to all free section queues.
-        for(int i=0; i<smallMessageBuffer.length; i+= CAPACITY_SMALL){
-            // 0-4K 1-8K ... n-4n K（这些都是偏移量）
-            this.smallMessageBufferFreeBlocks.put(i);
+        this(false);
+    }
+
+    /**
+     * @param direct true = back the buffer by direct ByteBuffers outside the heap, false = byte arrays on the heap.
+     */
+    public MessageBuffer(boolean direct) {
+        this(new MessageBufferConfig(), direct);
+    }
+
+    public MessageBuffer(MessageBufferConfig config, boolean direct) {
+        this.config = config;
+        this.direct = direct;
+        init();
+    }
+
+    /**
+     * Creates a MessageBuffer backed by a memory mapped file. The file is created (or overwritten) and deleted
+     * when the JVM exits. It grows a slab at a time, up to MessageBufferConfig.maxMemory.
+     *
+     * @param mappedFile The file to map the buffer memory to.
+     */
+    public MessageBuffer(File mappedFile) throws IOException {
+        this(new MessageBufferConfig(), mappedFile);
+    }
+
+    public MessageBuffer(MessageBufferConfig config, File mappedFile) throws IOException {
+        this.config = config;
+        mappedFile.deleteOnExit();
+        this.mappedFile = new RandomAccessFile(mappedFile, "rw");
+        this.mappedFile.setLength(0);
+        try {
+            init();
+        } catch(UncheckedIOException e){
+            throw e.getCause();
+        }
+    }
+
+    private void init() {
+        int classesPerDoubling = Math.max(1, this.config.sizeClassesPerDoubling);
+        int[] blockSizes = new int[64];
+        int   classCount = 0;
+
+        // 4KB, 5KB, 6KB, 7KB, 8KB, 10KB ... - rounded up to 8 bytes.
+        long base = this.config.minBlockSize;
+        while(classCount < blockSizes.length){
+            for(int step=0; step<classesPerDoubling && classCount < blockSizes.length; step++){
+                long blockSize = ((base + base * step / classesPerDoubling) + 7) & ~7L;
+                if(blockSize >= this.config.maxBlockSize){
+                    blockSizes[classCount++] = this.config.maxBlockSize;
+                    this.blockSizes = Arrays.copyOf(blockSizes, classCount);
+                    createSizeClasses();
+                    return;
+                }
+                if(classCount == 0 || blockSize > blockSizes[classCount - 1]){
+                    blockSizes[classCount++] = (int) blockSize;
+                }
+            }
+            base *= 2;
         }
-        for(int i=0; i<mediumMessageBuffer.length; i+= CAPACITY_MEDIUM){
-            // 0-128K 1-256K ... n-128n K
-            this.mediumMessageBufferFreeBlocks.put(i);
+        throw new IllegalArgumentException("Too many size classes between " + this.config.minBlockSize + " and " + this.config.maxBlockSize);
+    }
+
+    private void createSizeClasses() {
+        this.sizeClasses = new SizeClass[this.blockSizes.length];
+        for(int i=0; i<this.blockSizes.length; i++){
+            this.sizeClasses[i] = new SizeClass(this.blockSizes[i], Math.max(1, this.config.slabSize / this.blockSizes[i]));
         }
-        for(int i=0; i<largeMessageBuffer.length; i+= CAPACITY_LARGE){
-            // 0-1024K 2-2048K ... n-1024n K
-            this.largeMessageBufferFreeBlocks.put(i);
+        this.chainSizeClass = sizeClassIndexOf(Math.min(this.config.chainBlockSize, this.config.maxBlockSize));
+        for(int i=0; i<this.config.initialSlabCount; i++){
+            addSlab(this.sizeClasses[0]);
         }
     }
 
-    public Message getMessage() {
-        // 从 0-4K 1-8K ... n-4n K 中取出数据（取出偏移量）
-        int nextFreeSmallBlock = this.smallMessageBufferFreeBlocks.take();
+    /**
+     * @return A message with a block of the smallest size class, or null if there is no free block and no memory
+     *         left for another slab.
+     */
+    public synchronized Message getMessage() {
+        return getMessage(0);
+    }
 
-        // 这里是取不到了
-        if(nextFreeSmallBlock == -1) return null;
+    /**
+     * @param minCapacity The number of bytes the message must be able to hold without expanding.
+     * @return A message with a block of at least minCapacity bytes, or null if there is none.
+     */
+    public synchronized Message getMessage(int minCapacity) {
+        int sizeClassIndex = sizeClassIndexOf(minCapacity);
+        if(sizeClassIndex == -1) {
+            this.failedAllocations++;
+            return null;
+        }
 
-        Message message = new Message(this);       //todo get from Message pool - caps memory usage.
+        int block = takeBlock(this.sizeClasses[sizeClassIndex]);
+        // 这里是取不到了
+        if(block == -1) return null;
 
-        // 这个消息使用的字节数组
-        message.sharedArray = this.smallMessageBuffer;
-        // 这个字节数组一格的大小
-        message.capacity    = CAPACITY_SMALL;
-        // 这个消息在sharedArray中的偏移量
-        message.offset      = nextFreeSmallBlock;
+        Message message = this.messagePoolSize > 0 ? this.messagePool[--this.messagePoolSize] : new Message(this);
+        assignBlock(message, sizeClassIndex, block);
         // 这个消息的长度
-        message.length      = 0;
+        message.length = 0;
 
         return message;
     }
 
     /**
-     * 消息的一格内容扩展,小变中,中变大
+     * Makes room for more data in the message. A message smaller than MessageBufferConfig.chainBlockSize is moved to
+     * a block twice its capacity (at most chainBlockSize), a larger message gets a block of chainBlockSize appended -
+     * so large messages are never copied again, and are only limited by MessageBufferConfig.maxMemory.
      *
-     * @param message
-     * @return
-     */
-    public boolean expandMessage(Message message){
-        if(message.capacity == CAPACITY_SMALL){
-            return moveMessage(message, this.smallMessageBufferFreeBlocks, this.mediumMessageBufferFreeBlocks, this.mediumMessageBuffer, CAPACITY_MEDIUM);
-        } else if(message.capacity == CAPACITY_MEDIUM){
-            return moveMessage(message, this.mediumMessageBufferFreeBlocks, this.largeMessageBufferFreeBlocks, this.largeMessageBuffer, CAPACITY_LARGE);
-        } else {
-            return false;
+     * @return false if there is no free block.
+     */
+    public synchronized boolean expandMessage(Message message){
+        int chainBlockSize = this.blockSizes[this.chainSizeClass];
+        if(message.chainLength == 0 && message.capacity < chainBlockSize){
+            return expandMessage(message, (int) Math.min(2L * message.capacity, chainBlockSize));
+        }
+        return appendBlocks(message, message.getTotalCapacity() + 1);
+    }
+
+    /**
+     * Makes the total capacity of the message at least minCapacity bytes. A message which fits into a block of
+     * MessageBufferConfig.chainBlockSize is moved to the smallest block that fits, and its data copied along. A
+     * larger message gets blocks of chainBlockSize appended.
+     *
+     * @return false if there are not enough free blocks. The data of the message is unchanged then.
+     */
+    public synchronized boolean expandMessage(Message message, int minCapacity){
+        if(minCapacity <= message.getTotalCapacity()){
+            return true;
+        }
+        int chainBlockSize = this.blockSizes[this.chainSizeClass];
+        if(message.chainLength == 0 && message.capacity < chainBlockSize){
+            if(!moveMessage(message, sizeClassIndexOf(Math.min(minCapacity, chainBlockSize)))){
+                return false;
+            }
+        }
+        return appendBlocks(message, minCapacity);
+    }
+
+    /**
+     * Shortens the message, and frees the chained blocks beyond the new length.
+     */
+    public synchronized void truncateMessage(Message message, int length) {
+        message.length = length;
+
+        int chainBlocksNeeded = 0;
+        if(length > message.capacity){
+            int chainBlockSize = this.blockSizes[this.chainSizeClass];
+            chainBlocksNeeded = (length - message.capacity + chainBlockSize - 1) / chainBlockSize;
+        }
+        while(message.chainLength > chainBlocksNeeded){
+            freeBlock(message.chain[--message.chainLength]);
+            message.chain[message.chainLength] = null;
+        }
+    }
+
+    /**
+     * Returns the blocks used by the message - its own and the chained ones - to their size classes, and the Message
+     * objects to the message pool. The message must not be used after it has been freed. Called via
+     * Message.release().
+     *
+     * @param message The message to free.
+     */
+    public synchronized void freeMessage(Message message) {
+        if(message.sharedBuffer == null){
+            return; // already freed
+        }
+
+        this.freedCapacity += message.getTotalCapacity();
+        this.freedLength   += message.length;
+
+        while(message.chainLength > 0){
+            freeBlock(message.chain[--message.chainLength]);
+            message.chain[message.chainLength] = null;
+        }
+        message.socketId = 0;
+        message.part     = Message.PART_WHOLE;
+        if(message.file != null){
+            message.file.release();
+            message.file = null;
+        }
+        // metaData is kept so message readers can reuse it (e.g. HttpHeaders).
+        freeBlock(message);
+    }
+
+    private void freeBlock(Message message) {
+        putBlock(this.sizeClasses[message.sizeClass], message.block);
+
+        message.sharedArray  = null;
+        message.sharedBuffer = null;
+        message.offset       = 0;
+        message.capacity     = 0;
+        message.length       = 0;
+        message.sizeClass    = -1;
+        message.block        = -1;
+        message.clearView(); // the view would keep the slab reachable after freeUnusedSlabs() has dropped it.
+
+        if(this.messagePoolSize == this.messagePool.length){
+            this.messagePool = Arrays.copyOf(this.messagePool, this.messagePool.length * 2);
+        }
+        this.messagePool[this.messagePoolSize++] = message;
+    }
+
+    /**
+     * Moves the message to a block of the given size class, and copies its data along.
+     */
+    private boolean moveMessage(Message message, int sizeClassIndex) {
+        SizeClass sizeClass = this.sizeClasses[sizeClassIndex];
+        int block = takeBlock(sizeClass);
+        if(block == -1) return false;
+
+        // 把消息挪到更大的一格, then free the smaller block.
+        int slab = block / sizeClass.blocksPerSlab;
+        copy(message.sharedBuffer, message.offset, sizeClass.slabs[slab], (block % sizeClass.blocksPerSlab) * sizeClass.blockSize, message.length);
+        putBlock(this.sizeClasses[message.sizeClass], message.block);
+        message.clearView();
+
+        assignBlock(message, sizeClassIndex, block);
+        return true;
+    }
+
+    /**
+     * Appends blocks of chainBlockSize until the total capacity of the message is at least minCapacity. If there
+     * are not enough free blocks, the blocks appended by this call are freed again.
+     */
+    private boolean appendBlocks(Message message, int minCapacity) {
+        int chainLength = message.chainLength;
+        while(message.getTotalCapacity() < minCapacity){
+            int block = takeBlock(this.sizeClasses[this.chainSizeClass]);
+            if(block == -1){
+                while(message.chainLength > chainLength){
+                    freeBlock(message.chain[--message.chainLength]);
+                    message.chain[message.chainLength] = null;
+                }
+                return false;
+            }
+
+            Message chainBlock = this.messagePoolSize > 0 ? this.messagePool[--this.messagePoolSize] : new Message(this);
+            assignBlock(chainBlock, this.chainSizeClass, block);
+            chainBlock.length = 0;
+
+            if(message.chain == null){
+                message.chain = new Message[4];
+            } else if(message.chainLength == message.chain.length){
+                message.chain = Arrays.copyOf(message.chain, message.chain.length * 2);
+            }
+            message.chain[message.chainLength++] = chainBlock;
         }
+        return true;
+    }
+
+
+    /** The most memory this buffer holds - so the largest message it can hold. */
+    public long getMaxMemory() {
+        return this.config.maxMemory;
     }
 
-    private boolean moveMessage(Message message, QueueIntFlip srcBlockQueue, QueueIntFlip destBlockQueue, byte[] dest, int newCapacity) {
-        // 从destBlockQueue取出下个能用的位置
-        int nextFreeBlock = destBlockQueue.take();
-        if(nextFreeBlock == -1) return false;
+    /** Memory of all slabs - the memory this buffer holds. */
+    public synchronized long getReservedBytes() {
+        return this.reservedBytes;
+    }
+
+    /** Bytes of all blocks held by messages. */
+    public synchronized long getBlockBytesInUse() {
+        return this.blockBytesInUse;
+    }
+
+    public synchronized int getBlocksInUse() {
+        return this.blocksInUse;
+    }
 
-        // 把message.sharedArray挪到dest
-        System.arraycopy(message.sharedArray, message.offset, dest, nextFreeBlock, message.length);
+    /** Number of getMessage() and expandMessage() calls which failed for lack of a block. */
+    public synchronized long getFailedAllocations() {
+        return this.failedAllocations;
+    }
 
-        srcBlockQueue.put(message.offset); //free smaller block after copy
+    /**
+     * The share of the reserved memory sitting in free blocks. Free blocks only serve messages of their own size
+     * class, so a high value while allocations fail means the memory is held by the wrong size classes.
+     */
+    public synchronized double getExternalFragmentation() {
+        return this.reservedBytes == 0 ? 0 : (double) (this.reservedBytes - this.blockBytesInUse) / this.reservedBytes;
+    }
 
-        // 然后换成dest
-        message.sharedArray = dest;
-        message.offset      = nextFreeBlock;
-        message.capacity    = newCapacity;
+    /**
+     * The share of the capacity of all messages freed so far that was never filled - the cost of rounding message
+     * sizes up to the size classes.
+     */
+    public synchronized double getInternalFragmentation() {
+        return this.freedCapacity == 0 ? 0 : (double) (this.freedCapacity - this.freedLength) / this.freedCapacity;
+    }
+
+    /**
+     * @return A table of the size classes holding any slabs - block size, slabs, blocks and free blocks - followed
+     *         by the totals and the fragmentation.
+     */
+    public synchronized String getFragmentationReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%12s %8s %8s %8s%n", "BlockSize", "Slabs", "Blocks", "Free"));
+        for(SizeClass sizeClass : this.sizeClasses){
+            if(sizeClass.slabCount > 0){
+                report.append(String.format("%12d %8d %8d %8d%n", sizeClass.blockSize, sizeClass.slabCount,
+                        sizeClass.slabCount * sizeClass.blocksPerSlab, sizeClass.freeCount));
+            }
+        }
+        report.append(String.format("reserved %d of %d bytes, %d bytes in %d blocks in use, %d failed allocations%n",
+                this.reservedBytes, this.config.maxMemory, this.blockBytesInUse, this.blocksInUse, this.failedAllocations));
+        report.append(String.format("external fragmentation %.1f%%, internal fragmentation %.1f%%%n",
+                getExternalFragmentation() * 100, getInternalFragmentation() * 100));
+        return report.toString();
+    }
+
+
+    /**
+     * @return The index of the smallest size class with blocks of at least minCapacity bytes, or -1 if minCapacity
+     *         is larger than the largest block.
+     */
+    int sizeClassIndexOf(int minCapacity) {
+        int index = Arrays.binarySearch(this.blockSizes, minCapacity);
+        if(index < 0){
+            index = -index - 1;
+        }
+        return index < this.blockSizes.length ? index : -1;
+    }
+
+    private void assignBlock(Message message, int sizeClassIndex, int block) {
+        SizeClass sizeClass = this.sizeClasses[sizeClassIndex];
+        int slab = block / sizeClass.blocksPerSlab;
+
+        // 这个消息使用的字节数组
+        message.sharedArray  = sizeClass.slabArrays[slab];
+        message.sharedBuffer = sizeClass.slabs[slab];
+        // 这个字节数组一格的大小
+        message.capacity     = sizeClass.blockSize;
+        // 这个消息在sharedArray中的偏移量
+        message.offset       = (block % sizeClass.blocksPerSlab) * sizeClass.blockSize;
+        message.sizeClass    = sizeClassIndex;
+        message.block        = block;
+    }
+
+    private int takeBlock(SizeClass sizeClass) {
+        if(sizeClass.freeCount == 0 && !addSlab(sizeClass)){
+            this.failedAllocations++;
+            return -1;
+        }
+        int block = sizeClass.freeBlocks[--sizeClass.freeCount];
+        sizeClass.slabFreeCounts[block / sizeClass.blocksPerSlab]--;
+
+        this.blocksInUse++;
+        this.blockBytesInUse += sizeClass.blockSize;
+        return block;
+    }
+
+    private void putBlock(SizeClass sizeClass, int block) {
+        sizeClass.freeBlocks[sizeClass.freeCount++] = block;
+        sizeClass.slabFreeCounts[block / sizeClass.blocksPerSlab]++;
+
+        this.blocksInUse--;
+        this.blockBytesInUse -= sizeClass.blockSize;
+    }
+
+    private boolean addSlab(SizeClass sizeClass) {
+        int slabBytes = sizeClass.blocksPerSlab * sizeClass.blockSize;
+        if(this.reservedBytes + slabBytes > this.config.maxMemory){
+            freeUnusedSlabs();
+            if(this.reservedBytes + slabBytes > this.config.maxMemory){
+                return false;
+            }
+        }
+
+        int slab = 0;
+        while(slab < sizeClass.slabs.length && sizeClass.slabs[slab] != null){
+            slab++;
+        }
+        if(slab == sizeClass.slabs.length){
+            sizeClass.growSlabArrays();
+        }
+
+        if(this.mappedFile != null){
+            long fileOffset = allocateFileRegion(slabBytes);
+            try {
+                sizeClass.slabs[slab] = this.mappedFile.getChannel().map(FileChannel.MapMode.READ_WRITE, fileOffset, slabBytes);
+            } catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+            sizeClass.slabFileOffsets[slab] = fileOffset;
+        } else if(this.direct){
+            sizeClass.slabs[slab] = ByteBuffer.allocateDirect(slabBytes);
+        } else {
+            sizeClass.slabArrays[slab] = new byte[slabBytes];
+            sizeClass.slabs[slab]      = ByteBuffer.wrap(sizeClass.slabArrays[slab]);
+        }
+        sizeClass.slabCount++;
+        sizeClass.slabFreeCounts[slab] = sizeClass.blocksPerSlab;
+        this.reservedBytes += slabBytes;
+
+        //add all blocks of the slab to the free blocks - the lowest offset on top.
+        for(int i=sizeClass.blocksPerSlab - 1; i>=0; i--){
+            sizeClass.freeBlocks[sizeClass.freeCount++] = slab * sizeClass.blocksPerSlab + i;
+        }
         return true;
     }
 
+    /**
+     * Frees all slabs none of whose blocks are in use, so their memory can be used by other size classes.
+     */
+    private void freeUnusedSlabs() {
+        for(SizeClass sizeClass : this.sizeClasses){
+            boolean slabsFreed = false;
+            for(int slab=0; slab<sizeClass.slabs.length; slab++){
+                if(sizeClass.slabs[slab] != null && sizeClass.slabFreeCounts[slab] == sizeClass.blocksPerSlab){
+                    int slabBytes = sizeClass.blocksPerSlab * sizeClass.blockSize;
+                    if(this.mappedFile != null){
+                        this.freeFileRegions.computeIfAbsent(slabBytes, size -> new ArrayDeque<>()).push(sizeClass.slabFileOffsets[slab]);
+                    }
+                    sizeClass.slabs[slab]          = null;
+                    sizeClass.slabArrays[slab]     = null;
+                    sizeClass.slabFreeCounts[slab] = 0;
+                    sizeClass.slabCount--;
+                    this.reservedBytes -= slabBytes;
+                    slabsFreed = true;
+                }
+            }
+            if(slabsFreed){
+                // drop the blocks of the freed slabs from the free blocks.
+                int freeCount = 0;
+                for(int i=0; i<sizeClass.freeCount; i++){
+                    int block = sizeClass.freeBlocks[i];
+                    if(sizeClass.slabs[block / sizeClass.blocksPerSlab] != null){
+                        sizeClass.freeBlocks[freeCount++] = block;
+                    }
+                }
+                sizeClass.freeCount = freeCount;
+            }
+        }
+    }
+
+    private long allocateFileRegion(int size) {
+        ArrayDeque<Long> freeRegions = this.freeFileRegions.get(size);
+        if(freeRegions != null && !freeRegions.isEmpty()){
+            return freeRegions.pop();
+        }
+        long fileOffset = this.mappedFileLength;
+        this.mappedFileLength += size;
+        return fileOffset;
+    }
+
+    /**
+     * Copies bytes between two buffers using absolute indexes. The position and limit of the buffers are not
+     * changed. Heap buffers are copied with System.arraycopy.
+     */
+    static void copy(ByteBuffer src, int srcIndex, ByteBuffer dest, int destIndex, int length) {
+        if(src.hasArray() && dest.hasArray()){
+            System.arraycopy(src.array(), src.arrayOffset() + srcIndex, dest.array(), dest.arrayOffset() + destIndex, length);
+            return;
+        }
 
+        ByteBuffer srcView  = src.duplicate();
+        srcView.limit(srcIndex + length).position(srcIndex);
+        ByteBuffer destView = dest.duplicate();
+        destView.limit(destIndex + length).position(destIndex);
+        destView.put(srcView);
+    }
 
 
+    /**
+     * The slabs and free blocks of one block size. Block ids are slab index * blocksPerSlab + block index in the slab.
+     */
+    static class SizeClass {
+        final int blockSize;
+        final int blocksPerSlab;
+
+        ByteBuffer[] slabs           = new ByteBuffer[4]; // null = no slab at that index (never added, or freed)
+        byte[][]     slabArrays      = new byte[4][];     // null if the buffer is not heap backed
+        long[]       slabFileOffsets = new long[4];       // memory mapped file only
+        int[]        slabFreeCounts  = new int[4];
+        int          slabCount       = 0;
+
+        // stack of free block ids - the most recently freed (cache warm) block is handed out first.
+        int[]        freeBlocks      = null;
+        int          freeCount       = 0;
+
+        SizeClass(int blockSize, int blocksPerSlab) {
+            this.blockSize     = blockSize;
+            this.blocksPerSlab = blocksPerSlab;
+            this.freeBlocks    = new int[4 * blocksPerSlab];
+        }
+
+        void growSlabArrays() {
+            int length = this.slabs.length * 2;
+            this.slabs           = Arrays.copyOf(this.slabs, length);
+            this.slabArrays      = Arrays.copyOf(this.slabArrays, length);
+            this.slabFileOffsets = Arrays.copyOf(this.slabFileOffsets, length);
+            this.slabFreeCounts  = Arrays.copyOf(this.slabFreeCounts, length);
+            this.freeBlocks      = Arrays.copyOf(this.freeBlocks, length * this.blocksPerSlab);
+        }
+    }
 
 }
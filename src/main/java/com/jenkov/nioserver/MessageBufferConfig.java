@@ -0,0 +1,24 @@
+package com.jenkov.nioserver;
+
+/**
+ * Size classes and memory limits of a MessageBuffer. Change the fields before creating the MessageBuffer.
+ */
+public class MessageBufferConfig {
+
+    // smallest block - the size of the blocks getMessage() hands out.
+    public int  minBlockSize           = 4 * 1024;
+    // largest single block - for getMessage(minCapacity). Chained messages grow beyond it.
+    public int  maxBlockSize           = 16 * 1024 * 1024;
+    // messages grow by copying to a larger block up to this size, and by appending blocks of this size beyond it.
+    public int  chainBlockSize         = 64 * 1024;
+    // size classes per doubling of the block size: 1 = 4KB, 8KB, 16KB ... 4 = 4KB, 5KB, 6KB, 7KB, 8KB, 10KB ...
+    public int  sizeClassesPerDoubling = 4;
+
+    // memory added to a size class at a time. Blocks of this size or larger get a slab of their own.
+    public int  slabSize               = 1024 * 1024;
+    // slabs of the smallest size class allocated up front.
+    public int  initialSlabCount       = 4;
+    // max memory of all slabs together. When it is reached, slabs with no blocks in use are freed before giving up.
+    public long maxMemory              = 64L * 1024 * 1024;
+
+}
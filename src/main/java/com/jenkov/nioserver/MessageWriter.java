@@ -2,44 +2,165 @@ package com.jenkov.nioserver;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Created by jjenkov on 21-10-2015.
  */
 public class MessageWriter {
 
-    private List<Message> writeQueue   = new ArrayList<>();
+    private static final int MAX_GATHER_BUFFERS = 64; // max blocks written with a single gathering write.
+
+    private RingBuffer<Message> writeQueue = null;
     private Message  messageInProgress = null;
-    private int      bytesWritten      =    0;
+    private int      bytesWritten      =    0; // bytes of messageInProgress written so far.
+    private long     fileBytesWritten  =    0; // bytes of the file of messageInProgress written so far.
+    private long     bytesQueued       =    0; // message bytes enqueued and not written yet - files not included.
+
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
 
     public MessageWriter() {
+        this(128);
+    }
+
+    /**
+     * @param maxQueueSize The max number of messages waiting behind the message in progress.
+     */
+    public MessageWriter(int maxQueueSize) {
+        this.writeQueue = new RingBuffer<>(4, maxQueueSize);
     }
 
-    public void enqueue(Message message) {
+    /**
+     * @return false if the write queue is full - the message is not enqueued then.
+     */
+    public boolean enqueue(Message message) {
         if(this.messageInProgress == null){
             this.messageInProgress = message;
-        } else {
-            this.writeQueue.add(message);
+        } else if(!this.writeQueue.offer(message)){
+            return false;
         }
+        this.bytesQueued += message.length;
+        return true;
     }
 
-    public void write(Socket socket, ByteBuffer byteBuffer) throws IOException {
-        byteBuffer.put(this.messageInProgress.sharedArray, this.messageInProgress.offset + this.bytesWritten, this.messageInProgress.length - this.bytesWritten);
-        byteBuffer.flip();
+    /**
+     * Writes the message in progress and as many queued messages as possible with a single gathering write,
+     * straight out of the sections of the MessageBuffer the messages live in - no copy into an intermediate buffer.
+     * A file section of a message is sent with FileChannel.transferTo() after the message data - the gathering
+     * write stops at the first message with a file. Fully written messages are released. A partially written message
+     * becomes the message in progress, and the next write continues where this one stopped.
+     *
+     * @throws IOException if the write fails, or a file shrinks while being sent - the socket must be closed then.
+     */
+    public void write(Socket socket) throws IOException {
+        while(this.messageInProgress != null){
+            if(this.bytesWritten < this.messageInProgress.length){
+                if(!writeMessageData(socket)){
+                    return; // the socket buffer is full.
+                }
+            } else if(this.messageInProgress.file != null){
+                // 文件部分 - sent once the data of the message has been written.
+                Message message       = this.messageInProgress;
+                long    fileRemaining = message.fileLength - this.fileBytesWritten;
 
-        this.bytesWritten += socket.write(byteBuffer);
-        byteBuffer.clear();
-
-        if(bytesWritten >= this.messageInProgress.length){
-            if(this.writeQueue.size() > 0){
-                this.messageInProgress = this.writeQueue.remove(0);
+                long bytesWrittenNow = socket.transferFrom(message.file.channel, message.filePosition + this.fileBytesWritten, fileRemaining);
+                this.fileBytesWritten += bytesWrittenNow;
+                if(bytesWrittenNow < fileRemaining){
+                    if(bytesWrittenNow == 0 && message.filePosition + this.fileBytesWritten >= message.file.channel.size()){
+                        // the file has shrunk since the response was made - transferTo() would send nothing, ever.
+                        message.file.invalidate();
+                        throw new IOException("File shrank while being sent: " + message.file.path);
+                    }
+                    return;
+                }
+                nextMessage();
             } else {
-                this.messageInProgress = null;
-                //todo unregister from selector
+                nextMessage(); // no data left - e.g. an empty message.
+            }
+        }
+    }
+
+    /**
+     * @return true if all the data gathered has been written - false if the socket buffer is full.
+     */
+    private boolean writeMessageData(Socket socket) throws IOException {
+        // one buffer per block - a chained message takes several. A message only partly in gatherBuffers is the last.
+        int bufferCount = this.messageInProgress.getDataByteBuffers(this.bytesWritten, this.gatherBuffers, 0);
+        if(this.messageInProgress.file == null){
+            for(int i=0; i<this.writeQueue.size() && bufferCount < this.gatherBuffers.length; i++){
+                Message message = this.writeQueue.get(i);
+                bufferCount += message.getDataByteBuffers(0, this.gatherBuffers, bufferCount);
+                if(message.file != null){
+                    break; // its file is sent before the messages after it.
+                }
+            }
+        }
+
+        long bytesWrittenNow = socket.write(this.gatherBuffers, bufferCount);
+        this.bytesQueued -= bytesWrittenNow;
+
+        for(int i=0; i<bufferCount; i++){
+            this.gatherBuffers[i] = null;
+        }
+
+        // step past all messages written completely by this write - up to the file of a message, if it has one.
+        while(this.messageInProgress != null){
+            int bytesRemaining = this.messageInProgress.length - this.bytesWritten;
+            if(bytesWrittenNow < bytesRemaining){
+                this.bytesWritten += (int) bytesWrittenNow;
+                return false;
+            }
+            bytesWrittenNow -= bytesRemaining;
+            this.bytesWritten = this.messageInProgress.length;
+
+            if(this.messageInProgress.file != null){
+                return true;
+            }
+            nextMessage();
+            if(bytesWrittenNow == 0){
+                return true;
             }
         }
+        return true;
+    }
+
+    private void nextMessage() {
+        this.bytesWritten     = 0;
+        this.fileBytesWritten = 0;
+        this.messageInProgress.release();
+        this.messageInProgress = this.writeQueue.poll();
+    }
+
+    /**
+     * Releases all messages still waiting to be written. Called when the socket is closed.
+     */
+    public void dispose() {
+        if(this.messageInProgress != null){
+            this.messageInProgress.release();
+            this.messageInProgress = null;
+        }
+        Message message = this.writeQueue.poll();
+        while(message != null){
+            message.release();
+            message = this.writeQueue.poll();
+        }
+        this.bytesWritten     = 0;
+        this.fileBytesWritten = 0;
+        this.bytesQueued      = 0;
+    }
+
+    /**
+     * @return The number of bytes of the queued messages not written yet - the write MessageBuffer memory held by
+     *         this writer. The files of file responses are not included.
+     */
+    public long getBytesQueued() {
+        return this.bytesQueued;
+    }
+
+    /**
+     * @return The number of messages not completely written yet - including the message in progress.
+     */
+    public int getQueueSize() {
+        return this.writeQueue.size() + (this.messageInProgress != null ? 1 : 0);
     }
 
     public boolean isEmpty() {
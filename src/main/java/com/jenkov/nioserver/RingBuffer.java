@@ -0,0 +1,83 @@
+package com.jenkov.nioserver;
+
+/**
+ * An array based ring buffer queue with indexed access, for use by a single thread. Used as the write queue of a
+ * MessageWriter - it is only ever touched by the SocketProcessor thread owning the socket, so it needs no
+ * synchronization.
+ *
+ * The array starts small and doubles in size when full, up to maxCapacity. offer() returns false when the queue
+ * holds maxCapacity elements.
+ */
+public class RingBuffer<E> {
+
+    private Object[] elements    = null;
+    private int      maxCapacity = 0;
+    private int      head        = 0; // index of the first element.
+    private int      size        = 0;
+
+    public RingBuffer(int initialCapacity, int maxCapacity) {
+        this.elements    = new Object[Math.max(1, Math.min(initialCapacity, maxCapacity))];
+        this.maxCapacity = maxCapacity;
+    }
+
+    public boolean offer(E element) {
+        if(this.size == this.elements.length){
+            if(this.size >= this.maxCapacity){
+                return false;
+            }
+            grow();
+        }
+        this.elements[(this.head + this.size) % this.elements.length] = element;
+        this.size++;
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if(this.size == 0){
+            return null;
+        }
+        E element = (E) this.elements[this.head];
+        this.elements[this.head] = null;
+        this.head = (this.head + 1) % this.elements.length;
+        this.size--;
+        return element;
+    }
+
+    /**
+     * @param index The index of the element relative to the head of the queue - 0 is the next element poll() returns.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        return (E) this.elements[(this.head + index) % this.elements.length];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public boolean isFull() {
+        return this.size >= this.maxCapacity;
+    }
+
+    public void clear() {
+        while(this.size > 0){
+            poll();
+        }
+        this.head = 0;
+    }
+
+    private void grow() {
+        Object[] newElements = new Object[Math.min(this.elements.length * 2, this.maxCapacity)];
+        for(int i=0; i<this.size; i++){
+            newElements[i] = this.elements[(this.head + i) % this.elements.length];
+        }
+        this.elements = newElements;
+        this.head     = 0;
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.jenkov.nioserver;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free multi producer / single consumer queue backed by a ring buffer. Any thread can offer()
+ * elements, but only one thread (the SocketProcessor thread) may poll() or peek() them.
+ *
+ * Producers claim a slot by incrementing producerIndex with a CAS, and then publish the element into the slot. The
+ * consumer sees a slot as empty until the element has been published, so poll() may return null for a moment even
+ * though size() is greater than 0. Producers must therefore signal the consumer after offer() returns (the
+ * WriteProxy wakes up the SocketProcessor).
+ *
+ * offer() returns false when the queue is full - it never blocks and never grows.
+ */
+public class RingBufferMpsc<E> extends AbstractQueue<E> {
+
+    private AtomicReferenceArray<E> elements = null;
+    private int                     capacity = 0;
+    private int                     mask     = 0;
+
+    private AtomicLong producerIndex = new AtomicLong(0); // next slot to claim by a producer.
+    private AtomicLong consumerIndex = new AtomicLong(0); // next slot to read by the consumer.
+
+    /**
+     * @param capacity The max number of elements in the queue. Rounded up to the nearest power of 2.
+     */
+    public RingBufferMpsc(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask     = this.capacity - 1;
+        this.elements = new AtomicReferenceArray<>(this.capacity);
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    @Override
+    public boolean offer(E element) {
+        if(element == null) throw new NullPointerException();
+
+        long index;
+        do {
+            index = this.producerIndex.get();
+            if(index - this.consumerIndex.get() >= this.capacity){
+                return false; // full
+            }
+        } while(!this.producerIndex.compareAndSet(index, index + 1));
+
+        this.elements.lazySet((int) index & this.mask, element);
+        return true;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    @Override
+    public E poll() {
+        long index = this.consumerIndex.get();
+        int  slot  = (int) index & this.mask;
+
+        E element = this.elements.get(slot);
+        if(element == null){
+            return null; // empty - or the producer has claimed the slot but not published the element yet.
+        }
+
+        this.elements.lazySet(slot, null);
+        this.consumerIndex.lazySet(index + 1);  // the slot is free for producers after this.
+        return element;
+    }
+
+    /**
+     * Consumer thread only.
+     */
+    @Override
+    public E peek() {
+        return this.elements.get((int) this.consumerIndex.get() & this.mask);
+    }
+
+    @Override
+    public int size() {
+        long size = this.producerIndex.get() - this.consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, this.capacity));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.producerIndex.get() == this.consumerIndex.get();
+    }
+
+    /**
+     * Consumer thread only. Iterates the published elements from the head of the queue, in the order poll() would
+     * return them. The iterator is weakly consistent - it stops at the first slot claimed but not published yet, and
+     * does not see elements offered after it reached the end. It is read-only: elements can only be taken via poll().
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private long index = consumerIndex.get();
+            private E    next  = elementAt(index);
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public E next() {
+                if(this.next == null) throw new NoSuchElementException();
+                E element = this.next;
+                this.next = elementAt(++this.index);
+                return element;
+            }
+        };
+    }
+
+    private E elementAt(long index) {
+        if(index >= this.producerIndex.get()){
+            return null; // not claimed yet - a stale element of an earlier round may still be in the slot.
+        }
+        return this.elements.get((int) index & this.mask);
+    }
+
+}
@@ -1,48 +1,184 @@
 package com.jenkov.nioserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by jjenkov on 24-10-2015.
  */
 public class Server {
 
-    private SocketAccepter  socketAccepter  = null;
-    private SocketProcessor socketProcessor = null;
+    private SocketAccepter          socketAccepter          = null;
+    private SocketProcessor[]       socketProcessors        = null;
+    private BlockingSocketProcessor blockingSocketProcessor = null;
+    private ExecutorService         ownedExecutor           = null; // created by start() - shut down by stop().
+    private boolean                 virtualThreadFallback   = false; // virtual threads configured, but not available on this JVM.
 
     private int tcpPort = 0;
     private IMessageReaderFactory messageReaderFactory = null;
     private IMessageProcessor     messageProcessor = null;
+    private ServerConfig          config           = null;
 
     public Server(int tcpPort, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor) {
+        this(tcpPort, messageReaderFactory, messageProcessor, new ServerConfig());
+    }
+
+    public Server(int tcpPort, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor, ServerConfig config) {
         this.tcpPort = tcpPort;
         this.messageReaderFactory = messageReaderFactory;
         this.messageProcessor = messageProcessor;
+        this.config = config;
     }
 
     public void start() throws IOException {
 
-        // socket的队列
-        Queue socketQueue = new ArrayBlockingQueue(1024); //move 1024 to ServerConfig
+        if(this.config.serverMode == ServerConfig.SERVER_MODE_THREAD_PER_CONNECTION){
+            startThreadPerConnection();
+            return;
+        }
+
+        ExecutorService workerExecutor = createWorkerExecutor();
+        if(workerExecutor != this.config.workerExecutor){
+            this.ownedExecutor = workerExecutor;
+        }
+
+        // 处理请求的线程 - each processor has its own socket queue, its own read and write buffers and its own
+        // selectors, so processors never share state and can run on separate cores.
+        this.socketProcessors = new SocketProcessor[Math.max(1, this.config.socketProcessorCount)];
+        for(int i=0; i<this.socketProcessors.length; i++){
+            // socket的队列
+            Queue<Socket> socketQueue = new ArrayBlockingQueue<>(this.config.socketQueueCapacity);
+
+            // 读和写的buffer
+            MessageBuffer readBuffer  = createMessageBuffer("read-"  + i);
+            MessageBuffer writeBuffer = createMessageBuffer("write-" + i);
+
+            this.socketProcessors[i] = new SocketProcessor(socketQueue, readBuffer, writeBuffer,  this.messageReaderFactory, this.messageProcessor, this.config, i);
+            this.socketProcessors[i].setWorkerExecutor(workerExecutor);
+        }
+
+        // 接受新连接的线程 - spreads accepted sockets over the processors and wakes up the chosen one.
+        this.socketAccepter  = new SocketAccepter(tcpPort, this.socketProcessors, this.config);
+
+        Thread accepterThread  = new Thread(this.socketAccepter, "SocketAccepter");
+        accepterThread.start();
+
+        for(int i=0; i<this.socketProcessors.length; i++){
+            Thread processorThread = new Thread(this.socketProcessors[i], "SocketProcessor-" + i);
+            processorThread.start();
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes all sockets and lets the server threads exit. Executors passed in via
+     * ServerConfig.workerExecutor are not shut down.
+     */
+    public void stop() {
+        if(this.socketAccepter != null){
+            this.socketAccepter.stop();
+        }
+        if(this.socketProcessors != null){
+            for(SocketProcessor socketProcessor : this.socketProcessors){
+                socketProcessor.stop();
+            }
+        }
+        if(this.blockingSocketProcessor != null){
+            this.blockingSocketProcessor.stop();
+        }
+        if(this.ownedExecutor != null){
+            this.ownedExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * The accept count, reject count and accept rate metrics. Null until start() is called.
+     */
+    public SocketAccepter getSocketAccepter() {
+        return this.socketAccepter;
+    }
+
+    /**
+     * @return The port the server listens on - e.g. the port picked by the OS for tcpPort 0. Waits up to a few seconds
+     *         for the accepter thread to bind it, and returns 0 if it has not.
+     */
+    public int getLocalPort() throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while(this.socketAccepter != null && this.socketAccepter.getLocalPort() == 0 && System.currentTimeMillis() < timeout){
+            Thread.sleep(1);
+        }
+        return this.socketAccepter != null ? this.socketAccepter.getLocalPort() : 0;
+    }
+
+    /**
+     * @return true if virtual threads were to be used - ServerConfig.virtualWorkerThreads, or thread per connection
+     *         mode without a ServerConfig.workerExecutor - but the JVM has none (before Java 21). Platform threads are
+     *         used instead then. Valid after start() has been called.
+     */
+    public boolean isVirtualThreadFallback() {
+        return this.virtualThreadFallback;
+    }
 
-        // 接受新连接的线程
-        this.socketAccepter  = new SocketAccepter(tcpPort, socketQueue);
+    /**
+     * The SocketProcessors - e.g. for their write backpressure and timeout metrics. Null until start() is called, and
+     * in thread per connection mode.
+     */
+    public SocketProcessor[] getSocketProcessors() {
+        return this.socketProcessors;
+    }
 
-        // 读和写的buffer
-        MessageBuffer readBuffer  = new MessageBuffer();
-        MessageBuffer writeBuffer = new MessageBuffer();
+    private void startThreadPerConnection() throws IOException {
+        // one (virtual) thread per connection - all connections share one read and one write buffer.
+        ExecutorService socketExecutor = this.config.workerExecutor;
+        if(socketExecutor == null){
+            socketExecutor = WorkerDispatcher.createVirtualThreadExecutor();
+            this.ownedExecutor = socketExecutor;
+        }
+        if(socketExecutor == null){
+            this.virtualThreadFallback = true;
+            socketExecutor = Executors.newCachedThreadPool();
+            this.ownedExecutor = socketExecutor;
+        }
 
-        // 处理请求的线程
-        this.socketProcessor = new SocketProcessor(socketQueue, readBuffer, writeBuffer,  this.messageReaderFactory, this.messageProcessor);
+        this.blockingSocketProcessor = new BlockingSocketProcessor(
+                createMessageBuffer("read"), createMessageBuffer("write"),
+                this.messageReaderFactory, this.messageProcessor, socketExecutor, this.config);
 
-        Thread accepterThread  = new Thread(this.socketAccepter);
-        Thread processorThread = new Thread(this.socketProcessor);
+        this.socketAccepter = new SocketAccepter(tcpPort, this.blockingSocketProcessor, this.config);
 
+        Thread accepterThread  = new Thread(this.socketAccepter, "SocketAccepter");
         accepterThread.start();
-        processorThread.start();
+    }
+
+    private ExecutorService createWorkerExecutor() {
+        if(this.config.workerExecutor != null){
+            return this.config.workerExecutor;
+        }
+        if(this.config.virtualWorkerThreads){
+            ExecutorService executor = WorkerDispatcher.createVirtualThreadExecutor();
+            if(executor != null){
+                return executor;
+            }
+            this.virtualThreadFallback = true;
+        }
+        if(this.config.workerThreadCount > 0 || this.config.virtualWorkerThreads){
+            return WorkerDispatcher.createExecutor(this.config.workerThreadCount, false);
+        }
+        return null;
+    }
+
+    private MessageBuffer createMessageBuffer(String name) throws IOException {
+        switch(this.config.messageBufferType){
+            case ServerConfig.MESSAGE_BUFFER_DIRECT      : return new MessageBuffer(this.config.messageBufferConfig, true);
+            case ServerConfig.MESSAGE_BUFFER_MAPPED_FILE : {
+                File directory = new File(this.config.messageBufferDirectory != null ? this.config.messageBufferDirectory : System.getProperty("java.io.tmpdir"));
+                return new MessageBuffer(this.config.messageBufferConfig, new File(directory, "nioserver-" + this.tcpPort + "-" + name + ".buf"));
+            }
+            default : return new MessageBuffer(this.config.messageBufferConfig, false);
+        }
     }
 
 
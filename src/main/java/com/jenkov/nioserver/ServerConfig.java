@@ -0,0 +1,118 @@
+package com.jenkov.nioserver;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Configuration values for a Server. Change the fields before calling Server.start() - changes made after the
+ * server has started are not picked up.
+ */
+public class ServerConfig {
+
+    public static final int SERVER_MODE_SELECTOR              = 1;
+    public static final int SERVER_MODE_THREAD_PER_CONNECTION = 2;
+
+    public static final int SOCKET_DISTRIBUTION_ROUND_ROBIN       = 1;
+    public static final int SOCKET_DISTRIBUTION_LEAST_CONNECTIONS = 2;
+
+    public static final int ACCEPT_OVERLOAD_PAUSE  = 1;
+    public static final int ACCEPT_OVERLOAD_REJECT = 2;
+    public static final int ACCEPT_OVERLOAD_BLOCK  = 3;
+
+    public static final int MESSAGE_BUFFER_HEAP        = 1;
+    public static final int MESSAGE_BUFFER_DIRECT      = 2;
+    public static final int MESSAGE_BUFFER_MAPPED_FILE = 3;
+
+    // selector based SocketProcessors, or one (virtual) thread per connection via the BlockingSocketProcessor.
+    public int             serverMode             = SERVER_MODE_SELECTOR;
+
+    // number of SocketProcessor threads. Each has its own read + write MessageBuffer (up to 2 x messageBufferConfig.maxMemory).
+    public int             socketProcessorCount   = 1;
+    // how the SocketAccepter spreads new sockets over the processors.
+    public int             socketDistribution     = SOCKET_DISTRIBUTION_ROUND_ROBIN;
+
+    // where the read and write MessageBuffers keep their memory.
+    public int             messageBufferType      = MESSAGE_BUFFER_HEAP;
+    // directory of the memory mapped files - null = the temp directory.
+    public String          messageBufferDirectory = null;
+    // size classes and memory cap of each MessageBuffer.
+    public MessageBufferConfig messageBufferConfig = new MessageBufferConfig();
+
+    // max accepted sockets waiting to be taken by the SocketProcessor.
+    public int             socketQueueCapacity    = 1024;
+    // listen backlog of the server socket - connections the kernel queues while the accepter is busy or paused.
+    public int             acceptBacklog          = 1024;
+    // max connections accepted per selector wakeup.
+    public int             acceptBatchSize        = 64;
+    // socket queue full: PAUSE = stop accepting until there is room, REJECT = close the new connection,
+    // BLOCK = wait in the accepter thread until there is room.
+    public int             acceptOverloadPolicy   = ACCEPT_OVERLOAD_PAUSE;
+    // how long the accepter waits before checking a full socket queue again.
+    public long            acceptPauseMillis      = 10;
+
+    // max messages enqueued via the WriteProxy and not yet taken by the SocketProcessor.
+    public int             outboundQueueCapacity  = 16 * 1024;
+    // max messages queued for writing per socket. Responses beyond it are held back in the socket's write backlog,
+    // and the socket is not read from until the backlog has drained.
+    public int             writeQueueCapacity     = 128;
+    // max responses held back in the write backlog of a socket. Sockets exceeding it are closed.
+    public int             writeBacklogCapacity   = 4 * 1024;
+    // stop reading from a socket while more than this many response bytes are queued for it - write backlog included. 0 = never.
+    public long            writeHighWatermark     = 256 * 1024;
+    // read from the socket again once its queued response bytes have dropped to this.
+    public long            writeLowWatermark      = 64 * 1024;
+    // stop reading from all sockets of a SocketProcessor while more than this many response bytes are queued for them. 0 = never.
+    public long            globalWriteHighWatermark = 64 * 1024 * 1024;
+    // read from the sockets again once the queued response bytes of the SocketProcessor have dropped to this.
+    public long            globalWriteLowWatermark  = 32 * 1024 * 1024;
+
+    // true = size the first block of each message read from a socket from the sizes of its recent reads - see AdaptiveReadSize.
+    // false = always start with the smallest block, and copy the message into larger blocks as it grows.
+    public boolean         adaptiveReadSize       = true;
+    // max bytes read from one socket per SocketProcessor cycle - the rest is read in the next cycle. 0 = no limit.
+    public int             maxReadBytesPerCycle   = 256 * 1024;
+
+    // per cycle budgets of a SocketProcessor - work beyond them waits for the next cycle, so one kind of work cannot
+    // starve the others. 0 = no limit.
+    // channel reads per socket per cycle.
+    public int             maxReadCallsPerCycle   = 16;
+    // bytes read from all sockets together per cycle - checked before each socket.
+    public long            maxReadBytesTotalPerCycle = 4 * 1024 * 1024;
+    // messages passed on to the message processor per cycle - checked before each socket.
+    public int             maxMessagesPerCycle    = 1024;
+    // new sockets taken from the socket queue per cycle.
+    public int             maxNewSocketsPerCycle  = 256;
+    // true = write pending responses before reading, and write to sockets ready for writing outside the budgets.
+    public boolean         writePriority          = true;
+
+    // max body chunks of a streamed message per socket being processed or kept by an IStreamingMessageProcessor.
+    // Reading from the socket stops while it has this many.
+    public int             maxBodyChunksInFlight  = 4;
+
+    // close connections with no request in progress and nothing to write after this long. 0 = never.
+    public long            idleTimeoutMillis      = 60 * 1000;
+    // close connections which take longer than this to send the headers of a request (slowloris). 0 = never.
+    public long            headerTimeoutMillis    = 10 * 1000;
+    // close connections which do not take any of their pending responses for this long. 0 = never.
+    public long            writeTimeoutMillis     = 30 * 1000;
+    // granularity of the timeouts above - the tick of the SocketProcessor's timer wheel.
+    public long            timerTickMillis        = 100;
+
+    // > 0 = run IMessageProcessor.process() on a pool of this many worker threads. 0 = on the SocketProcessor thread.
+    public int             workerThreadCount      = 0;
+    // true = run IMessageProcessor.process() on virtual threads (Java 21+).
+    public boolean         virtualWorkerThreads   = false;
+    // custom executor to run IMessageProcessor.process() on - overrides the two above.
+    public ExecutorService workerExecutor         = null;
+
+    // true = one selector per SocketProcessor: responses are written right away, and OP_WRITE is set via interestOps()
+    // only while a socket has data it could not write. false = a second selector sockets are registered with for
+    // writing while they have data to write, and cancelled from when they have none.
+    public boolean         singleSelector         = true;
+    // > 0 = old polling loop: sleep this long between cycles. 0 = block in select() until there is work.
+    public long            pollIntervalMillis     = 0;
+    // max time the SocketProcessor blocks in select() when it has nothing to do.
+    public long            maxSelectTimeoutMillis = 1000;
+    // select() timeout while partially written messages wait for socket buffer space - without singleSelector only.
+    public long            writeRetryMillis       = 1;
+
+}
@@ -2,7 +2,9 @@ package com.jenkov.nioserver;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Queue;
 
 /**
  * Created by jjenkov on 16-10-2015.
@@ -19,6 +21,34 @@ public class Socket {
     public MessageWriter  messageWriter = null;
 
     public boolean endOfStreamReached = false;
+    public boolean closeRequested     = false; // the last request has been read - e.g. "Connection: close". The socket is closed once it has been answered.
+    public boolean blocking           = false; // true = the channel is in blocking mode (thread per connection mode).
+
+    // flow control of streamed message bodies - only used by the SocketProcessor thread.
+    public int     bodyChunksInFlight = 0;     // body chunks being processed or kept by the message processor.
+    public boolean readPaused         = false; // true = OP_READ is off until bodyChunksInFlight drops below the max.
+
+    // write backpressure - only used by the SocketProcessor thread.
+    public boolean writePaused        = false; // true = OP_READ is off until the queued responses drop to the low watermark.
+    public Queue<Message> writeBacklog = null;  // responses the full write queue could not take yet, in order. OP_READ is off while it has any.
+    public long    writeBacklogBytes  = 0;     // bytes of the responses in the writeBacklog.
+
+    // timeouts - only used by the SocketProcessor thread.
+    public int     messagesInFlight   = 0;     // messages read and not processed yet.
+    public long    lastReadTime       = 0;
+    public long    lastWriteTime      = 0;     // last write, or when the write queue became non-empty.
+    public long    headerStartTime    = 0;     // when the reader started on the headers of a request - 0 = not reading headers.
+    public long    timerDeadline      = 0;     // deadline of the timer in the SocketProcessor's TimerWheel - 0 = none.
+
+    // read sizing - only used by the thread reading from the socket.
+    public AdaptiveReadSize readSize      = null;              // guesses the size of the next read - null = always start with the smallest block.
+    public int              maxReadBytes  = Integer.MAX_VALUE; // max bytes read by one call of read() - one per SocketProcessor cycle.
+    public int              maxReadCalls  = Integer.MAX_VALUE; // max channel reads by one call of read().
+    public long             bytesRead     = 0;                 // total bytes read from the channel.
+
+    public boolean readyQueued        = false; // true = in the ready queue of the SocketProcessor.
+
+    public WorkerDispatcher.Lane workerLane = null; // processes the messages of this socket in order, when a worker pool is used.
 
     public Socket() {
     }
@@ -28,22 +58,78 @@ public class Socket {
     }
 
     public int read(ByteBuffer byteBuffer) throws IOException {
+        int limit = byteBuffer.limit();
+        if(byteBuffer.remaining() > this.maxReadBytes){
+            byteBuffer.limit(byteBuffer.position() + this.maxReadBytes);
+        }
         int bytesRead = this.socketChannel.read(byteBuffer);
-        int totalBytesRead = bytesRead;
+        int totalBytesRead = Math.max(0, bytesRead);
+        int readCalls      = 1;
 
-        while(bytesRead > 0){
-            // 一直读，全撸出来
+        while(bytesRead > 0 && !this.blocking && byteBuffer.hasRemaining() && readCalls++ < this.maxReadCalls){
+            // 一直读，全撸出来 - a blocking socket would block here until the client sends more.
             bytesRead = this.socketChannel.read(byteBuffer);
-            totalBytesRead += bytesRead;
+            totalBytesRead += Math.max(0, bytesRead);
         }
         if(bytesRead == -1){
             // 读到末尾了
             this.endOfStreamReached = true;
         }
+        byteBuffer.limit(limit);
+        this.bytesRead += totalBytesRead;
 
         return totalBytesRead;
     }
 
+    /**
+     * Reads from the channel straight into the free section of the message, without copying via an intermediate
+     * ByteBuffer. When the section of the message fills up, the message is expanded via its MessageBuffer - large
+     * messages get blocks appended, and the reads continue in the appended block.
+     *
+     * A non-blocking socket reads until no more data is available, or until maxReadBytes have been read or maxReadCalls
+     * reads have been made - the rest is read in the next cycle, so one fast client cannot keep the SocketProcessor
+     * from the other sockets. A blocking socket returns after the first read that returns data.
+     *
+     * If the message cannot be expanded any further it can never be completed, so the socket is marked as having
+     * reached end of stream - it will then be closed.
+     *
+     * @param message The message to read into.
+     * @return The number of bytes read.
+     */
+    public int read(Message message) throws IOException {
+        int totalBytesRead = 0;
+        int readCalls      = 0;
+
+        while(true){
+            if(message.isFull() && !message.expand()){
+                this.endOfStreamReached = true;
+                return totalBytesRead;
+            }
+
+            ByteBuffer freeSection = message.getFreeSectionByteBuffer();
+            if(freeSection.remaining() > this.maxReadBytes - totalBytesRead){
+                freeSection.limit(freeSection.position() + this.maxReadBytes - totalBytesRead);
+            }
+            int bytesRead = this.socketChannel.read(freeSection);
+            if(bytesRead == -1){
+                // 读到末尾了
+                this.endOfStreamReached = true;
+                return totalBytesRead;
+            }
+            if(bytesRead == 0){
+                return totalBytesRead;
+            }
+
+            message.length += bytesRead;
+            totalBytesRead += bytesRead;
+            this.bytesRead += bytesRead;
+
+            if(this.blocking || totalBytesRead >= this.maxReadBytes || ++readCalls >= this.maxReadCalls){
+                return totalBytesRead; // another read would block until the client sends more - or the cycle's share is used up.
+            }
+        }
+    }
+
     public int write(ByteBuffer byteBuffer) throws IOException{
         int bytesWritten      = this.socketChannel.write(byteBuffer);
         int totalBytesWritten = bytesWritten;
@@ -57,5 +143,43 @@ public class Socket {
         return totalBytesWritten;
     }
 
+    /**
+     * Sends a section of the file straight from the file to the socket - sendfile() on Linux, so the bytes are not
+     * copied into a buffer of the JVM.
+     *
+     * @return The number of bytes sent - less than count if the socket buffer is full.
+     */
+    public long transferFrom(FileChannel fileChannel, long position, long count) throws IOException {
+        long bytesWritten      = fileChannel.transferTo(position, count, this.socketChannel);
+        long totalBytesWritten = bytesWritten;
+
+        while(bytesWritten > 0 && totalBytesWritten < count){
+            bytesWritten = fileChannel.transferTo(position + totalBytesWritten, count - totalBytesWritten, this.socketChannel);
+            totalBytesWritten += bytesWritten;
+        }
+
+        return totalBytesWritten;
+    }
+
+    /**
+     * Gathering write - writes the ByteBuffers in order with as few system calls as possible.
+     *
+     * @param byteBuffers The ByteBuffers to write.
+     * @param length      The number of ByteBuffers to write, starting from index 0.
+     * @return The total number of bytes written.
+     */
+    public long write(ByteBuffer[] byteBuffers, int length) throws IOException{
+        long bytesWritten      = this.socketChannel.write(byteBuffers, 0, length);
+        long totalBytesWritten = bytesWritten;
+
+        // 一直写，直到最后一个byteBuffer被撸空
+        while(bytesWritten > 0 && byteBuffers[length - 1].hasRemaining()){
+            bytesWritten = this.socketChannel.write(byteBuffers, 0, length);
+            totalBytesWritten += bytesWritten;
+        }
+
+        return totalBytesWritten;
+    }
+
 
 }
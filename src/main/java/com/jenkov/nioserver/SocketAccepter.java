@@ -2,54 +2,281 @@ package com.jenkov.nioserver;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
 
 /**
+ * Accepts new connections on a non-blocking ServerSocketChannel and hands them to the SocketProcessors.
+ *
+ * Each time the selector reports pending connections, up to ServerConfig.acceptBatchSize connections are accepted
+ * in one go, and each processor that got new sockets is woken up once per batch. When the inbound socket queue of
+ * a processor is full, ServerConfig.acceptOverloadPolicy decides what happens - see ServerConfig.
+ *
  * Created by jjenkov on 19-10-2015.
  */
 public class SocketAccepter implements Runnable{
 
+    private static final long RATE_WINDOW_MILLIS = 1000;
+
     private int tcpPort = 0;
-    private ServerSocketChannel serverSocket = null;
+    private volatile int localPort = 0; // the port bound to - differs from tcpPort if that is 0.
+    private ServerSocketChannel serverSocket   = null;
+    private volatile Selector   acceptSelector = null;
+    private volatile boolean    stopped        = false;
+
+    private SocketProcessor[] socketProcessors   = null;
+    private int               socketDistribution = ServerConfig.SOCKET_DISTRIBUTION_ROUND_ROBIN;
+    private int               nextProcessorIndex = 0;
+    private boolean[]         wakeupNeeded       = null;
+
+    private BlockingSocketProcessor blockingSocketProcessor = null;
+
+    private int  acceptBacklog        = 0;
+    private int  acceptBatchSize      = 0;
+    private int  acceptOverloadPolicy = ServerConfig.ACCEPT_OVERLOAD_PAUSE;
+    private long acceptPauseMillis    = 0;
+
+    // accepted socket waiting for room in a full socket queue - ACCEPT_OVERLOAD_PAUSE only.
+    private Socket          pendingSocket    = null;
+    private SocketProcessor pendingProcessor = null;
+
+    // metrics - written by the accepter thread only.
+    private volatile long   acceptedCount = 0;
+    private volatile long   rejectedCount = 0;
+    private volatile double acceptRate    = 0;
+    private long            rateWindowStart         = 0;
+    private long            rateWindowAcceptedCount = 0;
+
+    public SocketAccepter(int tcpPort, SocketProcessor socketProcessor)  {
+        this(tcpPort, new SocketProcessor[]{ socketProcessor }, new ServerConfig());
+    }
+
+    /**
+     * @param socketProcessors   The processors accepted sockets are spread over.
+     * @param config             The socket distribution, backlog, batch size and overload policy to use.
+     */
+    public SocketAccepter(int tcpPort, SocketProcessor[] socketProcessors, ServerConfig config)  {
+        this(tcpPort, config);
+        this.socketProcessors   = socketProcessors;
+        this.socketDistribution = config.socketDistribution;
+        this.wakeupNeeded       = new boolean[socketProcessors.length];
+    }
+
+    /**
+     * Thread per connection mode - every accepted socket is handed to the BlockingSocketProcessor.
+     */
+    public SocketAccepter(int tcpPort, BlockingSocketProcessor blockingSocketProcessor, ServerConfig config)  {
+        this(tcpPort, config);
+        this.blockingSocketProcessor = blockingSocketProcessor;
+    }
+
+    private SocketAccepter(int tcpPort, ServerConfig config) {
+        this.tcpPort              = tcpPort;
+        this.acceptBacklog        = config.acceptBacklog;
+        this.acceptBatchSize      = Math.max(1, config.acceptBatchSize);
+        this.acceptOverloadPolicy = config.acceptOverloadPolicy;
+        this.acceptPauseMillis    = Math.max(1, config.acceptPauseMillis);
+    }
 
-    private Queue socketQueue = null;
 
-    public SocketAccepter(int tcpPort, Queue socketQueue)  {
-        this.tcpPort     = tcpPort;
-        this.socketQueue = socketQueue;
+    /** Total number of connections accepted. */
+    public long getAcceptedCount() {
+        return this.acceptedCount;
     }
 
+    /** Number of connections closed right after accept because the socket queue was full (ACCEPT_OVERLOAD_REJECT). */
+    public long getRejectedCount() {
+        return this.rejectedCount;
+    }
 
+    /** Connections accepted per second, measured over the last completed window of about one second. */
+    public double getAcceptRate() {
+        return this.acceptRate;
+    }
+
+
+    /**
+     * @return The port the server socket is bound to - e.g. the port picked by the OS for tcpPort 0. 0 until the
+     *         accepter thread has bound the server socket.
+     */
+    public int getLocalPort() {
+        return this.localPort;
+    }
 
     public void run() {
+        SelectionKey acceptKey = null;
         try{
             this.serverSocket = ServerSocketChannel.open();
-            this.serverSocket.bind(new InetSocketAddress(tcpPort));
+            this.serverSocket.configureBlocking(false);
+            this.serverSocket.bind(new InetSocketAddress(tcpPort), this.acceptBacklog);
+            this.localPort = ((InetSocketAddress) this.serverSocket.getLocalAddress()).getPort();
+
+            this.acceptSelector = Selector.open();
+            acceptKey = this.serverSocket.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
         } catch(IOException e){
             e.printStackTrace();
             return;
         }
 
+        this.rateWindowStart = System.nanoTime();
 
-        while(true){
+        while(!this.stopped){
             try{
-                // ServerSocketChannel的accept方法，跟ServerSocket一样
-                SocketChannel socketChannel = this.serverSocket.accept();
+                if(this.pendingSocket != null){
+                    // paused - the kernel queues new connections in the listen backlog meanwhile.
+                    Thread.sleep(this.acceptPauseMillis);
+                    updateAcceptRate();
+                    if(!offerPendingSocket()){
+                        continue;
+                    }
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
 
-                System.out.println("Socket accepted: " + socketChannel);
+                this.acceptSelector.select(RATE_WINDOW_MILLIS);
+                this.acceptSelector.selectedKeys().clear();
 
-                // 新连接的Socket加入队列
-                //todo check if the queue can even accept more sockets.
-                this.socketQueue.add(new Socket(socketChannel));
+                acceptBatch();
+
+                if(this.pendingSocket != null){
+                    acceptKey.interestOps(0);
+                }
+                updateAcceptRate();
 
             } catch(IOException e){
                 e.printStackTrace();
+            } catch(InterruptedException e){
+                break;
             }
 
         }
 
+        try{
+            if(this.pendingSocket != null){
+                this.pendingSocket.socketChannel.close();
+            }
+            this.acceptSelector.close();
+            this.serverSocket.close();
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Makes the accepter thread close the server socket and exit. Safe to call from any thread.
+     */
+    public void stop() {
+        this.stopped = true;
+        Selector acceptSelector = this.acceptSelector;
+        if(acceptSelector != null){
+            acceptSelector.wakeup();
+        }
+    }
+
+    private void acceptBatch() throws IOException, InterruptedException {
+        for(int i=0; i<this.acceptBatchSize && this.pendingSocket == null; i++){
+            // ServerSocketChannel的accept方法 - non-blocking, returns null when no more connections are waiting.
+            SocketChannel socketChannel = this.serverSocket.accept();
+            if(socketChannel == null){
+                break;
+            }
+            this.acceptedCount++;
+
+            if(this.blockingSocketProcessor != null){
+                this.blockingSocketProcessor.addSocket(new Socket(socketChannel));
+                continue;
+            }
+
+            // 新连接的Socket加入队列 of the processor chosen to own it.
+            handOver(new Socket(socketChannel), nextSocketProcessorIndex());
+        }
+
+        // one wakeup per processor and batch.
+        if(this.socketProcessors != null){
+            for(int i=0; i<this.socketProcessors.length; i++){
+                if(this.wakeupNeeded[i]){
+                    this.wakeupNeeded[i] = false;
+                    this.socketProcessors[i].wakeup();
+                }
+            }
+        }
+    }
+
+    private void handOver(Socket socket, int processorIndex) throws IOException, InterruptedException {
+        SocketProcessor socketProcessor = this.socketProcessors[processorIndex];
+        if(socketProcessor.getInboundSocketQueue().offer(socket)){
+            this.wakeupNeeded[processorIndex] = true;
+            return;
+        }
+
+        // the socket queue is full.
+        switch(this.acceptOverloadPolicy){
+            case ServerConfig.ACCEPT_OVERLOAD_REJECT : {
+                this.rejectedCount++;
+                socket.socketChannel.close();
+                return;
+            }
+            case ServerConfig.ACCEPT_OVERLOAD_BLOCK : {
+                while(!socketProcessor.getInboundSocketQueue().offer(socket)){
+                    if(this.stopped){
+                        socket.socketChannel.close();
+                        return;
+                    }
+                    socketProcessor.wakeup();
+                    Thread.sleep(this.acceptPauseMillis);
+                }
+                this.wakeupNeeded[processorIndex] = true;
+                return;
+            }
+            default : {
+                this.pendingSocket    = socket;
+                this.pendingProcessor = socketProcessor;
+                socketProcessor.wakeup();
+            }
+        }
+    }
+
+    private boolean offerPendingSocket() {
+        if(!this.pendingProcessor.getInboundSocketQueue().offer(this.pendingSocket)){
+            return false;
+        }
+        this.pendingProcessor.wakeup();
+        this.pendingSocket    = null;
+        this.pendingProcessor = null;
+        return true;
+    }
+
+    private void updateAcceptRate() {
+        long now     = System.nanoTime();
+        long elapsed = now - this.rateWindowStart;
+        if(elapsed >= RATE_WINDOW_MILLIS * 1_000_000){
+            this.acceptRate              = (this.acceptedCount - this.rateWindowAcceptedCount) * 1_000_000_000.0 / elapsed;
+            this.rateWindowStart         = now;
+            this.rateWindowAcceptedCount = this.acceptedCount;
+        }
+    }
+
+    private int nextSocketProcessorIndex() {
+        if(this.socketProcessors.length == 1){
+            return 0;
+        }
+
+        if(this.socketDistribution == ServerConfig.SOCKET_DISTRIBUTION_LEAST_CONNECTIONS){
+            int leastLoaded      = 0;
+            int leastSocketCount = this.socketProcessors[0].getSocketCount();
+            for(int i=1; i<this.socketProcessors.length; i++){
+                int socketCount = this.socketProcessors[i].getSocketCount();
+                if(socketCount < leastSocketCount){
+                    leastLoaded      = i;
+                    leastSocketCount = socketCount;
+                }
+            }
+            return leastLoaded;
+        }
+
+        int processorIndex = this.nextProcessorIndex;
+        this.nextProcessorIndex = (this.nextProcessorIndex + 1) % this.socketProcessors.length;
+        return processorIndex;
     }
 }
@@ -6,12 +6,15 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Created by jjenkov on 16-10-2015.
  */
 public class SocketProcessor implements Runnable {
 
+    public static final long SOCKET_ID_RANGE = 1L << 40; // each SocketProcessor hands out socket ids from its own range of this size.
+
     private Queue<Socket>  inboundSocketQueue   = null;
 
     private MessageBuffer  readMessageBuffer    = null; //todo   Not used now - but perhaps will be later - to check for space in the buffer before reading from sockets
@@ -19,58 +22,347 @@ public class SocketProcessor implements Runnable {
 
     private IMessageReaderFactory messageReaderFactory = null;
 
-    private Queue<Message> outboundMessageQueue = new LinkedList<>(); //todo use a better / faster queue.
+    private Queue<Message> outboundMessageQueue = null; // lock-free - the WriteProxy may enqueue from any thread.
+    private Queue<Message> releasedMessageQueue = null; // processed messages handed back from other threads.
+    private Queue<Long>    closeRequestQueue    = null; // ids of sockets to close, requested from other threads.
 
-    private Map<Long, Socket> socketMap         = new HashMap<>();
+    private SocketTable    socketTable          = null; // the open sockets by socket id.
 
-    private ByteBuffer readByteBuffer  = ByteBuffer.allocate(1024 * 1024); // 1MB
-    private ByteBuffer writeByteBuffer = ByteBuffer.allocate(1024 * 1024);
-    private Selector   readSelector    = null;
-    private Selector   writeSelector   = null;
+    private ByteBuffer readByteBuffer  = null; // only for IMessageReaders which copy - the HttpMessageReader reads straight into its messages.
+    private Selector   readSelector    = null; // also selects OP_WRITE in single selector mode.
+    private Selector   writeSelector   = null; // null in single selector mode.
+    private boolean    singleSelector  = true;
 
     private IMessageProcessor messageProcessor = null;
     private WriteProxy        writeProxy       = null;
+    private WorkerDispatcher  workerDispatcher = null; // null = process messages on this thread.
 
-    private long              nextSocketId = 16 * 1024; //start incoming socket ids from 16K - reserve bottom ids for pre-defined sockets (servers).
-
-    private Set<Socket> emptyToNonEmptySockets = new HashSet<>();
+    private Set<Socket> emptyToNonEmptySockets = new HashSet<>(); // single selector mode: sockets to write to right away.
     private Set<Socket> nonEmptyToEmptySockets = new HashSet<>();
+    private Set<Socket> closingSockets         = new HashSet<>(); // closed once the last request has been answered.
+
+    private Deque<SelectionKey> readyKeys      = new ArrayDeque<>(); // selected keys not handled yet - oldest first, so deferred sockets go first next cycle.
+
+    private TimerWheel<Socket> timerWheel     = null; // idle, header and write timeouts of the sockets.
+    private List<Socket>       expiredSockets = new ArrayList<>();
+    private long               now            = 0;    // System.currentTimeMillis() at the start of the cycle.
+
+    private long pollIntervalMillis     =    0;
+    private long maxSelectTimeoutMillis = 1000;
+    private long writeRetryMillis       =    1;
+
+    private int  writeQueueCapacity     =  128;
+    private int  writeBacklogCapacity   = 4 * 1024;
+    private int  maxBodyChunksInFlight  =    4;
+
+    // per cycle budgets - once one is used up, the rest of the work waits for the next cycle.
+    private int     maxNewSocketsPerCycle = 0;
+    private long    maxReadBytesTotal     = 0; // of all sockets together.
+    private int     maxMessagesPerCycle   = 0;
+    private int     maxReadCallsPerSocket = 0;
+    private boolean writePriority         = true;
+    private volatile long deferredCycleCount = 0; // cycles which left ready sockets for the next cycle.
+
+    private boolean adaptiveReadSize     = true;
+    private int     minReadSize          = 0;
+    private int     maxReadSize          = 0;
+    private int     maxReadBytesPerCycle = 0;
+
+    private long    writeHighWatermark       = 0;
+    private long    writeLowWatermark        = 0;
+    private long    globalWriteHighWatermark = 0;
+    private long    globalWriteLowWatermark  = 0;
+    private boolean globalWritePaused        = false; // true = OP_READ is off for all sockets.
+
+    // write backpressure metrics - written by the SocketProcessor thread only.
+    private volatile long writeBytesQueued       = 0; // response bytes queued in the MessageWriters of all sockets.
+    private volatile int  writePausedSocketCount = 0;
+    private volatile long writePauseCount        = 0;
+    private volatile long globalWritePauseCount  = 0;
+    private volatile long writeQueueFullCount    = 0;
+    private volatile long writeBacklogFullCount  = 0;
+
+    private long idleTimeoutMillis      =    0;
+    private long headerTimeoutMillis    =    0;
+    private long writeTimeoutMillis     =    0;
+
+    // socket metrics - written by the SocketProcessor thread only.
+    private volatile long timedOutSocketCount = 0;
+    private volatile long closedSocketCount   = 0;
+    private volatile long processorErrorCount = 0;
+
+    private volatile Thread  processorThread = null;
+    private volatile boolean stopped         = false;
+    private volatile int    socketCount     = 0;    // number of open sockets owned by this processor - read by the SocketAccepter.
 
 
     public SocketProcessor(Queue<Socket> inboundSocketQueue, MessageBuffer readMessageBuffer, MessageBuffer writeMessageBuffer, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor) throws IOException {
+        this(inboundSocketQueue, readMessageBuffer, writeMessageBuffer, messageReaderFactory, messageProcessor, new ServerConfig(), 0);
+    }
+
+    /**
+     * @param processorIndex The index of this processor among the processors of a Server. Socket ids handed out by
+     *                       this processor lie within processorIndex * SOCKET_ID_RANGE and the next range, so ids
+     *                       are unique across all processors of a Server - see SocketTable.
+     */
+    public SocketProcessor(Queue<Socket> inboundSocketQueue, MessageBuffer readMessageBuffer, MessageBuffer writeMessageBuffer, IMessageReaderFactory messageReaderFactory, IMessageProcessor messageProcessor, ServerConfig config, int processorIndex) throws IOException {
         // 所有accept到的Socket都放到了这个队列里
         this.inboundSocketQueue = inboundSocketQueue;
 
         // 小中大三种规格内存
         this.readMessageBuffer    = readMessageBuffer;
         this.writeMessageBuffer   = writeMessageBuffer;
-        this.writeProxy           = new WriteProxy(writeMessageBuffer, this.outboundMessageQueue);
+        this.outboundMessageQueue = new RingBufferMpsc<>(config.outboundQueueCapacity);
+        this.writeProxy           = new WriteProxy(writeMessageBuffer, this.outboundMessageQueue, this);
+        this.writeQueueCapacity   = config.writeQueueCapacity;
+        this.writeBacklogCapacity = config.writeBacklogCapacity;
+        this.releasedMessageQueue = new RingBufferMpsc<>(config.outboundQueueCapacity);
+        this.closeRequestQueue    = new RingBufferMpsc<>(config.outboundQueueCapacity);
 
         this.messageReaderFactory = messageReaderFactory;
 
         this.messageProcessor     = messageProcessor;
 
-        // 读和写分别开了个Selector
+        // 读和写分别开了个Selector - or one for both, with OP_WRITE set only while a socket has data it could not write.
+        this.singleSelector       = config.singleSelector;
         this.readSelector         = Selector.open();
-        this.writeSelector        = Selector.open();
+        this.writeSelector        = this.singleSelector ? null : Selector.open();
+
+        this.pollIntervalMillis     = config.pollIntervalMillis;
+        this.maxSelectTimeoutMillis = config.maxSelectTimeoutMillis;
+        this.writeRetryMillis       = config.writeRetryMillis;
+        this.maxBodyChunksInFlight  = Math.max(1, config.maxBodyChunksInFlight);
+
+        this.maxNewSocketsPerCycle  = positiveOrMax(config.maxNewSocketsPerCycle);
+        this.maxReadBytesTotal      = config.maxReadBytesTotalPerCycle > 0 ? config.maxReadBytesTotalPerCycle : Long.MAX_VALUE;
+        this.maxMessagesPerCycle    = positiveOrMax(config.maxMessagesPerCycle);
+        this.maxReadCallsPerSocket  = positiveOrMax(config.maxReadCallsPerCycle);
+        this.writePriority          = config.writePriority;
+
+        // the first block of a message is sized between the smallest block and the largest block messages are copied to.
+        this.adaptiveReadSize       = config.adaptiveReadSize;
+        this.minReadSize            = config.messageBufferConfig.minBlockSize;
+        this.maxReadSize            = Math.min(config.messageBufferConfig.chainBlockSize, config.messageBufferConfig.maxBlockSize);
+        this.maxReadBytesPerCycle   = config.maxReadBytesPerCycle > 0 ? config.maxReadBytesPerCycle : Integer.MAX_VALUE;
+        this.readByteBuffer         = ByteBuffer.allocate(Math.min(this.maxReadBytesPerCycle, 64 * 1024));
+
+        this.writeHighWatermark       = config.writeHighWatermark;
+        this.writeLowWatermark        = Math.min(config.writeLowWatermark, config.writeHighWatermark);
+        this.globalWriteHighWatermark = config.globalWriteHighWatermark;
+        this.globalWriteLowWatermark  = Math.min(config.globalWriteLowWatermark, config.globalWriteHighWatermark);
+
+        this.idleTimeoutMillis      = config.idleTimeoutMillis;
+        this.headerTimeoutMillis    = config.headerTimeoutMillis;
+        this.writeTimeoutMillis     = config.writeTimeoutMillis;
+        this.now                    = System.currentTimeMillis();
+        this.timerWheel             = new TimerWheel<>(1024, config.timerTickMillis, this.now);
+
+        this.socketTable = new SocketTable(processorIndex * SOCKET_ID_RANGE, 1024);
+    }
+
+    private static int positiveOrMax(int value) {
+        return value > 0 ? value : Integer.MAX_VALUE; // 0 = no limit.
+    }
+
+    /**
+     * Makes the SocketProcessor run IMessageProcessor.process() on the given executor instead of on its own thread.
+     * Must be called before the SocketProcessor is started.
+     *
+     * @param workerExecutor The executor to process messages on. null = process messages on the SocketProcessor thread.
+     */
+    public void setWorkerExecutor(ExecutorService workerExecutor) {
+        this.workerDispatcher = workerExecutor != null ? new WorkerDispatcher(workerExecutor, this.messageProcessor, this.writeProxy, this) : null;
+    }
+
+    public Queue<Socket> getInboundSocketQueue() {
+        return this.inboundSocketQueue;
+    }
+
+    /**
+     * @return The number of sockets owned by this processor, including sockets still waiting in the inbound queue.
+     *         Safe to call from other threads (used by the SocketAccepter for least-connections distribution).
+     */
+    public int getSocketCount() {
+        return this.socketCount + this.inboundSocketQueue.size();
+    }
+
+    /**
+     * @return The number of sockets this processor has closed - for any reason. Read by other threads - may be
+     *         slightly out of date.
+     */
+    public long getClosedSocketCount() {
+        return this.closedSocketCount;
+    }
+
+    /**
+     * @return The number of sockets closed because of an idle, header or write timeout. Read by other threads - may
+     *         be slightly out of date.
+     */
+    public long getTimedOutSocketCount() {
+        return this.timedOutSocketCount;
+    }
+
+    /**
+     * @return How many sockets were closed because the message processor threw an exception on one of their messages.
+     */
+    public long getProcessorErrorCount() {
+        return this.processorErrorCount;
+    }
+
+    /**
+     * @return The number of response bytes queued for the sockets of this processor and not written yet.
+     */
+    public long getWriteBytesQueued() {
+        return this.writeBytesQueued;
+    }
+
+    /**
+     * @return The number of sockets not read from right now because too many of their responses are queued.
+     */
+    public int getWritePausedSocketCount() {
+        return this.writePausedSocketCount;
+    }
+
+    /**
+     * @return How often a socket went above ServerConfig.writeHighWatermark.
+     */
+    public long getWritePauseCount() {
+        return this.writePauseCount;
+    }
+
+    /**
+     * @return How often all sockets together went above ServerConfig.globalWriteHighWatermark.
+     */
+    public long getGlobalWritePauseCount() {
+        return this.globalWritePauseCount;
+    }
+
+    /**
+     * @return How often a response found the write queue of its socket full, and was held back until it drained.
+     */
+    public long getWriteQueueFullCount() {
+        return this.writeQueueFullCount;
+    }
+
+    /**
+     * @return How many sockets were closed because their write backlog went above ServerConfig.writeBacklogCapacity.
+     */
+    public long getWriteBacklogFullCount() {
+        return this.writeBacklogFullCount;
+    }
+
+    /**
+     * @return true while no socket is read from because all sockets together have too many responses queued.
+     */
+    public boolean isGlobalWritePaused() {
+        return this.globalWritePaused;
+    }
+
+    /**
+     * @return The number of cycles in which a budget ran out before all ready sockets had been read from.
+     */
+    public long getDeferredCycleCount() {
+        return this.deferredCycleCount;
     }
 
     public void run() {
-        while(true){
+        this.processorThread = Thread.currentThread();
+
+        while(!this.stopped){
             try{
                 executeCycle();
+                awaitWork();
             } catch(IOException e){
                 e.printStackTrace();
             }
+        }
+
+        closeAllSockets();
+    }
+
+    /**
+     * Makes the SocketProcessor thread close all its sockets and selectors and exit. Safe to call from any thread.
+     */
+    public void stop() {
+        this.stopped = true;
+        this.readSelector.wakeup();
+    }
 
+    private void closeAllSockets() {
+        try{
+            for(int i=0; i<this.socketTable.getSlotCount(); i++){
+                Socket socket = this.socketTable.getSocket(i);
+                if(socket != null){
+                    closeSocket(socket);
+                }
+            }
+            Socket newSocket = this.inboundSocketQueue.poll();
+            while(newSocket != null){
+                newSocket.socketChannel.close();
+                newSocket = this.inboundSocketQueue.poll();
+            }
+            this.readSelector.close();
+            if(this.writeSelector != null){
+                this.writeSelector.close();
+            }
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Wakes up the SocketProcessor thread if it is blocked in select(). Called by the SocketAccepter when a new
+     * Socket has been queued, and by the WriteProxy when a message is enqueued from another thread. Calls from the
+     * SocketProcessor thread itself are ignored - the next cycle picks the work up anyway.
+     */
+    public void wakeup() {
+        if(Thread.currentThread() != this.processorThread){
+            this.readSelector.wakeup();
+        }
+    }
+
+    /**
+     * Blocks until there is something to do, or until the select timeout computed from the pending work expires.
+     * Ready keys stay in the selected key set and are handled by readFromSockets() in the next cycle.
+     */
+    private void awaitWork() throws IOException {
+        if(this.pollIntervalMillis > 0){
             try {
-                Thread.sleep(100);
+                Thread.sleep(this.pollIntervalMillis);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            return;
+        }
+
+        long timeout = selectTimeout();
+        if(timeout > 0){
+            this.readSelector.select(timeout);
         }
     }
 
+    /**
+     * @return 0 if there is work that can be done right away, otherwise how many milliseconds to block in select().
+     */
+    long selectTimeout() {
+        if(!this.inboundSocketQueue.isEmpty() || !this.outboundMessageQueue.isEmpty() || !this.releasedMessageQueue.isEmpty() || !this.closeRequestQueue.isEmpty() || !this.readyKeys.isEmpty()){
+            return 0;
+        }
+        if(this.workerDispatcher != null && this.workerDispatcher.hasProcessedMessages()){
+            return 0;
+        }
+        long timeout = this.maxSelectTimeoutMillis;
+        if(this.writeSelector != null && !this.writeSelector.keys().isEmpty()){
+            // messages are waiting for socket buffer space - the write selector is not the one we block on.
+            timeout = this.writeRetryMillis;
+        }
+        long nextTickMillis = this.timerWheel.getNextTickMillis();
+        if(nextTickMillis != Long.MAX_VALUE){
+            timeout = Math.max(0, Math.min(timeout, nextTickMillis - System.currentTimeMillis()));
+        }
+        return timeout;
+    }
+
 
     /**
      * 循环处理：
@@ -80,20 +372,34 @@ public class SocketProcessor implements Runnable {
      * @throws IOException
      */
     public void executeCycle() throws IOException {
+        this.now = System.currentTimeMillis();
+
         // 从inboundSocketQueue捞出来一个Socket,设置reader和writer
         takeNewSockets();
+        if(this.workerDispatcher != null){
+            this.workerDispatcher.releaseProcessedMessages();
+        }
+        releaseHandedBackMessages();
+        closeRequestedSockets();
+        if(this.writePriority){
+            // responses waiting from earlier cycles go out before more requests are read.
+            writeToSockets();
+        }
         readFromSockets();
         // undo
         writeToSockets();
+
+        closeAnsweredSockets();
+        expireTimers();
     }
 
 
     public void takeNewSockets() throws IOException {
         // 从队列里面捞出来一个Socket（封装了一个id号、Channel、reader、writer）
         Socket newSocket = this.inboundSocketQueue.poll();
+        int    taken     = 0;
 
         while(newSocket != null){
-            newSocket.socketId = this.nextSocketId++;
             newSocket.socketChannel.configureBlocking(false);
 
             // 给这个新的Socket设置好reader和writer
@@ -102,65 +408,415 @@ public class SocketProcessor implements Runnable {
             newSocket.messageReader.init(this.readMessageBuffer);
 
             // new了一个writer,但是啥都没干
-            newSocket.messageWriter = new MessageWriter();
+            newSocket.messageWriter = new MessageWriter(this.writeQueueCapacity);
+
+            newSocket.readSize     = this.adaptiveReadSize ? new AdaptiveReadSize(this.minReadSize, this.maxReadSize) : null;
+            newSocket.maxReadBytes = this.maxReadBytesPerCycle;
+            newSocket.maxReadCalls = this.maxReadCallsPerSocket;
 
-            // 注册户口
-            this.socketMap.put(newSocket.socketId, newSocket);
+            // 注册户口 - sets the socket id.
+            this.socketTable.add(newSocket);
+            this.socketCount++;
 
             // 注册到readSelector读事件
             SelectionKey key = newSocket.socketChannel.register(this.readSelector, SelectionKey.OP_READ);
             key.attach(newSocket);
 
-            // 再处理下一个
-            newSocket = this.inboundSocketQueue.poll();
+            newSocket.lastReadTime  = this.now;
+            newSocket.lastWriteTime = this.now;
+            updateTimer(newSocket);
+
+            // 再处理下一个 - an accept storm is taken over several cycles, between which the other sockets are served.
+            newSocket = ++taken < this.maxNewSocketsPerCycle ? this.inboundSocketQueue.poll() : null;
         }
     }
 
 
+    /**
+     * Handles the ready sockets in the order they became ready, until a budget of the cycle is used up - the bytes
+     * read from all sockets, or the messages passed on to the message processor. The budgets are checked before each
+     * socket, so a socket is always read from completely - up to its own limits. Sockets not reached stay queued and
+     * go first in the next cycle.
+     *
+     * With writePriority, sockets ready for writing are written to right away, outside the budgets.
+     */
     public void readFromSockets() throws IOException {
-        // 从readSelector中获得可读的
-        int readReady = this.readSelector.selectNow();
+        // 从readSelector中获得可读的. Keys selected while blocking in awaitWork() are already in the selected key set.
+        this.readSelector.selectNow();
 
-        if(readReady > 0){
-            Set<SelectionKey> selectedKeys = this.readSelector.selectedKeys();
+        Set<SelectionKey> selectedKeys = this.readSelector.selectedKeys();
+        if(!selectedKeys.isEmpty()){
             Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
 
             while(keyIterator.hasNext()) {
                 SelectionKey key = keyIterator.next();
+                Socket socket = (Socket) key.attachment();
 
-                // 从Socket读,读出完整的message放到写队列
-                readFromSocket(key);
+                // single selector mode - the socket has room for the rest of a partially written message.
+                if(this.writePriority && key.isWritable()){
+                    writeToSocket(socket);
+                    if(!key.isValid()){
+                        keyIterator.remove();
+                        continue; // the write failed - the socket is closed.
+                    }
+                }
+                if(!socket.readyQueued && (key.isReadable() || (!this.writePriority && key.isWritable()))){
+                    socket.readyQueued = true;
+                    this.readyKeys.add(key);
+                }
 
                 keyIterator.remove();
             }
             selectedKeys.clear();
         }
+
+        long readBytes = 0;
+        int  messages  = 0;
+        while(!this.readyKeys.isEmpty() && readBytes < this.maxReadBytesTotal && messages < this.maxMessagesPerCycle){
+            SelectionKey key    = this.readyKeys.poll();
+            Socket       socket = (Socket) key.attachment();
+            if(!key.isValid()){
+                continue; // closed since it was selected.
+            }
+            socket.readyQueued = false;
+
+            // 从Socket读,读出完整的message放到写队列
+            if(key.isReadable() && (key.interestOps() & SelectionKey.OP_READ) != 0){
+                long bytesReadBefore = socket.bytesRead;
+                messages  += readFromSocket(key);
+                readBytes += socket.bytesRead - bytesReadBefore;
+            }
+            if(!this.writePriority && key.isValid() && key.isWritable()){
+                writeToSocket(socket);
+            }
+        }
+        if(!this.readyKeys.isEmpty()){
+            this.deferredCycleCount++;
+        }
     }
 
-    private void readFromSocket(SelectionKey key) throws IOException {
+    /**
+     * @return The number of messages passed on to the message processor.
+     */
+    private int readFromSocket(SelectionKey key) throws IOException {
         Socket socket = (Socket) key.attachment();
         // 读操作，这个messageReader是自定义的，有小中大自动扩容功能,有部分消息暂存功能
         socket.messageReader.read(socket, this.readByteBuffer);
+        socket.lastReadTime = this.now;
+        if(!socket.messageReader.isReadingHeaders()){
+            socket.headerStartTime = 0;
+        } else if(socket.headerStartTime == 0){
+            socket.headerStartTime = this.now;
+        }
 
         // messageReader是自定义的，从messageReader中获取看是否有读完整的消息
         List<Message> fullMessages = socket.messageReader.getMessages();
-        if(fullMessages.size() > 0){
+        int           messageCount = fullMessages.size();
+        if(messageCount > 0){
             // 如果有完整的消息，就可以进入messageProcessor进行处理了
+            boolean processorFailed = false;
             for(Message message : fullMessages){
                 message.socketId = socket.socketId;
-                // 处理下,放到写队列
-                this.messageProcessor.process(message, this.writeProxy);  //the message processor will eventually push outgoing messages into an IMessageWriter for this socket.
+                socket.messagesInFlight++;
+                if(message.part >= Message.PART_BODY){
+                    socket.bodyChunksInFlight++;
+                }
+                if(this.workerDispatcher != null){
+                    // processed and released later - in order per socket - on a worker thread.
+                    if(!this.workerDispatcher.dispatch(socket, message)){
+                        socket.endOfStreamReached = true; // rejected by the worker executor - close the socket.
+                    }
+                    continue;
+                }
+                if(processorFailed){
+                    freeMessage(socket, message); // the socket is closed below - its later messages are not processed.
+                    continue;
+                }
+                // 处理下,放到写队列 - the message processor will eventually push outgoing messages into an IMessageWriter for this socket.
+                boolean processed = true;
+                try {
+                    processed = IStreamingMessageProcessor.process(this.messageProcessor, message, this.writeProxy);
+                } catch(RuntimeException e){
+                    // a bug in the message processor - or a streamed message for a non-streaming one. Only this socket is closed.
+                    e.printStackTrace();
+                    this.processorErrorCount++;
+                    processorFailed = true;
+                    socket.endOfStreamReached = true;
+                } finally {
+                    if(processed){
+                        freeMessage(socket, message);
+                    }
+                }
             }
             fullMessages.clear();
         }
 
         if(socket.endOfStreamReached){
-            System.out.println("Socket closed: " + socket.socketId);
-            this.socketMap.remove(socket.socketId);
+            closeSocket(socket);
+            return messageCount;
+        }
+        if(socket.closeRequested){
+            // no more requests on this connection - closed by closeAnsweredSockets() once they have been answered.
+            this.closingSockets.add(socket);
+            updateInterestOps(socket);
+        } else if(socket.bodyChunksInFlight >= this.maxBodyChunksInFlight && !socket.readPaused){
+            // the message processor is behind - leave the rest of the body in the socket until it catches up.
+            socket.readPaused = true;
+            updateInterestOps(socket);
+        }
+        updateTimer(socket);
+        return messageCount;
+    }
+
+    /**
+     * Releases a message read from a socket once it has been processed - e.g. a body chunk kept by an
+     * IStreamingMessageProcessor, or a message processed on a worker thread. Can be called from any thread -
+     * messages handed back from other threads are released by the next cycle.
+     */
+    public void releaseMessage(Message message) {
+        if(Thread.currentThread() == this.processorThread){
+            freeMessage(this.socketTable.get(message.socketId), message);
+            return;
+        }
+        while(!this.releasedMessageQueue.offer(message)){
+            Thread.yield(); // the queue is drained by the next cycle.
+        }
+        wakeup();
+    }
+
+    private void releaseHandedBackMessages() {
+        Message message = this.releasedMessageQueue.poll();
+        while(message != null){
+            freeMessage(this.socketTable.get(message.socketId), message);
+            message = this.releasedMessageQueue.poll();
+        }
+    }
+
+    /**
+     * Closes the socket with the given id - e.g. when the message processor cannot answer a request. Its queued
+     * responses are dropped. Can be called from any thread - a message processor called by the SocketProcessor thread
+     * gets the socket closed once it returns, other threads by the next cycle.
+     */
+    public void requestClose(long socketId) {
+        if(Thread.currentThread() == this.processorThread){
+            Socket socket = this.socketTable.get(socketId);
+            if(socket != null){
+                socket.endOfStreamReached = true; // closed by readFromSocket() after the message processor returns.
+            }
+            return;
+        }
+        while(!this.closeRequestQueue.offer(socketId)){
+            Thread.yield(); // the queue is drained by the next cycle.
+        }
+        wakeup();
+    }
+
+    private void closeRequestedSockets() throws IOException {
+        Long socketId = this.closeRequestQueue.poll();
+        while(socketId != null){
+            Socket socket = this.socketTable.get(socketId);
+            if(socket != null){
+                closeSocket(socket); // null = closed already - a stale id does not find the socket now in its slot.
+            }
+            socketId = this.closeRequestQueue.poll();
+        }
+    }
+
+    /**
+     * Releases the message, and continues reading from the socket if it was paused for the body chunks in flight.
+     *
+     * @param socket The socket the message was read from - null if it has been closed since.
+     */
+    private void freeMessage(Socket socket, Message message) {
+        if(socket != null){
+            socket.messagesInFlight--;
+            if(message.part >= Message.PART_BODY){
+                socket.bodyChunksInFlight--;
+                if(socket.readPaused && socket.bodyChunksInFlight < this.maxBodyChunksInFlight){
+                    socket.readPaused = false;
+                    updateInterestOps(socket);
+                }
+            }
+            if(socket.messagesInFlight == 0){
+                updateTimer(socket); // processed - the socket may be idle now.
+            }
+        }
+        message.release();
+    }
+
+    /**
+     * Turns OP_READ on or off for the socket - on only if nothing holds reading from it back: a requested close,
+     * too many body chunks in flight, a full write queue, or too many responses queued for the socket or for all
+     * sockets. In single
+     * selector mode also turns OP_WRITE on while the socket has data it could not write yet, and off once it has none.
+     */
+    private void updateInterestOps(Socket socket) {
+        SelectionKey key = socket.socketChannel.keyFor(this.readSelector);
+        if(key == null || !key.isValid()){
+            return;
+        }
+        boolean read = !socket.closeRequested && !socket.readPaused && !socket.writePaused && !this.globalWritePaused && !hasWriteBacklog(socket);
+        int interestOps = read ? SelectionKey.OP_READ : 0;
+        if(this.singleSelector && !socket.messageWriter.isEmpty()){
+            interestOps |= SelectionKey.OP_WRITE;
+        }
+        if(key.interestOps() != interestOps){
+            key.interestOps(interestOps);
+        }
+    }
+
+    /**
+     * Stops reading from the socket when its queued responses have gone above the high watermark, and reads again
+     * once they have dropped to the low watermark - so a client which sends requests but does not read the
+     * responses cannot fill the write MessageBuffer. The same for all sockets together with the global watermarks.
+     *
+     * @param bytesQueuedBefore The bytes queued in the MessageWriter of the socket before the enqueue or write.
+     */
+    private void updateWriteBackpressure(Socket socket, long bytesQueuedBefore) {
+        long bytesQueued = queuedBytes(socket);
+        this.writeBytesQueued += bytesQueued - bytesQueuedBefore;
+
+        if(!socket.writePaused && this.writeHighWatermark > 0 && bytesQueued > this.writeHighWatermark){
+            socket.writePaused = true;
+            this.writePausedSocketCount++;
+            this.writePauseCount++;
+            updateInterestOps(socket);
+        } else if(socket.writePaused && bytesQueued <= this.writeLowWatermark){
+            socket.writePaused = false;
+            this.writePausedSocketCount--;
+            updateInterestOps(socket);
+        }
+        updateGlobalWriteBackpressure();
+    }
+
+    private void updateGlobalWriteBackpressure() {
+        boolean paused = this.globalWritePaused;
+        if(!paused && this.globalWriteHighWatermark > 0 && this.writeBytesQueued > this.globalWriteHighWatermark){
+            paused = true;
+            this.globalWritePauseCount++;
+        } else if(paused && this.writeBytesQueued <= this.globalWriteLowWatermark){
+            paused = false;
+        }
+        if(paused != this.globalWritePaused){
+            // rare - only when crossing a watermark, so visiting all sockets is fine.
+            this.globalWritePaused = paused;
+            for(int i=0; i<this.socketTable.getSlotCount(); i++){
+                Socket socket = this.socketTable.getSocket(i);
+                if(socket != null){
+                    updateInterestOps(socket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the sockets whose last request - e.g. one with "Connection: close" - has been processed, and whose
+     * responses have been written. Responses to the last request must be enqueued from within process() then.
+     */
+    private void closeAnsweredSockets() throws IOException {
+        if(this.closingSockets.isEmpty()){
+            return;
+        }
+        for(Socket socket : new ArrayList<>(this.closingSockets)){
+            if(socket.messagesInFlight == 0 && socket.messageWriter.isEmpty() && !hasWriteBacklog(socket)){
+                closeSocket(socket);
+            }
+        }
+    }
+
+    /**
+     * Checks the sockets whose timer has expired. A socket that has been active since its timer was scheduled gets
+     * a new timer, the others are closed.
+     */
+    private void expireTimers() throws IOException {
+        if(this.now < this.timerWheel.getNextTickMillis()){
+            return;
+        }
+        this.timerWheel.expire(this.now, this.expiredSockets);
+
+        for(int i=0; i<this.expiredSockets.size(); i++){
+            Socket socket = this.expiredSockets.get(i);
+            if(socket.timerDeadline == 0 || socket.timerDeadline > this.now || this.socketTable.get(socket.socketId) != socket){
+                continue; // a timer replaced by an earlier one, or the socket is closed.
+            }
+            socket.timerDeadline = 0;
+
+            if(timeoutDeadline(socket) <= this.now){
+                this.timedOutSocketCount++;
+                closeSocket(socket);
+            } else {
+                updateTimer(socket);
+            }
+        }
+        this.expiredSockets.clear();
+    }
+
+    /**
+     * Schedules a timer for the socket, unless it already has one which expires no later than needed. A timer that
+     * expires too early is harmless - see expireTimers() - so activity only updates the timestamps of the socket.
+     */
+    private void updateTimer(Socket socket) {
+        long deadline = timeoutDeadline(socket);
+        if(deadline != Long.MAX_VALUE && (socket.timerDeadline == 0 || deadline < socket.timerDeadline)){
+            socket.timerDeadline = deadline;
+            this.timerWheel.schedule(socket, deadline);
+        }
+    }
+
+    /**
+     * @return When the socket times out, given what it is doing now - Long.MAX_VALUE if it cannot time out now.
+     */
+    private long timeoutDeadline(Socket socket) {
+        long deadline = Long.MAX_VALUE;
+        if(!socket.messageWriter.isEmpty()){
+            // responses are waiting - the client must take some of them within the write timeout.
+            if(this.writeTimeoutMillis > 0){
+                deadline = socket.lastWriteTime + this.writeTimeoutMillis;
+            }
+        } else if(socket.messagesInFlight == 0 && this.idleTimeoutMillis > 0){
+            deadline = Math.max(socket.lastReadTime, socket.lastWriteTime) + this.idleTimeoutMillis;
+        }
+        if(socket.headerStartTime != 0 && this.headerTimeoutMillis > 0){
+            deadline = Math.min(deadline, socket.headerStartTime + this.headerTimeoutMillis);
+        }
+        return deadline;
+    }
+
+    private void closeSocket(Socket socket) throws IOException {
+        this.socketTable.remove(socket);
+        this.socketCount--;
+        this.closedSocketCount++;
+
+        // give the blocks held by the socket back to the message buffers.
+        socket.messageReader.dispose();
+        this.emptyToNonEmptySockets.remove(socket);
+        this.nonEmptyToEmptySockets.remove(socket);
+        this.closingSockets.remove(socket);
+        socket.timerDeadline = 0;
+
+        // its queued responses are dropped - they no longer count against the global watermarks.
+        this.writeBytesQueued -= queuedBytes(socket);
+        if(socket.writePaused){
+            socket.writePaused = false;
+            this.writePausedSocketCount--;
+        }
+        updateGlobalWriteBackpressure();
+        socket.messageWriter.dispose();
+        if(socket.writeBacklog != null){
+            Message message = socket.writeBacklog.poll();
+            while(message != null){
+                message.release();
+                message = socket.writeBacklog.poll();
+            }
+            socket.writeBacklogBytes = 0;
+        }
+
+        SelectionKey key = socket.socketChannel.keyFor(this.readSelector);
+        if(key != null){
             key.attach(null);
             key.cancel();
-            key.channel().close();
         }
+        socket.socketChannel.close();
     }
 
 
@@ -169,6 +825,12 @@ public class SocketProcessor implements Runnable {
         // Take all new messages from outboundMessageQueue
         takeNewOutboundMessages();
 
+        if(this.singleSelector){
+            // Write to the sockets which got messages right away - OP_WRITE is only set if the write is partial.
+            writeToNonEmptySockets();
+            return;
+        }
+
         // Cancel all sockets which have no more data to write.
         cancelEmptySockets();
 
@@ -185,13 +847,7 @@ public class SocketProcessor implements Runnable {
             while(keyIterator.hasNext()){
                 SelectionKey key = keyIterator.next();
 
-                Socket socket = (Socket) key.attachment();
-
-                socket.messageWriter.write(socket, this.writeByteBuffer);
-
-                if(socket.messageWriter.isEmpty()){
-                    this.nonEmptyToEmptySockets.add(socket);
-                }
+                writeToSocket((Socket) key.attachment());
 
                 keyIterator.remove();
             }
@@ -201,6 +857,88 @@ public class SocketProcessor implements Runnable {
         }
     }
 
+    private void writeToNonEmptySockets() throws IOException {
+        // removed before the write - a socket closed by writeToSocket() must not change the set while iterating.
+        Iterator<Socket> iterator = this.emptyToNonEmptySockets.iterator();
+        while(iterator.hasNext()){
+            Socket socket = iterator.next();
+            iterator.remove();
+            writeToSocket(socket);
+        }
+    }
+
+    /**
+     * Writes as much of the socket's queued responses as the socket takes. Closes the socket if the write fails - e.g.
+     * the client has reset the connection, or a file being sent has shrunk.
+     */
+    private void writeToSocket(Socket socket) throws IOException {
+        long bytesQueuedBefore = queuedBytes(socket);
+        try {
+            socket.messageWriter.write(socket);
+        } catch(IOException e){
+            closeSocket(socket);
+            return;
+        }
+        socket.lastWriteTime = this.now;
+        if(hasWriteBacklog(socket)){
+            takeWriteBacklog(socket);
+        }
+        updateWriteBackpressure(socket, bytesQueuedBefore);
+
+        if(this.singleSelector){
+            updateInterestOps(socket);
+        } else if(socket.messageWriter.isEmpty()){
+            this.nonEmptyToEmptySockets.add(socket);
+        }
+    }
+
+    private boolean hasWriteBacklog(Socket socket) {
+        return socket.writeBacklog != null && !socket.writeBacklog.isEmpty();
+    }
+
+    /**
+     * @return The response bytes queued for the socket - in its MessageWriter and in its write backlog.
+     */
+    private long queuedBytes(Socket socket) {
+        return socket.messageWriter.getBytesQueued() + socket.writeBacklogBytes;
+    }
+
+    /**
+     * Holds the response back until the write queue of the socket has room - or closes the socket if its write
+     * backlog is full too: the client keeps sending requests, but does not read the responses.
+     *
+     * @return false if the socket has been closed.
+     */
+    private boolean addToWriteBacklog(Socket socket, Message message) throws IOException {
+        if(socket.writeBacklog == null){
+            socket.writeBacklog = new ArrayDeque<>();
+        } else if(socket.writeBacklog.size() >= this.writeBacklogCapacity){
+            message.release();
+            this.writeBacklogFullCount++;
+            closeSocket(socket);
+            return false;
+        }
+        socket.writeBacklog.add(message);
+        socket.writeBacklogBytes += message.length;
+        return true;
+    }
+
+    /**
+     * Moves the responses held back for the socket into its MessageWriter, as far as its write queue has room again -
+     * and reads from the socket again once all of them are in.
+     */
+    private void takeWriteBacklog(Socket socket) {
+        Message message = socket.writeBacklog.peek();
+        while(message != null && socket.messageWriter.enqueue(message)){
+            socket.writeBacklog.poll();
+            socket.writeBacklogBytes -= message.length;
+            message = socket.writeBacklog.peek();
+        }
+        if(message == null){
+            updateInterestOps(socket);
+        }
+    }
+
     private void registerNonEmptySockets() throws ClosedChannelException {
         for(Socket socket : emptyToNonEmptySockets){
             socket.socketChannel.register(this.writeSelector, SelectionKey.OP_WRITE, socket);
@@ -217,20 +955,40 @@ public class SocketProcessor implements Runnable {
         nonEmptyToEmptySockets.clear();
     }
 
-    private void takeNewOutboundMessages() {
+    private void takeNewOutboundMessages() throws IOException {
         Message outMessage = this.outboundMessageQueue.poll();
         while(outMessage != null){
-            Socket socket = this.socketMap.get(outMessage.socketId);
+            Socket socket = this.socketTable.get(outMessage.socketId);
 
             if(socket != null){
-                MessageWriter messageWriter = socket.messageWriter;
-                if(messageWriter.isEmpty()){
+                MessageWriter messageWriter     = socket.messageWriter;
+                long          bytesQueuedBefore = queuedBytes(socket);
+                if(hasWriteBacklog(socket)){
+                    // behind the responses held back already - keeps the order.
+                    if(addToWriteBacklog(socket, outMessage)){
+                        updateWriteBackpressure(socket, bytesQueuedBefore);
+                    }
+                } else if(messageWriter.isEmpty()){
                     messageWriter.enqueue(outMessage);
                     nonEmptyToEmptySockets.remove(socket);
                     emptyToNonEmptySockets.add(socket);    //not necessary if removed from nonEmptyToEmptySockets in prev. statement.
-                } else{
-                   messageWriter.enqueue(outMessage);
+                    socket.lastWriteTime = this.now;
+                    updateTimer(socket);
+                    updateWriteBackpressure(socket, bytesQueuedBefore);
+                } else if(messageWriter.enqueue(outMessage)){
+                    updateWriteBackpressure(socket, bytesQueuedBefore);
+                } else {
+                    // e.g. many pipelined requests in one read - hold the responses back, and stop reading requests
+                    // until the writer has taken them all.
+                    this.writeQueueFullCount++;
+                    if(addToWriteBacklog(socket, outMessage)){
+                        updateWriteBackpressure(socket, bytesQueuedBefore);
+                        updateInterestOps(socket);
+                    }
                 }
+            } else {
+                // the socket was closed before the message could be written.
+                outMessage.release();
             }
 
             outMessage = this.outboundMessageQueue.poll();
@@ -0,0 +1,139 @@
+package com.jenkov.nioserver;
+
+/**
+ * The open sockets of a SocketProcessor, looked up by socket id without boxing or hashing. A socket id encodes the
+ * slot of the socket in an array plus a generation number:
+ *
+ *   socketId = idBase + (generation << SLOT_BITS) + slot
+ *
+ * A slot gets the next generation each time it is reused, so a stale id - e.g. of a response enqueued for a socket
+ * closed since - does not find the socket now in its slot. Freed slots are reused in FIFO order, so a slot is only
+ * reused after all other free slots, and a generation only comes round again after 2^GENERATION_BITS reuses.
+ *
+ * Ids never reach idBase + SocketProcessor.SOCKET_ID_RANGE, and are never below idBase + 16K - the bottom ids are
+ * reserved for pre-defined sockets, as before.
+ *
+ * Not thread safe - used by the SocketProcessor thread only.
+ */
+public class SocketTable {
+
+    public static final int  SLOT_BITS       = 24; // max 16M sockets per SocketProcessor.
+    public static final int  GENERATION_BITS = 16;
+    public static final int  MAX_SLOTS       = 1 << SLOT_BITS;
+
+    private static final long SLOT_MASK       = MAX_SLOTS - 1;
+    private static final int  GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+
+    private long         idBase          = 0;
+
+    private Socket[]     sockets         = null;
+    private int[]        generations     = null; // the generation of the last socket in each slot.
+    private int          usedSlots       = 0;    // slots below this have been used - slots above it are all free.
+    private QueueIntFlip freeSlots       = null; // freed slots below usedSlots, oldest first.
+    private int          size            = 0;
+
+    /**
+     * @param idBase          The lowest socket id of the SocketProcessor - see SocketProcessor.SOCKET_ID_RANGE.
+     * @param initialCapacity The initial number of slots - doubled when all slots are taken.
+     */
+    public SocketTable(long idBase, int initialCapacity) {
+        int capacity = Math.max(16, Math.min(initialCapacity, MAX_SLOTS));
+        this.idBase      = idBase;
+        this.sockets     = new Socket[capacity];
+        this.generations = new int[capacity];
+        this.freeSlots   = new QueueIntFlip(capacity);
+    }
+
+    /**
+     * Puts the socket into a free slot and sets its socketId.
+     *
+     * @throws IllegalStateException if all MAX_SLOTS slots are taken.
+     */
+    public long add(Socket socket) {
+        int slot;
+        if(this.freeSlots.available() > 0){
+            slot = this.freeSlots.take();
+        } else {
+            if(this.usedSlots == this.sockets.length){
+                grow();
+            }
+            slot = this.usedSlots++;
+        }
+
+        // generation 0 is skipped - so ids never fall into the reserved bottom range.
+        int generation = (this.generations[slot] + 1) & GENERATION_MASK;
+        if(generation == 0){
+            generation = 1;
+        }
+        this.generations[slot] = generation;
+
+        socket.socketId     = this.idBase + (((long) generation) << SLOT_BITS) + slot;
+        this.sockets[slot]  = socket;
+        this.size++;
+        return socket.socketId;
+    }
+
+    /**
+     * @return The socket with the given id - null if it has been removed, or the id is not from this table.
+     */
+    public Socket get(long socketId) {
+        long localId = socketId - this.idBase;
+        if(localId < 0 || localId >= SocketProcessor.SOCKET_ID_RANGE){
+            return null;
+        }
+        int slot = (int) (localId & SLOT_MASK);
+        if(slot >= this.usedSlots){
+            return null;
+        }
+        Socket socket = this.sockets[slot];
+        return socket != null && socket.socketId == socketId ? socket : null; // a different generation = stale id.
+    }
+
+    /**
+     * @return false if the socket was not in this table.
+     */
+    public boolean remove(Socket socket) {
+        if(get(socket.socketId) != socket){
+            return false;
+        }
+        int slot = (int) ((socket.socketId - this.idBase) & SLOT_MASK);
+        this.sockets[slot] = null;
+        this.freeSlots.put(slot); // never full - it has room for all slots.
+        this.size--;
+        return true;
+    }
+
+    /**
+     * The sockets are iterated by slot: for(int i=0; i<getSlotCount(); i++) - getSocket(i) returns null for free
+     * slots. Sockets may be removed while iterating.
+     */
+    public int getSlotCount() {
+        return this.usedSlots;
+    }
+
+    public Socket getSocket(int slot) {
+        return this.sockets[slot];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    private void grow() {
+        if(this.sockets.length == MAX_SLOTS){
+            throw new IllegalStateException("Socket table full: " + MAX_SLOTS + " sockets");
+        }
+        int capacity = Math.min(this.sockets.length * 2, MAX_SLOTS);
+
+        Socket[] sockets     = new Socket[capacity];
+        int[]    generations = new int[capacity];
+        System.arraycopy(this.sockets,     0, sockets,     0, this.sockets.length);
+        System.arraycopy(this.generations, 0, generations, 0, this.generations.length);
+        this.sockets     = sockets;
+        this.generations = generations;
+
+        // only called when no slot is free - the queue is empty.
+        this.freeSlots = new QueueIntFlip(capacity);
+    }
+
+}
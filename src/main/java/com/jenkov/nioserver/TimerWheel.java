@@ -0,0 +1,141 @@
+package com.jenkov.nioserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: a ring of slots, one per tick. A timer goes into the slot of the tick its deadline falls
+ * into, so scheduling is O(1), and each tick only looks at the timers of one slot - no matter how many timers there
+ * are in total. Timers further away than one round of the wheel stay in their slot until their round comes.
+ *
+ * Timers cannot be cancelled. The SocketProcessor instead checks a socket again when its timer expires, and
+ * schedules a new timer if the socket has been active in the meantime - so activity costs nothing here.
+ *
+ * Not thread safe - used by the SocketProcessor thread only.
+ */
+public class TimerWheel<T> {
+
+    private long       tickMillis  = 100;
+    private int        mask        = 0;
+
+    private Object[][] items       = null; // the timers per slot - item and deadline tick.
+    private long[][]   ticks       = null;
+    private int[]      slotSizes   = null;
+    private int        size        = 0;
+
+    private long       currentTick = 0;    // the next tick to expire.
+    private long       nextTick    = Long.MAX_VALUE; // the earliest deadline tick of all timers - -1 = not known.
+
+    /**
+     * @param slotCount  The number of slots - rounded up to a power of two.
+     * @param tickMillis The length of a tick - timers expire up to one tick after their deadline.
+     * @param nowMillis  The current time.
+     */
+    public TimerWheel(int slotCount, long tickMillis, long nowMillis) {
+        int slots = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickMillis  = Math.max(1, tickMillis);
+        this.mask        = slots - 1;
+        this.items       = new Object[slots][];
+        this.ticks       = new long[slots][];
+        this.slotSizes   = new int[slots];
+        this.currentTick = nowMillis / this.tickMillis;
+    }
+
+    /**
+     * Schedules the item to expire at the given time - or at the next tick, if that time has passed already.
+     */
+    public void schedule(T item, long deadlineMillis) {
+        long tick = Math.max(this.currentTick, (deadlineMillis + this.tickMillis - 1) / this.tickMillis);
+        int  slot = (int) (tick & this.mask);
+
+        int slotSize = this.slotSizes[slot];
+        if(this.items[slot] == null){
+            this.items[slot] = new Object[4];
+            this.ticks[slot] = new long[4];
+        } else if(slotSize == this.items[slot].length){
+            this.items[slot] = Arrays.copyOf(this.items[slot], slotSize * 2);
+            this.ticks[slot] = Arrays.copyOf(this.ticks[slot], slotSize * 2);
+        }
+        this.items[slot][slotSize] = item;
+        this.ticks[slot][slotSize] = tick;
+        this.slotSizes[slot]++;
+        this.size++;
+        if(this.nextTick != -1){
+            this.nextTick = Math.min(this.nextTick, tick);
+        }
+    }
+
+    /**
+     * Moves all items whose deadline has passed into the expired list - visiting each slot at most once.
+     */
+    @SuppressWarnings("unchecked")
+    public void expire(long nowMillis, List<T> expired) {
+        long nowTick = nowMillis / this.tickMillis;
+        if(nowTick < this.currentTick){
+            return;
+        }
+        long slotsToVisit = Math.min(nowTick - this.currentTick + 1, this.mask + 1);
+        for(long tick = this.currentTick; tick < this.currentTick + slotsToVisit; tick++){
+            int slot = (int) (tick & this.mask);
+            if(this.slotSizes[slot] == 0){
+                continue;
+            }
+
+            Object[] slotItems = this.items[slot];
+            long[]   slotTicks = this.ticks[slot];
+            int      kept      = 0;
+            for(int i=0, n=this.slotSizes[slot]; i<n; i++){
+                if(slotTicks[i] <= nowTick){
+                    expired.add((T) slotItems[i]);
+                    this.size--;
+                } else {
+                    // a later round of the wheel.
+                    slotItems[kept] = slotItems[i];
+                    slotTicks[kept] = slotTicks[i];
+                    kept++;
+                }
+            }
+            for(int i=kept; i<this.slotSizes[slot]; i++){
+                slotItems[i] = null;
+            }
+            this.slotSizes[slot] = kept;
+        }
+        this.currentTick = nowTick + 1;
+        this.nextTick    = -1; // found again by the next getNextTickMillis().
+    }
+
+    /**
+     * @return The time of the tick of the earliest timer - when expire() should be called next. Long.MAX_VALUE if
+     *         there are no timers.
+     */
+    public long getNextTickMillis() {
+        if(this.nextTick == -1){
+            this.nextTick = findNextTick();
+        }
+        return this.nextTick == Long.MAX_VALUE ? Long.MAX_VALUE : this.nextTick * this.tickMillis;
+    }
+
+    /**
+     * Visits the slots in tick order, at most one round - a timer in a later slot, or a later round, cannot be due
+     * before the tick of the slot it is in, so the search stops at the first slot past the earliest timer found.
+     */
+    private long findNextTick() {
+        long next = Long.MAX_VALUE;
+        if(this.size == 0){
+            return next;
+        }
+        for(long tick = this.currentTick; tick <= this.currentTick + this.mask && tick < next; tick++){
+            int slot = (int) (tick & this.mask);
+            long[] slotTicks = this.ticks[slot];
+            for(int i=0, n=this.slotSizes[slot]; i<n; i++){
+                next = Math.min(next, slotTicks[i]);
+            }
+        }
+        return next;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+}
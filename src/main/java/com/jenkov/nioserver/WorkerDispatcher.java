@@ -0,0 +1,206 @@
+package com.jenkov.nioserver;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs IMessageProcessor.process() on a worker thread pool instead of on the SocketProcessor thread, so a slow
+ * message processor does not stall the other sockets of the SocketProcessor.
+ *
+ * The messages of one socket are processed one at a time, in the order they were read, by a Lane attached to the
+ * socket. Responses enqueued via the WriteProxy from within process() therefore keep the request order, which HTTP
+ * pipelining depends on. Different sockets are processed in parallel.
+ *
+ * Processed messages are not released on the worker thread. They are handed back to the SocketProcessor, which
+ * releases them to its read MessageBuffer in releaseProcessedMessages(). Body chunks kept by an
+ * IStreamingMessageProcessor are not handed back until the processor releases them via the WriteProxy. The first
+ * message handed back after the SocketProcessor drained the queue wakes it up, so it does not sit in the queue until
+ * the select timeout.
+ */
+public class WorkerDispatcher {
+
+    private ExecutorService   executor          = null;
+    private IMessageProcessor messageProcessor  = null;
+    private WriteProxy        writeProxy        = null;
+    private SocketProcessor   socketProcessor   = null; // releases processed messages - null = release them directly.
+
+    // a full queue makes the workers wait until the SocketProcessor has drained it - see processed().
+    private Queue<Message>    processedMessages = new RingBufferMpsc<>(PROCESSED_QUEUE_CAPACITY);
+    private AtomicBoolean     wakeupPending     = new AtomicBoolean(false); // true = the SocketProcessor is woken up already.
+
+    static final int PROCESSED_QUEUE_CAPACITY = 2 * 1024;
+
+    public WorkerDispatcher(ExecutorService executor, IMessageProcessor messageProcessor, WriteProxy writeProxy) {
+        this(executor, messageProcessor, writeProxy, null);
+    }
+
+    public WorkerDispatcher(ExecutorService executor, IMessageProcessor messageProcessor, WriteProxy writeProxy, SocketProcessor socketProcessor) {
+        this.executor         = executor;
+        this.messageProcessor = messageProcessor;
+        this.writeProxy       = writeProxy;
+        this.socketProcessor  = socketProcessor;
+    }
+
+    /**
+     * Queues the message for processing on a worker thread. Called by the SocketProcessor thread.
+     *
+     * @return false if the executor rejected the socket's messages - e.g. it has been shut down. The messages are
+     *         handed back unprocessed, and the socket should be closed.
+     */
+    public boolean dispatch(Socket socket, Message message) {
+        if(socket.workerLane == null){
+            socket.workerLane = new Lane(this);
+        }
+        return socket.workerLane.add(message);
+    }
+
+    /**
+     * @return true if messages have been processed which releaseProcessedMessages() has not released yet.
+     */
+    public boolean hasProcessedMessages() {
+        return !this.processedMessages.isEmpty();
+    }
+
+    /**
+     * Releases all messages the workers have finished processing. Called by the SocketProcessor thread.
+     */
+    public void releaseProcessedMessages() {
+        this.wakeupPending.set(false); // cleared before draining - a message handed back after this wakes us again.
+        Message message = this.processedMessages.poll();
+        while(message != null){
+            release(message);
+            message = this.processedMessages.poll();
+        }
+    }
+
+    private void release(Message message) {
+        if(this.socketProcessor != null){
+            this.socketProcessor.releaseMessage(message); // counts the message as no longer in flight.
+        } else {
+            message.release();
+        }
+    }
+
+    private void processed(Message message) {
+        while(!this.processedMessages.offer(message)){
+            wakeupSocketProcessor(true); // full - wait for the SocketProcessor to drain it.
+            Thread.yield();
+        }
+        wakeupSocketProcessor(false);
+    }
+
+    private void wakeupSocketProcessor(boolean force) {
+        if(this.socketProcessor != null && (this.wakeupPending.compareAndSet(false, true) || force)){
+            this.socketProcessor.wakeup();
+        }
+    }
+
+
+    /**
+     * Creates the executor for the worker threads.
+     *
+     * @param threadCount    The number of platform worker threads. Ignored for virtual threads.
+     * @param virtualThreads true = one virtual thread per task. Needs Java 21 - falls back to platform threads on
+     *                       older JVMs. Call createVirtualThreadExecutor() first to find out which one you get.
+     */
+    public static ExecutorService createExecutor(int threadCount, boolean virtualThreads) {
+        if(virtualThreads){
+            ExecutorService executor = createVirtualThreadExecutor();
+            if(executor != null){
+                return executor;
+            }
+        }
+
+        AtomicInteger threadNo = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "MessageProcessorWorker-" + threadNo.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newFixedThreadPool(Math.max(1, threadCount), threadFactory);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() looked up via reflection, so the server still runs on older JVMs.
+     * Returns null when virtual threads are not available.
+     */
+    public static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * The per socket message queue. At most one worker drains a lane at any time.
+     */
+    public static class Lane implements Runnable {
+
+        private WorkerDispatcher       dispatcher = null;
+        private Queue<Message>         messages   = new ConcurrentLinkedQueue<>();
+        private AtomicBoolean          scheduled  = new AtomicBoolean(false);
+        private volatile boolean       rejected   = false; // the executor rejected this lane - no more messages.
+
+        Lane(WorkerDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
+        boolean add(Message message) {
+            this.messages.add(message);
+            schedule();
+            return !this.rejected;
+        }
+
+        private void schedule() {
+            if(this.scheduled.compareAndSet(false, true)){
+                try {
+                    this.dispatcher.executor.execute(this);
+                } catch(RejectedExecutionException e){
+                    this.rejected = true;
+                    // release the messages unprocessed - the SocketProcessor closes the socket.
+                    Message message = this.messages.poll();
+                    while(message != null){
+                        this.dispatcher.release(message);
+                        message = this.messages.poll();
+                    }
+                    this.scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            Message message = this.messages.poll();
+            while(message != null){
+                boolean processed = true;
+                try {
+                    processed = IStreamingMessageProcessor.process(this.dispatcher.messageProcessor, message, this.dispatcher.writeProxy);
+                } catch(RuntimeException e){
+                    e.printStackTrace();
+                } finally {
+                    if(processed){
+                        this.dispatcher.processed(message);
+                    }
+                }
+                message = this.messages.poll();
+            }
+
+            this.scheduled.set(false);
+            if(!this.messages.isEmpty()){
+                // a message was added after the last poll() but before scheduled was cleared.
+                schedule();
+            }
+        }
+    }
+
+}
@@ -7,20 +7,64 @@ import java.util.Queue;
  */
 public class WriteProxy {
 
-    private MessageBuffer messageBuffer = null;
-    private Queue        writeQueue     = null;
+    private MessageBuffer   messageBuffer   = null;
+    private Queue<Message>  writeQueue      = null;
+    private SocketProcessor socketProcessor = null;
 
-    public WriteProxy(MessageBuffer messageBuffer, Queue writeQueue) {
-        this.messageBuffer = messageBuffer;
-        this.writeQueue = writeQueue;
+    Socket socket = null; // thread per connection mode - the one socket this proxy writes to.
+
+    public WriteProxy(MessageBuffer messageBuffer, Queue<Message> writeQueue) {
+        this(messageBuffer, writeQueue, null);
+    }
+
+    public WriteProxy(MessageBuffer messageBuffer, Queue<Message> writeQueue, SocketProcessor socketProcessor) {
+        this.messageBuffer   = messageBuffer;
+        this.writeQueue      = writeQueue;
+        this.socketProcessor = socketProcessor;
     }
 
     public Message getMessage(){
         return this.messageBuffer.getMessage();
     }
 
+    /**
+     * Enqueues a message for writing to the socket given by message.socketId. Can be called from any thread.
+     *
+     * @return false if the outbound queue is full. The message is not enqueued then - the caller still owns it and
+     *         must either retry later or release it.
+     */
     public boolean enqueue(Message message){
-        return this.writeQueue.offer(message);
+        boolean enqueued = this.writeQueue.offer(message);
+        if(enqueued && this.socketProcessor != null){
+            // message enqueued from another thread - make sure the SocketProcessor is not left sleeping in select().
+            this.socketProcessor.wakeup();
+        }
+        return enqueued;
+    }
+
+    /**
+     * Closes the socket given by socketId instead of answering its request - e.g. when getMessage() returned null or
+     * enqueue() returned false. Responses already enqueued for the socket may be dropped. Can be called from any thread.
+     */
+    public void closeSocket(long socketId){
+        if(this.socketProcessor != null){
+            this.socketProcessor.requestClose(socketId);
+        } else if(this.socket != null && this.socket.socketId == socketId){
+            this.socket.endOfStreamReached = true; // the socket's thread closes it once the message processor returns.
+        }
+    }
+
+    /**
+     * Hands back a body chunk kept by IStreamingMessageProcessor.processBody(). Can be called from any thread - the
+     * chunk is released by the SocketProcessor thread, which then continues reading from the socket if it had
+     * stopped because of the chunks kept.
+     */
+    public void release(Message message){
+        if(this.socketProcessor != null){
+            this.socketProcessor.releaseMessage(message);
+        } else {
+            message.release();
+        }
     }
 
 }
@@ -0,0 +1,86 @@
+package com.jenkov.nioserver.example;
+
+import com.jenkov.nioserver.FileCache;
+import com.jenkov.nioserver.IMessageProcessor;
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.http.HttpHeaders;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the files of a directory. The response headers are written into the message, the file is sent after them
+ * with FileChannel.transferTo() - see Message.setFile().
+ *
+ * Usage: FileServer [directory] [port]
+ */
+public class FileServer {
+
+    private static final byte[] NOT_FOUND = ("HTTP/1.1 404 Not Found\r\n" +
+            "Content-Length: 0\r\n" +
+            "\r\n").getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : ".");
+        int  port      = args.length > 1 ? Integer.parseInt(args[1]) : 9999;
+
+        Server server = new Server(port, new HttpMessageReaderFactory(), createMessageProcessor(directory, new FileCache()));
+        server.start();
+    }
+
+    public static IMessageProcessor createMessageProcessor(File directory, FileCache fileCache) {
+        return (request, writeProxy) -> {
+            Message response = writeProxy.getMessage();
+            if(response == null){
+                writeProxy.closeSocket(request.socketId); // write buffer exhausted - the client would wait for the response forever.
+                return;
+            }
+            response.socketId = request.socketId;
+
+            FileCache.OpenFile file = openFile(directory, fileCache, request);
+            if(file == null){
+                response.writeToMessage(NOT_FOUND);
+            } else {
+                response.writeToMessage(("HTTP/1.1 200 OK\r\n" +
+                        "Content-Length: " + file.size + "\r\n" +
+                        "\r\n").getBytes(StandardCharsets.UTF_8));
+                response.setFile(file, 0, file.size);
+            }
+
+            if(!writeProxy.enqueue(response)){
+                response.release();
+                writeProxy.closeSocket(request.socketId); // outbound queue full - close rather than leave the request unanswered.
+            }
+        };
+    }
+
+    /**
+     * @return The requested file, or null if there is no such file in the directory.
+     */
+    private static FileCache.OpenFile openFile(File directory, FileCache fileCache, Message request) {
+        HttpHeaders httpHeaders = (HttpHeaders) request.metaData;
+        byte[] pathBytes = new byte[httpHeaders.pathEndIndex - httpHeaders.pathStartIndex];
+        for(int i=0; i<pathBytes.length; i++){
+            pathBytes[i] = request.getByte(httpHeaders.pathStartIndex + i);
+        }
+        String path = new String(pathBytes, StandardCharsets.UTF_8);
+
+        int queryIndex = path.indexOf('?');
+        if(queryIndex != -1){
+            path = path.substring(0, queryIndex);
+        }
+        if(!path.startsWith("/") || path.contains("..")){
+            return null; // not a path within the directory.
+        }
+
+        try {
+            return fileCache.open(new File(directory, path));
+        } catch(IOException e){
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.jenkov.nioserver.example;
+
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.ServerConfig;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Measures request / response round trip times against the example.Main HTTP responder, once with the old
+ * fixed-interval polling loop (sleep 100ms between cycles) and once with the select() based event loop.
+ *
+ * Usage: LatencyBenchmark [requests per run] [warmup requests]
+ *
+ * A single blocking client sends one request at a time and waits for the full response before sending the next,
+ * so each sample is one complete round trip through the SocketProcessor.
+ */
+public class LatencyBenchmark {
+
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int warmup   = args.length > 1 ? Integer.parseInt(args[1]) :  20;
+
+        ServerConfig pollingConfig = new ServerConfig();
+        pollingConfig.pollIntervalMillis = 100;
+
+        ServerConfig eventConfig = new ServerConfig();
+
+        long[] polling = run("polling loop (100ms sleep)", 9998, pollingConfig, requests, warmup);
+        long[] event   = run("select() event loop",        9997, eventConfig,   requests, warmup);
+
+        System.out.println();
+        System.out.printf("%-28s %12s %12s %12s%n", "loop", "p50 (us)", "p99 (us)", "max (us)");
+        print("polling loop (100ms sleep)", polling);
+        print("select() event loop",        event);
+
+        System.exit(0);
+    }
+
+    private static long[] run(String name, int port, ServerConfig config, int requests, int warmup) throws Exception {
+        Server server = new Server(port, new HttpMessageReaderFactory(), Main.createMessageProcessor(), config);
+        server.start();
+        Thread.sleep(500); // give the accepter thread time to bind
+
+        System.out.println("Running " + name + ": " + requests + " requests after " + warmup + " warmup requests");
+
+        int responseLength = Main.HTTP_RESPONSE.getBytes("UTF-8").length;
+
+        long[] samples = new long[requests];
+        try(SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))){
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer responseBuffer = ByteBuffer.allocate(responseLength);
+
+            for(int i = -warmup; i < requests; i++){
+                long start = System.nanoTime();
+                roundTrip(channel, responseBuffer);
+                long time  = System.nanoTime() - start;
+
+                if(i >= 0){
+                    samples[i] = time;
+                }
+            }
+        }
+        Arrays.sort(samples);
+        return samples;
+    }
+
+    private static void roundTrip(SocketChannel channel, ByteBuffer responseBuffer) throws IOException {
+        ByteBuffer request = ByteBuffer.wrap(REQUEST);
+        while(request.hasRemaining()){
+            channel.write(request);
+        }
+
+        responseBuffer.clear();
+        while(responseBuffer.hasRemaining()){
+            if(channel.read(responseBuffer) == -1){
+                throw new IOException("Server closed the connection");
+            }
+        }
+    }
+
+    private static void print(String name, long[] sortedSamples) {
+        System.out.printf("%-28s %12d %12d %12d%n", name,
+                percentile(sortedSamples, 0.50) / 1000,
+                percentile(sortedSamples, 0.99) / 1000,
+                sortedSamples[sortedSamples.length - 1] / 1000);
+    }
+
+    private static long percentile(long[] sortedSamples, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedSamples.length) - 1;
+        return sortedSamples[Math.max(0, index)];
+    }
+
+}
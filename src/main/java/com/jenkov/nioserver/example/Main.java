@@ -12,24 +12,19 @@ import java.util.concurrent.BlockingQueue;
  */
 public class Main {
 
-    public static void main(String[] args) throws IOException {
+    public static final String HTTP_RESPONSE = "HTTP/1.1 200 OK\r\n" +
+            "Content-Length: 38\r\n" +
+            "Content-Type: text/html\r\n" +
+            "\r\n" +
+            "<html><body>Hello World!</body></html>";
 
-        String httpResponse = "HTTP/1.1 200 OK\r\n" +
-                "Content-Length: 38\r\n" +
-                "Content-Type: text/html\r\n" +
-                "\r\n" +
-                "<html><body>Hello World!</body></html>";
+    public static void main(String[] args) throws IOException {
 
-        byte[] httpResponseBytes = httpResponse.getBytes("UTF-8");
+        IMessageProcessor responder = createMessageProcessor();
 
         IMessageProcessor messageProcessor = (request, writeProxy) -> {
             System.out.println("Message Received from socket: " + request.socketId);
-
-            Message response = writeProxy.getMessage();
-            response.socketId = request.socketId;
-            response.writeToMessage(httpResponseBytes);
-
-            writeProxy.enqueue(response);
+            responder.process(request, writeProxy);
         };
 
         Server server = new Server(9999, new HttpMessageReaderFactory(), messageProcessor);
@@ -38,5 +33,28 @@ public class Main {
 
     }
 
+    /**
+     * Creates the message processor which answers every HTTP request with a fixed "Hello World!" page. Also used
+     * by the benchmarks, so they measure the same responder as this example.
+     */
+    public static IMessageProcessor createMessageProcessor() throws IOException {
+        byte[] httpResponseBytes = HTTP_RESPONSE.getBytes("UTF-8");
+
+        return (request, writeProxy) -> {
+            Message response = writeProxy.getMessage();
+            if(response == null){
+                writeProxy.closeSocket(request.socketId); // write buffer exhausted - the client would wait for the response forever.
+                return;
+            }
+            response.socketId = request.socketId;
+            response.writeToMessage(httpResponseBytes);
+
+            if(!writeProxy.enqueue(response)){
+                response.release();
+                writeProxy.closeSocket(request.socketId); // outbound queue full - close rather than leave the request unanswered.
+            }
+        };
+    }
+
 
 }
@@ -0,0 +1,129 @@
+package com.jenkov.nioserver.example;
+
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.ServerConfig;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Measures the throughput of the example.Main HTTP responder with pipelined requests: each connection keeps a fixed
+ * number of requests in flight, and sends a new request for every response it gets back.
+ *
+ * Usage: PipeliningBenchmark [requests in flight per connection, default 1,16,64] [connections, default 8] [seconds per run, default 5]
+ *
+ * With 1 request in flight per connection every request costs a full round trip. With 16 or 64 the server reads
+ * many requests per read() and writes many responses per write.
+ */
+public class PipeliningBenchmark {
+
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        String[] depths = (args.length > 0 ? args[0] : "1,16,64").split(",");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds     = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Server server = new Server(9996, new HttpMessageReaderFactory(), Main.createMessageProcessor(), new ServerConfig());
+        server.start();
+        Thread.sleep(500); // give the accepter thread time to bind
+
+        int responseLength = Main.HTTP_RESPONSE.getBytes("UTF-8").length;
+
+        long[] results = new long[depths.length];
+        for(int i=0; i<depths.length; i++){
+            int depth = Integer.parseInt(depths[i].trim());
+            System.out.println("Running " + connections + " connections with " + depth + " requests in flight each, for " + seconds + " seconds");
+            run(9996, connections, depth, 1, responseLength); // warmup
+            results[i] = run(9996, connections, depth, seconds, responseLength) / seconds;
+        }
+
+        System.out.println();
+        System.out.printf("%-22s %12s%n", "requests in flight", "req/s");
+        for(int i=0; i<depths.length; i++){
+            System.out.printf("%-22s %12d%n", depths[i].trim(), results[i]);
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * @return the number of responses received.
+     */
+    private static long run(int port, int connections, int depth, int seconds, int responseLength) throws IOException {
+        ByteBuffer pipeline = ByteBuffer.allocate(REQUEST.length * depth);
+        for(int i=0; i<depth; i++){
+            pipeline.put(REQUEST);
+        }
+
+        try(Selector selector = Selector.open()){
+            for(int i=0; i<connections; i++){
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channel.socket().setTcpNoDelay(true);
+
+                // fill the pipeline - depth requests written at once.
+                pipeline.flip();
+                while(pipeline.hasRemaining()){
+                    channel.write(pipeline);
+                }
+                pipeline.limit(pipeline.capacity());
+
+                channel.configureBlocking(false);
+                // [0] = response bytes received, not yet counted as a full response.
+                channel.register(selector, SelectionKey.OP_READ, new long[1]);
+            }
+
+            ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+            ByteBuffer requests   = ByteBuffer.allocate(REQUEST.length * depth);
+            long responses = 0;
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+            while(System.nanoTime() < end){
+                if(selector.select(100) == 0){
+                    continue;
+                }
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while(keyIterator.hasNext()){
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    long[] state = (long[]) key.attachment();
+
+                    readBuffer.clear();
+                    int bytesRead = channel.read(readBuffer);
+                    if(bytesRead == -1){
+                        throw new IOException("Server closed the connection");
+                    }
+                    state[0] += bytesRead;
+
+                    // one new request per full response - keeps depth requests in flight.
+                    int fullResponses = (int) (state[0] / responseLength);
+                    state[0] -= (long) fullResponses * responseLength;
+                    responses += fullResponses;
+
+                    requests.clear();
+                    for(int i=0; i<fullResponses; i++){
+                        requests.put(REQUEST);
+                    }
+                    requests.flip();
+                    while(requests.hasRemaining()){
+                        channel.write(requests);
+                    }
+                }
+            }
+
+            for(SelectionKey key : selector.keys()){
+                key.channel().close();
+            }
+            return responses;
+        }
+    }
+
+}
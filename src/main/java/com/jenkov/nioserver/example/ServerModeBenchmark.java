@@ -0,0 +1,221 @@
+package com.jenkov.nioserver.example;
+
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.ServerConfig;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compares the selector based SocketProcessor with the thread per connection mode (virtual threads on Java 21+)
+ * at a given number of open connections.
+ *
+ * Usage: ServerModeBenchmark [connection counts, default 10000,50000] [seconds per run, default 10] [client threads, default 2]
+ *
+ * Every connection runs a closed loop: send one request, wait for the full response, send the next. For each run it
+ * reports requests per second, p50 / p99 round trip times and the heap used after GC with all connections open,
+ * minus the heap used before the server was started. The client runs in the same JVM, so the heap figure includes
+ * the client side SocketChannels too - they are the same for both modes.
+ *
+ * Each connection costs the JVM two file handles (client + server side), and the client side uses one ephemeral
+ * port. 50.000 connections need ulimit -n above 100.000 and a net.ipv4.ip_local_port_range wider than the default.
+ */
+public class ServerModeBenchmark {
+
+    private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        String[] connectionCounts = (args.length > 0 ? args[0] : "10000,50000").split(",");
+        int seconds       = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int clientThreads = args.length > 2 ? Integer.parseInt(args[2]) :  2;
+
+        List<String> results = new ArrayList<>();
+        int port = 9980;
+        for(String connectionCount : connectionCounts){
+            int connections = Integer.parseInt(connectionCount.trim());
+            results.add(run(ServerConfig.SERVER_MODE_SELECTOR,              port++, connections, seconds, clientThreads));
+            results.add(run(ServerConfig.SERVER_MODE_THREAD_PER_CONNECTION, port++, connections, seconds, clientThreads));
+        }
+
+        System.out.println();
+        System.out.printf("%-22s %12s %12s %10s %10s %12s%n", "mode", "connections", "req/s", "p50 (us)", "p99 (us)", "heap (MB)");
+        for(String result : results){
+            System.out.println(result);
+        }
+
+        System.exit(0);
+    }
+
+    private static String run(int serverMode, int port, int connections, int seconds, int clientThreads) throws Exception {
+        String modeName = serverMode == ServerConfig.SERVER_MODE_SELECTOR ? "selector" : "thread per connection";
+
+        long heapBefore = usedHeapAfterGc();
+
+        ServerConfig config = new ServerConfig();
+        config.serverMode          = serverMode;
+        config.socketQueueCapacity = Math.max(config.socketQueueCapacity, connections);
+        new Server(port, new HttpMessageReaderFactory(), Main.createMessageProcessor(), config).start();
+        Thread.sleep(500); // give the accepter thread time to bind
+
+        System.out.println("Running " + modeName + ": " + connections + " connections for " + seconds + " seconds");
+
+        int responseLength = Main.HTTP_RESPONSE.getBytes("UTF-8").length;
+
+        Client[] clients = new Client[clientThreads];
+        for(int i=0; i<clients.length; i++){
+            clients[i] = new Client(responseLength);
+        }
+        for(int i=0; i<connections; i++){
+            clients[i % clients.length].connect(port);
+        }
+
+        // heap with all connections open - before the clients start recording samples.
+        long heapUsed = usedHeapAfterGc() - heapBefore;
+
+        long warmupEnd = System.nanoTime() + 1_000_000_000L;
+        long runEnd    = warmupEnd + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[clients.length];
+        for(int i=0; i<clients.length; i++){
+            Client client = clients[i];
+            threads[i] = new Thread(() -> client.run(warmupEnd, runEnd), "BenchmarkClient-" + i);
+            threads[i].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        long[] samples = new long[0];
+        for(Client client : clients){
+            int from = samples.length;
+            samples = Arrays.copyOf(samples, from + client.sampleCount);
+            System.arraycopy(client.samples, 0, samples, from, client.sampleCount);
+            client.close();
+        }
+        Arrays.sort(samples);
+
+        return String.format("%-22s %12d %12d %10d %10d %12d", modeName, connections,
+                samples.length / seconds,
+                percentile(samples, 0.50) / 1000,
+                percentile(samples, 0.99) / 1000,
+                heapUsed / (1024 * 1024));
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for(int i=0; i<3; i++){
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long percentile(long[] sortedSamples, double percentile) {
+        if(sortedSamples.length == 0){
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedSamples.length) - 1;
+        return sortedSamples[Math.max(0, index)];
+    }
+
+
+    /**
+     * Drives its share of the connections from one selector thread.
+     */
+    private static class Client {
+
+        private Selector   selector       = null;
+        private ByteBuffer readBuffer     = ByteBuffer.allocate(64 * 1024);
+        private int        responseLength = 0;
+
+        private long[] samples     = new long[1024 * 1024];
+        private int    sampleCount = 0;
+
+        Client(int responseLength) throws IOException {
+            this.selector       = Selector.open();
+            this.responseLength = responseLength;
+        }
+
+        void connect(int port) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            // [0] = time the request was sent, [1] = response bytes received so far.
+            channel.register(this.selector, SelectionKey.OP_READ, new long[2]);
+        }
+
+        void run(long warmupEnd, long runEnd) {
+            try {
+                for(SelectionKey key : this.selector.keys()){
+                    sendRequest(key);
+                }
+
+                while(System.nanoTime() < runEnd){
+                    if(this.selector.select(100) == 0){
+                        continue;
+                    }
+                    Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
+                    while(keyIterator.hasNext()){
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        readResponse(key, warmupEnd);
+                    }
+                }
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+
+        private void readResponse(SelectionKey key, long warmupEnd) throws IOException {
+            long[] state = (long[]) key.attachment();
+
+            this.readBuffer.clear();
+            int bytesRead = ((SocketChannel) key.channel()).read(this.readBuffer);
+            if(bytesRead == -1){
+                throw new IOException("Server closed the connection");
+            }
+            state[1] += bytesRead;
+
+            if(state[1] >= this.responseLength){
+                long now = System.nanoTime();
+                if(now > warmupEnd){
+                    addSample(now - state[0]);
+                }
+                sendRequest(key);
+            }
+        }
+
+        private void sendRequest(SelectionKey key) throws IOException {
+            long[] state = (long[]) key.attachment();
+            state[0] = System.nanoTime();
+            state[1] = 0;
+
+            // the request is far smaller than the socket send buffer - a single write sends all of it.
+            ((SocketChannel) key.channel()).write(ByteBuffer.wrap(REQUEST));
+        }
+
+        private void addSample(long sample) {
+            if(this.sampleCount == this.samples.length){
+                this.samples = Arrays.copyOf(this.samples, this.samples.length * 2);
+            }
+            this.samples[this.sampleCount++] = sample;
+        }
+
+        void close() throws IOException {
+            for(SelectionKey key : this.selector.keys()){
+                key.channel().close();
+            }
+            this.selector.close();
+        }
+    }
+
+}
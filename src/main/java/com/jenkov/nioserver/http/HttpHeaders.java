@@ -1,6 +1,10 @@
 package com.jenkov.nioserver.http;
 
 /**
+ * The method, path, Host, Content-Length and header positions of a HTTP request. All indexes are absolute indexes
+ * into the buffer the request was parsed from - once HttpUtil.parseHttpRequest() has returned the end of the
+ * request. While the request is incomplete they are relative to the start of the request.
+ *
  * Created by jjenkov on 19-10-2015.
  */
 public class HttpHeaders {
@@ -13,15 +17,97 @@ public class HttpHeaders {
 
     public int httpMethod    = 0;
 
+    public int pathStartIndex = 0;
+    public int pathEndIndex   = 0;
+
     public int hostStartIndex = 0;
     public int hostEndIndex   = 0;
 
     public int contentLength = 0;
 
+    // false = the connection is closed after the response - "Connection: close", or HTTP/1.0 without keep-alive.
+    public boolean keepAlive = true;
+
     public int bodyStartIndex = 0;
     public int bodyEndIndex   = 0;
 
+    // 4 indexes per header: name start, name end, value start, value end.
+    public int[] headerIndexes = new int[4 * 16];
+    public int   headerCount   = 0;
+
+    // parser state, so HttpUtil.parseHttpRequest() can resume where the previous call stopped.
+    // Relative to the start of the request, so the request may be moved to another block in between.
+    static final int PARSE_REQUEST_LINE = 0;
+    static final int PARSE_HEADERS      = 1;
+    static final int PARSE_BODY         = 2;
+    static final int PARSE_COMPLETE     = 3;
+    static final int PARSE_ERROR        = 4; // a malformed request - e.g. an invalid Content-Length.
+
+    int parseState     = PARSE_REQUEST_LINE;
+    int lineStartIndex = 0; // start of the line being parsed
+    int scanIndex      = 0; // first byte not scanned for a line break yet
+
+    // a larger Content-Length is a bad request. A setting of the reader - not cleared by reset().
+    int maxContentLength = Integer.MAX_VALUE;
+
+    /**
+     * @return true if the request is malformed, so the rest of the connection cannot be parsed - close it.
+     */
+    public boolean isBadRequest() {
+        return this.parseState == PARSE_ERROR;
+    }
+
+    public int getHeaderNameStartIndex(int header)  { return this.headerIndexes[header * 4];     }
+    public int getHeaderNameEndIndex(int header)    { return this.headerIndexes[header * 4 + 1]; }
+    public int getHeaderValueStartIndex(int header) { return this.headerIndexes[header * 4 + 2]; }
+    public int getHeaderValueEndIndex(int header)   { return this.headerIndexes[header * 4 + 3]; }
+
+    void addHeader(int nameStartIndex, int nameEndIndex, int valueStartIndex, int valueEndIndex) {
+        int index = this.headerCount * 4;
+        if(index == this.headerIndexes.length){
+            int[] newHeaderIndexes = new int[this.headerIndexes.length * 2];
+            System.arraycopy(this.headerIndexes, 0, newHeaderIndexes, 0, this.headerIndexes.length);
+            this.headerIndexes = newHeaderIndexes;
+        }
+        this.headerIndexes[index]     = nameStartIndex;
+        this.headerIndexes[index + 1] = nameEndIndex;
+        this.headerIndexes[index + 2] = valueStartIndex;
+        this.headerIndexes[index + 3] = valueEndIndex;
+        this.headerCount++;
+    }
 
+    /**
+     * Adds startIndex to all indexes - turns indexes relative to the start of the request into absolute indexes, or
+     * moves them along when the request is copied to another index.
+     */
+    void moveIndexes(int startIndex) {
+        this.pathStartIndex += startIndex;
+        this.pathEndIndex   += startIndex;
+        if(this.hostEndIndex != 0){
+            this.hostStartIndex += startIndex;
+            this.hostEndIndex   += startIndex;
+        }
+        this.bodyStartIndex += startIndex;
+        this.bodyEndIndex   += startIndex;
+        for(int i=0, n=this.headerCount * 4; i<n; i++){
+            this.headerIndexes[i] += startIndex;
+        }
+    }
 
+    public void reset() {
+        this.httpMethod     = 0;
+        this.pathStartIndex = 0;
+        this.pathEndIndex   = 0;
+        this.hostStartIndex = 0;
+        this.hostEndIndex   = 0;
+        this.contentLength  = 0;
+        this.keepAlive      = true;
+        this.bodyStartIndex = 0;
+        this.bodyEndIndex   = 0;
+        this.headerCount    = 0;
+        this.parseState     = PARSE_REQUEST_LINE;
+        this.lineStartIndex = 0;
+        this.scanIndex      = 0;
+    }
 
 }
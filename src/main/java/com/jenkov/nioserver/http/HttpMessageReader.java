@@ -11,58 +11,322 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * Reads HTTP requests. Requests with a body longer than the stream threshold are streamed: the request line and
+ * headers are passed on as a Message.PART_HEAD message, the body as Message.PART_BODY messages of at most
+ * STREAM_CHUNK_SIZE bytes, as it is read off the socket - see IStreamingMessageProcessor.
+ *
  * Created by jjenkov on 18-10-2015.
  */
 public class HttpMessageReader implements IMessageReader {
 
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
     private MessageBuffer messageBuffer    = null;
 
     private List<Message> completeMessages = new ArrayList<Message>();
     private Message       nextMessage      = null;
 
+    private int           streamThreshold  = -1; // -1 = no streaming.
+    private int           maxContentLength = -1; // -1 = as much as the MessageBuffer holds, unless streaming.
+    private int           streamRemaining  = 0;  // bytes of the streamed body not read yet.
+    private boolean       streamKeepAlive  = true; // false = close the connection after the streamed request.
+
     public HttpMessageReader() {
     }
 
     /**
-     * 相当于从buffer中划出一块蛋糕,然后给划出的message赋值，赋了个http头
+     * @param streamThreshold Requests with a longer body are streamed. -1 = read all requests in full.
+     */
+    public HttpMessageReader(int streamThreshold) {
+        this.streamThreshold = streamThreshold;
+    }
+
+    /**
+     * @param streamThreshold  Requests with a longer body are streamed. -1 = read all requests in full.
+     * @param maxContentLength Requests with a longer body are rejected - the connection is closed. -1 = as much as
+     *                         the MessageBuffer holds when reading requests in full, no limit when streaming.
+     */
+    public HttpMessageReader(int streamThreshold, int maxContentLength) {
+        this.streamThreshold  = streamThreshold;
+        this.maxContentLength = maxContentLength;
+    }
+
+    /**
+     * The next message is taken from the buffer on the first read, not here - idle sockets hold no block.
      *
      * @param readMessageBuffer
      */
     @Override
     public void init(MessageBuffer readMessageBuffer) {
         this.messageBuffer        = readMessageBuffer;
-        // 相当于从buffer中划出一块蛋糕
-        this.nextMessage          = messageBuffer.getMessage();
-        // 然后给划出的message赋值，赋了个http头
-        this.nextMessage.metaData = new HttpHeaders();
+        if(this.maxContentLength == -1){
+            this.maxContentLength = this.streamThreshold >= 0
+                    ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, readMessageBuffer.getMaxMemory());
+        }
     }
 
+    /**
+     * Reads straight from the socket into the free section of the next message - the byteBuffer is not used. The
+     * first block of a new message is as large as the socket's AdaptiveReadSize expects the read to be, so the
+     * message rarely has to be copied into a larger block.
+     *
+     * Exception: a blocking socket waits for the first bytes of a message in the byteBuffer, so a thread waiting for
+     * the next request does not hold a block of the MessageBuffer.
+     */
     @Override
     public void read(Socket socket, ByteBuffer byteBuffer) throws IOException {
-        // 从Channel中读数据到buffer
-        int bytesRead = socket.read(byteBuffer);
-        // 翻转一下,buffer准备往外输出
-        byteBuffer.flip();
+        int bytesRead = 0;
 
-        if(byteBuffer.remaining() == 0){
+        if(this.streamRemaining > 0){
+            readBodyChunk(socket);
+            return;
+        }
+
+        if(this.nextMessage == null && socket.blocking){
             byteBuffer.clear();
+            bytesRead = socket.read(byteBuffer);
+            if(bytesRead <= 0){
+                return;
+            }
+            byteBuffer.flip();
+
+            if(!takeNextMessage() || this.nextMessage.writeToMessage(byteBuffer) == -1){
+                socket.endOfStreamReached = true; // the bytes read cannot be stored - close the socket.
+                return;
+            }
+        } else {
+            if(this.nextMessage == null && !takeNextMessage(socket.readSize != null ? socket.readSize.getReadSize() : 0)){
+                return; // no free block - leave the data in the socket until blocks are released again.
+            }
+
+            // 从Channel中读数据到message
+            bytesRead = this.streamThreshold >= 0 ? readBlock(socket, this.nextMessage) : socket.read(this.nextMessage);
+            if(socket.readSize != null){
+                socket.readSize.record(bytesRead);
+            }
+            if(bytesRead <= 0){
+                return;
+            }
+        }
+
+        parseMessages(socket);
+    }
+
+    /**
+     * Takes every complete request out of the bytes read into nextMessage - pipelining clients send several requests
+     * without waiting for the responses. The first request stays in the block of nextMessage, each following request
+     * and the incomplete rest are copied once into a message of their own.
+     */
+    private void parseMessages(Socket socket) {
+        Message message    = this.nextMessage;
+        int     endOfData  = message.offset + message.length;
+
+        int endIndex = parseHttpRequest(message, message.offset, endOfData, (HttpHeaders) message.metaData);
+        if(((HttpHeaders) message.metaData).isBadRequest() || (endIndex != -1 && endIndex <= message.offset)){
+            socket.endOfStreamReached = true; // e.g. an invalid Content-Length - the next request cannot be found.
+            return;
+        }
+        if(isStreamed((HttpHeaders) message.metaData)){
+            startStream(socket, endIndex, endOfData);
             return;
         }
+        if(endIndex == -1){
+            if(message.isChained() && ((HttpHeaders) message.metaData).parseState != HttpHeaders.PARSE_BODY){
+                socket.endOfStreamReached = true; // the headers do not fit into the first block - close the socket.
+            }
+            return;
+        }
+        completeMessages.add(message);
+        this.nextMessage = null;
 
-        this.nextMessage.writeToMessage(byteBuffer);
+        if(!((HttpHeaders) message.metaData).keepAlive){
+            socket.closeRequested = true; // the last request on this connection - the bytes after it are dropped.
+            endOfData = endIndex;
+        }
 
-        int endIndex = HttpUtil.parseHttpRequest(this.nextMessage.sharedArray, this.nextMessage.offset, this.nextMessage.offset + this.nextMessage.length, (HttpHeaders) this.nextMessage.metaData);
-        if(endIndex != -1){
-            // 进到这里说明一个message读完了,划出来下一个message
-            Message message = this.messageBuffer.getMessage();
-            message.metaData = new HttpHeaders();
+        if(message.isChained()){
+            // a large request - the bytes after it may be in any block, so copy them out as a whole and parse them there.
+            if(endIndex < endOfData){
+                if(!takeNextMessage() || this.nextMessage.writePartialMessageToMessage(message, endIndex, endOfData) == -1){
+                    socket.endOfStreamReached = true;
+                } else {
+                    parseMessages(socket);
+                }
+            }
+            message.truncate(endIndex - message.offset);
+            return;
+        }
+
+        // 进到这里说明一个message读完了 - parse the requests after it in the same block, then copy each out.
+        int firstEndIndex = endIndex;
+        int startIndex    = endIndex;
+        while(startIndex < endOfData){
+            if(!takeNextMessage()){
+                socket.endOfStreamReached = true; // the bytes read cannot be stored - close the socket.
+                break;
+            }
+            HttpHeaders httpHeaders = (HttpHeaders) this.nextMessage.metaData;
+
+            endIndex = HttpUtil.parseHttpRequest(message.sharedBuffer, startIndex, endOfData, httpHeaders);
+            if(httpHeaders.isBadRequest() || (endIndex != -1 && endIndex <= startIndex)){
+                socket.endOfStreamReached = true; // a request must end after its start - else this loop never ends.
+                break;
+            }
+            if(isStreamed(httpHeaders)){
+                // the body is read in chunks - copy the rest out as a whole and stream the request from there.
+                if(this.nextMessage.writePartialMessageToMessage(message, startIndex, endOfData) == -1){
+                    socket.endOfStreamReached = true;
+                } else {
+                    parseMessages(socket);
+                }
+                break;
+            }
+            int requestEndIndex = endIndex != -1 ? endIndex : endOfData;
+
+            if(this.nextMessage.writePartialMessageToMessage(message, startIndex, requestEndIndex) == -1){
+                socket.endOfStreamReached = true;
+                break;
+            }
+            if(endIndex == -1){
+                break; // incomplete - the parser state is relative to the request start, so it continues in the new block.
+            }
 
-            message.writePartialMessageToMessage(nextMessage, endIndex);
+            httpHeaders.moveIndexes(this.nextMessage.offset - startIndex);
+            completeMessages.add(this.nextMessage);
+            this.nextMessage = null;
+            startIndex = endIndex;
 
-            completeMessages.add(nextMessage);
-            nextMessage = message;
+            if(!httpHeaders.keepAlive){
+                socket.closeRequested = true;
+                break;
+            }
         }
-        byteBuffer.clear();
+
+        // the first request ends where the second one starts.
+        message.length = firstEndIndex - message.offset;
+    }
+
+    private boolean isStreamed(HttpHeaders httpHeaders) {
+        return this.streamThreshold >= 0 && httpHeaders.parseState >= HttpHeaders.PARSE_BODY && httpHeaders.contentLength > this.streamThreshold;
+    }
+
+    /**
+     * Passes nextMessage on as the head of a streamed request, and the body bytes read along with it as body chunks.
+     * The rest of the body is read by readBodyChunk(). The head gets absolute indexes like a complete request, with
+     * bodyEndIndex = bodyStartIndex - the body is not part of it.
+     *
+     * @param endIndex The end index of the request if it has been read in full, otherwise -1.
+     */
+    private void startStream(Socket socket, int endIndex, int endOfData) {
+        Message     message     = this.nextMessage;
+        HttpHeaders httpHeaders = (HttpHeaders) message.metaData;
+        if(endIndex == -1){
+            httpHeaders.moveIndexes(message.offset);
+        }
+        int bodyStartIndex = httpHeaders.bodyStartIndex;
+        int bodyEndIndex   = Math.min(endOfData, bodyStartIndex + httpHeaders.contentLength);
+        httpHeaders.bodyEndIndex = bodyStartIndex;
+        httpHeaders.parseState   = HttpHeaders.PARSE_COMPLETE; // reset before the HttpHeaders are used again.
+
+        message.part = Message.PART_HEAD;
+        completeMessages.add(message);
+        this.nextMessage     = null;
+        this.streamRemaining = httpHeaders.contentLength;
+        this.streamKeepAlive = httpHeaders.keepAlive;
+        if(!httpHeaders.keepAlive){
+            endOfData = bodyEndIndex; // the bytes after the body are dropped.
+        }
+
+        for(int index = bodyStartIndex; index < bodyEndIndex && !socket.endOfStreamReached; index += STREAM_CHUNK_SIZE){
+            int chunkEndIndex = Math.min(bodyEndIndex, index + STREAM_CHUNK_SIZE);
+            Message chunk = this.messageBuffer.getMessage(chunkEndIndex - index);
+            if(chunk == null){
+                socket.endOfStreamReached = true; // the bytes read cannot be stored - close the socket.
+                break;
+            }
+            chunk.writePartialMessageToMessage(message, index, chunkEndIndex);
+            addBodyChunk(socket, chunk);
+        }
+
+        if(bodyEndIndex < endOfData && !socket.endOfStreamReached){
+            // the whole body has been read - and the next requests after it.
+            if(!takeNextMessage() || this.nextMessage.writePartialMessageToMessage(message, bodyEndIndex, endOfData) == -1){
+                socket.endOfStreamReached = true;
+            } else {
+                parseMessages(socket);
+            }
+        }
+        message.truncate(bodyStartIndex - message.offset);
+    }
+
+    /**
+     * Reads the next chunk of a streamed body - at most STREAM_CHUNK_SIZE bytes, and never beyond the end of the
+     * body, so the next request stays in the socket.
+     */
+    private void readBodyChunk(Socket socket) throws IOException {
+        Message chunk = this.messageBuffer.getMessage(Math.min(this.streamRemaining, STREAM_CHUNK_SIZE));
+        if(chunk == null){
+            return; // no free block - leave the data in the socket until blocks are released again.
+        }
+
+        ByteBuffer freeSection = chunk.getFreeSectionByteBuffer();
+        freeSection.limit(freeSection.position() + Math.min(freeSection.remaining(), this.streamRemaining));
+        int startPosition = freeSection.position();
+        socket.read(freeSection);
+        chunk.length = freeSection.position() - startPosition;
+
+        if(chunk.length == 0){
+            chunk.release();
+            return;
+        }
+        addBodyChunk(socket, chunk);
+    }
+
+    private void addBodyChunk(Socket socket, Message chunk) {
+        resetHttpHeaders(chunk); // not used by body chunks - but must not look like the headers of an earlier request.
+        this.streamRemaining -= chunk.length;
+        chunk.part = this.streamRemaining == 0 ? Message.PART_LAST_BODY : Message.PART_BODY;
+        completeMessages.add(chunk);
+
+        if(this.streamRemaining == 0 && !this.streamKeepAlive){
+            socket.closeRequested = true;
+        }
+    }
+
+    /**
+     * Reads no more than fits into the message - expanding it once if it is full - so a body that is going to be
+     * streamed is not read into the message along with the head.
+     */
+    private int readBlock(Socket socket, Message message) throws IOException {
+        if(message.isFull() && !message.expand()){
+            socket.endOfStreamReached = true;
+            return 0;
+        }
+        ByteBuffer freeSection = message.getFreeSectionByteBuffer();
+        int startPosition = freeSection.position();
+        socket.read(freeSection);
+
+        int bytesRead = freeSection.position() - startPosition;
+        message.length += bytesRead;
+        return bytesRead;
+    }
+
+    /**
+     * Parses the request in the message starting at startIndex. The request line and the headers must be within the
+     * first block of a chained message - the parser reads their bytes from sharedBuffer. The body may continue in
+     * the chained blocks: the parser only compares its end index against endIndex, which counts all blocks.
+     */
+    private static int parseHttpRequest(Message message, int startIndex, int endIndex, HttpHeaders httpHeaders) {
+        int firstBlockEndIndex = message.offset + message.capacity;
+        if(endIndex <= firstBlockEndIndex){
+            return HttpUtil.parseHttpRequest(message.sharedBuffer, startIndex, endIndex, httpHeaders);
+        }
+
+        int requestEndIndex = HttpUtil.parseHttpRequest(message.sharedBuffer, startIndex, firstBlockEndIndex, httpHeaders);
+        if(requestEndIndex != -1 || httpHeaders.parseState != HttpHeaders.PARSE_BODY){
+            return requestEndIndex;
+        }
+        return HttpUtil.parseHttpRequest(message.sharedBuffer, startIndex, endIndex, httpHeaders);
     }
 
 
@@ -71,4 +335,51 @@ public class HttpMessageReader implements IMessageReader {
         return this.completeMessages;
     }
 
+    @Override
+    public boolean isReadingHeaders() {
+        return this.nextMessage != null && this.nextMessage.length > 0 && ((HttpHeaders) this.nextMessage.metaData).parseState < HttpHeaders.PARSE_BODY;
+    }
+
+    @Override
+    public void dispose() {
+        if(this.nextMessage != null){
+            this.nextMessage.release();
+            this.nextMessage = null;
+        }
+    }
+
+    private boolean takeNextMessage() {
+        return takeNextMessage(0);
+    }
+
+    /**
+     * @param minCapacity The size of the first block of the message - falls back to the smallest block if there is
+     *                    no free block that large.
+     */
+    private boolean takeNextMessage(int minCapacity) {
+        // 相当于从buffer中划出一块蛋糕
+        this.nextMessage = minCapacity > 0 ? this.messageBuffer.getMessage(minCapacity) : null;
+        if(this.nextMessage == null){
+            this.nextMessage = this.messageBuffer.getMessage();
+        }
+        if(this.nextMessage == null){
+            return false;
+        }
+        // 然后给划出的message赋值，赋了个http头
+        resetHttpHeaders(this.nextMessage);
+        return true;
+    }
+
+    /**
+     * Pooled messages keep their HttpHeaders from earlier use - reset and reuse them instead of allocating new ones.
+     */
+    private void resetHttpHeaders(Message message) {
+        if(message.metaData instanceof HttpHeaders){
+            ((HttpHeaders) message.metaData).reset();
+        } else {
+            message.metaData = new HttpHeaders();
+        }
+        ((HttpHeaders) message.metaData).maxContentLength = this.maxContentLength;
+    }
+
 }
@@ -9,11 +9,31 @@ import com.jenkov.nioserver.MessageBuffer;
  */
 public class HttpMessageReaderFactory implements IMessageReaderFactory {
 
+    private int streamThreshold  = -1;
+    private int maxContentLength = -1;
+
     public HttpMessageReaderFactory() {
     }
 
+    /**
+     * @param streamThreshold Requests with a body longer than this are streamed to the message processor, which
+     *                        must be an IStreamingMessageProcessor then. -1 = no streaming.
+     */
+    public HttpMessageReaderFactory(int streamThreshold) {
+        this.streamThreshold = streamThreshold;
+    }
+
+    /**
+     * @param maxContentLength Requests with a longer body are rejected by closing the connection. -1 = as much as
+     *                         the read MessageBuffer holds, no limit for streamed requests.
+     */
+    public HttpMessageReaderFactory(int streamThreshold, int maxContentLength) {
+        this.streamThreshold  = streamThreshold;
+        this.maxContentLength = maxContentLength;
+    }
+
     @Override
     public IMessageReader createMessageReader() {
-        return new HttpMessageReader();
+        return new HttpMessageReader(this.streamThreshold, this.maxContentLength);
     }
 }
@@ -1,8 +1,14 @@
 package com.jenkov.nioserver.http;
 
-import java.io.UnsupportedEncodingException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
+ * Parses HTTP requests. The parsing methods work on ByteBuffers using absolute indexes only, so they work the same
+ * for heap, direct and memory mapped buffers. The byte[] variants wrap the array and delegate.
+ *
  * Created by jjenkov on 19-10-2015.
  */
 public class HttpUtil {
@@ -13,117 +19,244 @@ public class HttpUtil {
     private static final byte[] HEAD   = new byte[]{'H','E','A','D'};
     private static final byte[] DELETE = new byte[]{'D','E','L','E','T','E'};
 
+    // SWAR (SIMD within a register) constants - see findNext().
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long      ONES      = 0x0101010101010101L;
+    private static final long      HIGH_BITS = 0x8080808080808080L;
+
     private static final byte[] HOST           = new byte[]{'H','o','s','t'};
     private static final byte[] CONTENT_LENGTH = new byte[]{'C','o','n','t','e','n','t','-','L','e','n','g','t','h'};
+    private static final byte[] CONNECTION     = new byte[]{'C','o','n','n','e','c','t','i','o','n'};
+    private static final byte[] CLOSE          = new byte[]{'c','l','o','s','e'};
+    private static final byte[] KEEP_ALIVE     = new byte[]{'k','e','e','p','-','a','l','i','v','e'};
+    private static final byte[] HTTP_1_0       = new byte[]{'H','T','T','P','/','1','.','0'};
 
     public static int parseHttpRequest(byte[] src, int startIndex, int endIndex, HttpHeaders httpHeaders){
+        return parseHttpRequest(ByteBuffer.wrap(src), startIndex, endIndex, httpHeaders);
+    }
 
+    /**
+     * Parses the HTTP request starting at startIndex. Returns the index of the first byte after the request, or -1
+     * if the bytes up to endIndex do not contain the full request yet - or if the request is malformed, in which
+     * case httpHeaders.isBadRequest() is true.
+     *
+     * The parser keeps its state in the httpHeaders, so calling it again with the same httpHeaders after more bytes
+     * have arrived continues where the previous call stopped, instead of scanning the request from the first byte.
+     * The request may have been moved to another startIndex in between. A completely parsed httpHeaders is reset
+     * before parsing the next request.
+     */
+    public static int parseHttpRequest(ByteBuffer src, int startIndex, int endIndex, HttpHeaders httpHeaders){
+        if(httpHeaders.parseState == HttpHeaders.PARSE_COMPLETE){
+            httpHeaders.reset();
+        }
+        if(httpHeaders.parseState == HttpHeaders.PARSE_ERROR){
+            return -1;
+        }
 
-        /*
-        int endOfHttpMethod = findNext(src, startIndex, endIndex, (byte) ' ');
-        if(endOfHttpMethod == -1) return false;
-        resolveHttpMethod(src, startIndex, httpHeaders);
-        */
-
-        //parse HTTP request line
-        int endOfFirstLine = findNextLineBreak(src, startIndex, endIndex);
-        if(endOfFirstLine == -1) return -1;
-
-
-        //parse HTTP headers
-        int prevEndOfHeader = endOfFirstLine + 1;
-        int endOfHeader = findNextLineBreak(src, prevEndOfHeader, endIndex);
+        //parse HTTP request line and headers - one line at a time, from where the previous call stopped.
+        while(httpHeaders.parseState != HttpHeaders.PARSE_BODY){
+            int lineStartIndex = startIndex + httpHeaders.lineStartIndex;
+            int scanIndex      = Math.max(startIndex + httpHeaders.scanIndex, lineStartIndex + 1);
 
-        while(endOfHeader != -1 && endOfHeader != prevEndOfHeader + 1){    //prevEndOfHeader + 1 = end of previous header + 2 (+2 = CR + LF)
+            int endOfLine = findNextLineBreak(src, scanIndex, endIndex);
+            if(endOfLine == -1){
+                httpHeaders.scanIndex = Math.max(endIndex, scanIndex) - startIndex;
+                return -1;
+            }
 
-            if(matches(src, prevEndOfHeader, CONTENT_LENGTH)){
-                try {
-                    findContentLength(src, prevEndOfHeader, endIndex, httpHeaders);
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
+            int lineEndIndex = endOfLine - 1; // index of the CR
+            if(httpHeaders.parseState == HttpHeaders.PARSE_REQUEST_LINE){
+                parseRequestLine(src, lineStartIndex, lineEndIndex, startIndex, httpHeaders);
+                httpHeaders.parseState = HttpHeaders.PARSE_HEADERS;
+            } else if(lineEndIndex == lineStartIndex){
+                //empty line = end of the headers
+                httpHeaders.bodyStartIndex = endOfLine + 1 - startIndex;
+                httpHeaders.parseState     = HttpHeaders.PARSE_BODY;
+            } else {
+                parseHeader(src, lineStartIndex, lineEndIndex, startIndex, httpHeaders);
+                if(httpHeaders.parseState == HttpHeaders.PARSE_ERROR){
+                    return -1;
                 }
             }
 
-            prevEndOfHeader = endOfHeader + 1;
-            endOfHeader = findNextLineBreak(src, prevEndOfHeader, endIndex);
+            httpHeaders.lineStartIndex = endOfLine + 1 - startIndex;
+            httpHeaders.scanIndex      = httpHeaders.lineStartIndex;
         }
 
-        if(endOfHeader == -1){
+        //check that the buffer contains the full HTTP message - in long, a large Content-Length must not wrap around.
+        long bodyEndIndex = (long) startIndex + httpHeaders.bodyStartIndex + httpHeaders.contentLength;
+        if(bodyEndIndex > endIndex){
             return -1;
         }
 
-        //check that byte array contains full HTTP message.
-        int bodyStartIndex = endOfHeader + 1;
-        int bodyEndIndex  = bodyStartIndex + httpHeaders.contentLength;
+        //the buffer contains a full HTTP request
+        httpHeaders.bodyEndIndex = (int) bodyEndIndex - startIndex;
+        httpHeaders.parseState   = HttpHeaders.PARSE_COMPLETE;
+        httpHeaders.moveIndexes(startIndex);
+        return (int) bodyEndIndex;
+    }
 
-        if(bodyEndIndex <= endIndex){
-            //byte array contains a full HTTP request
-            httpHeaders.bodyStartIndex = bodyStartIndex;
-            httpHeaders.bodyEndIndex   = bodyEndIndex;
-            return bodyEndIndex;
-        }
+    private static void parseRequestLine(ByteBuffer src, int lineStartIndex, int lineEndIndex, int startIndex, HttpHeaders httpHeaders) {
+        resolveHttpMethod(src, lineStartIndex, httpHeaders);
 
+        int endOfMethod = findNext(src, lineStartIndex, lineEndIndex, (byte) ' ');
+        if(endOfMethod == -1){
+            return;
+        }
+        int endOfPath = findNext(src, endOfMethod + 1, lineEndIndex, (byte) ' ');
+        if(endOfPath == -1){
+            endOfPath = lineEndIndex;
+        }
+        httpHeaders.pathStartIndex = endOfMethod + 1 - startIndex;
+        httpHeaders.pathEndIndex   = endOfPath       - startIndex;
 
-       return -1;
+        // HTTP/1.0 closes the connection after the response, unless the request says keep-alive.
+        if(lineEndIndex - (endOfPath + 1) == HTTP_1_0.length && matches(src, endOfPath + 1, HTTP_1_0)){
+            httpHeaders.keepAlive = false;
+        }
     }
 
-    private static void findContentLength(byte[] src, int startIndex, int endIndex, HttpHeaders httpHeaders) throws UnsupportedEncodingException {
-        int indexOfColon = findNext(src, startIndex, endIndex, (byte) ':');
+    private static void parseHeader(ByteBuffer src, int lineStartIndex, int lineEndIndex, int startIndex, HttpHeaders httpHeaders) {
+        int indexOfColon = findNext(src, lineStartIndex, lineEndIndex, (byte) ':');
+        if(indexOfColon == -1){
+            return; // not a header - ignore the line.
+        }
 
-        //skip spaces after colon
-        int index = indexOfColon +1;
-        while(src[index] == ' '){
-            index++;
+        //skip spaces around the value
+        int valueStartIndex = indexOfColon + 1;
+        while(valueStartIndex < lineEndIndex && isWhitespace(src.get(valueStartIndex))){
+            valueStartIndex++;
         }
+        int valueEndIndex = lineEndIndex;
+        while(valueEndIndex > valueStartIndex && isWhitespace(src.get(valueEndIndex - 1))){
+            valueEndIndex--;
+        }
+
+        httpHeaders.addHeader(lineStartIndex - startIndex, indexOfColon - startIndex, valueStartIndex - startIndex, valueEndIndex - startIndex);
 
-        int valueStartIndex = index;
-        int valueEndIndex   = index;
-        boolean endOfValueFound = false;
+        if(matchesIgnoreCase(src, lineStartIndex, indexOfColon, CONTENT_LENGTH)){
+            httpHeaders.contentLength = parseContentLength(src, valueStartIndex, valueEndIndex);
+            if(httpHeaders.contentLength == -1 || httpHeaders.contentLength > httpHeaders.maxContentLength){
+                httpHeaders.parseState = HttpHeaders.PARSE_ERROR;
+            }
+        } else if(matchesIgnoreCase(src, lineStartIndex, indexOfColon, HOST)){
+            httpHeaders.hostStartIndex = valueStartIndex - startIndex;
+            httpHeaders.hostEndIndex   = valueEndIndex   - startIndex;
+        } else if(matchesIgnoreCase(src, lineStartIndex, indexOfColon, CONNECTION)){
+            if(containsToken(src, valueStartIndex, valueEndIndex, CLOSE)){
+                httpHeaders.keepAlive = false;
+            } else if(containsToken(src, valueStartIndex, valueEndIndex, KEEP_ALIVE)){
+                httpHeaders.keepAlive = true;
+            }
+        }
+    }
 
-        while(index < endIndex && !endOfValueFound){
-            switch(src[index]){
-                case '0' : ;
-                case '1' : ;
-                case '2' : ;
-                case '3' : ;
-                case '4' : ;
-                case '5' : ;
-                case '6' : ;
-                case '7' : ;
-                case '8' : ;
-                case '9' : { index++;  break; }
+    /**
+     * True if the comma separated list from startIndex to endIndex contains the token, ignoring case - e.g.
+     * "keep-alive, Upgrade".
+     */
+    private static boolean containsToken(ByteBuffer src, int startIndex, int endIndex, byte[] token) {
+        int tokenStartIndex = startIndex;
+        while(tokenStartIndex < endIndex){
+            int tokenEndIndex = findNext(src, tokenStartIndex, endIndex, (byte) ',');
+            if(tokenEndIndex == -1){
+                tokenEndIndex = endIndex;
+            }
+            int nextTokenStartIndex = tokenEndIndex + 1;
 
-                default: {
-                    endOfValueFound = true;
-                    valueEndIndex = index;
-                }
+            while(tokenStartIndex < tokenEndIndex && isWhitespace(src.get(tokenStartIndex))){
+                tokenStartIndex++;
+            }
+            while(tokenEndIndex > tokenStartIndex && isWhitespace(src.get(tokenEndIndex - 1))){
+                tokenEndIndex--;
             }
+            if(matchesIgnoreCase(src, tokenStartIndex, tokenEndIndex, token)){
+                return true;
+            }
+            tokenStartIndex = nextTokenStartIndex;
         }
+        return false;
+    }
 
-        httpHeaders.contentLength = Integer.parseInt(new String(src, valueStartIndex, valueEndIndex - valueStartIndex, "UTF-8"));
+    /**
+     * @return The Content-Length, or -1 if it is not a number, or too large for an int.
+     */
+    private static int parseContentLength(ByteBuffer src, int startIndex, int endIndex) {
+        if(startIndex == endIndex){
+            return -1;
+        }
+        //parse the digits directly - no String needed.
+        long contentLength = 0;
+        for(int index = startIndex; index < endIndex; index++){
+            byte digit = src.get(index);
+            if(digit < '0' || digit > '9'){
+                return -1;
+            }
+            contentLength = contentLength * 10 + (digit - '0');
+            if(contentLength > Integer.MAX_VALUE){
+                return -1;
+            }
+        }
+        return (int) contentLength;
+    }
 
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t';
     }
 
 
     public static int findNext(byte[] src, int startIndex, int endIndex, byte value){
-        for(int index = startIndex; index < endIndex; index++){
-            if(src[index] == value) return index;
+        return findNext(ByteBuffer.wrap(src), startIndex, endIndex, value);
+    }
+
+    /**
+     * Finds the first index of the value from startIndex (inclusive) to endIndex (exclusive), or -1.
+     *
+     * Scans 8 bytes at a time: each long read via the VarHandle is XOR'ed with the value repeated 8 times, which
+     * turns matching bytes into zero bytes, and the lowest zero byte is found with the "has zero byte" bit trick.
+     * The remaining bytes (less than 8) are scanned one at a time.
+     */
+    public static int findNext(ByteBuffer src, int startIndex, int endIndex, byte value){
+        long pattern = (value & 0xFFL) * ONES;
+
+        int index = startIndex;
+        for(; index <= endIndex - 8; index += 8){
+            long word = ((long) LONG_VIEW.get(src, index)) ^ pattern;
+            long zeroBytes = (word - ONES) & ~word & HIGH_BITS;
+            if(zeroBytes != 0){
+                return index + (Long.numberOfTrailingZeros(zeroBytes) >>> 3);
+            }
+        }
+        for(; index < endIndex; index++){
+            if(src.get(index) == value) return index;
         }
         return -1;
     }
 
     public static int findNextLineBreak(byte[] src, int startIndex, int endIndex) {
-        for(int index = startIndex; index < endIndex; index++){
-            if(src[index] == '\n'){
-                if(src[index - 1] == '\r'){
-                    return index;
-                }
-            };
+        return findNextLineBreak(ByteBuffer.wrap(src), startIndex, endIndex);
+    }
+
+    /**
+     * Finds the index of the first LF preceded by a CR, from startIndex to endIndex - or -1. The CR may be at
+     * startIndex - 1, so a line break split over two reads is found when scanning continues after the CR.
+     */
+    public static int findNextLineBreak(ByteBuffer src, int startIndex, int endIndex) {
+        int index = findNext(src, startIndex, endIndex, (byte) '\n');
+        while(index != -1){
+            if(src.get(index - 1) == '\r'){
+                return index;
+            }
+            index = findNext(src, index + 1, endIndex, (byte) '\n');
         }
         return -1;
     }
 
     public static void resolveHttpMethod(byte[] src, int startIndex, HttpHeaders httpHeaders){
+        resolveHttpMethod(ByteBuffer.wrap(src), startIndex, httpHeaders);
+    }
+
+    public static void resolveHttpMethod(ByteBuffer src, int startIndex, HttpHeaders httpHeaders){
         if(matches(src, startIndex, GET)) {
             httpHeaders.httpMethod = HttpHeaders.HTTP_METHOD_GET;
             return;
@@ -146,9 +279,28 @@ public class HttpUtil {
         }
     }
 
+    /**
+     * True if the bytes from startIndex to endIndex equal the value, ignoring the case of letters - for header names.
+     */
+    public static boolean matchesIgnoreCase(ByteBuffer src, int startIndex, int endIndex, byte[] value){
+        if(endIndex - startIndex != value.length) return false;
+
+        for(int i=startIndex, n=0; n < value.length; i++, n++){
+            byte b = src.get(i);
+            if(b != value[n] && (b ^ 0x20) != value[n]) return false;
+        }
+        return true;
+    }
+
     public static boolean matches(byte[] src, int offset, byte[] value){
+        return matches(ByteBuffer.wrap(src), offset, value);
+    }
+
+    public static boolean matches(ByteBuffer src, int offset, byte[] value){
+        if(offset + value.length > src.limit()) return false;
+
         for(int i=offset, n=0; n < value.length; i++, n++){
-            if(src[i] != value[n]) return false;
+            if(src.get(i) != value[n]) return false;
         }
         return true;
     }
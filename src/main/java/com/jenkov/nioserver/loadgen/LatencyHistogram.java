@@ -0,0 +1,139 @@
+package com.jenkov.nioserver.loadgen;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * A fixed memory histogram of long values (latencies in nanoseconds) in the style of HdrHistogram: values below
+ * 2^SUB_BUCKET_BITS are counted exactly, larger values in buckets whose width doubles with each power of two, so
+ * every recorded value is accurate to within 1 / 2^(SUB_BUCKET_BITS - 1) - about 0.8%.
+ *
+ * Recording is a single array increment and never allocates. Not thread safe - give each thread its own histogram
+ * and add() them together afterwards.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS  = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF  = SUB_BUCKET_COUNT / 2;
+
+    private long[] counts     = new long[indexOf(Long.MAX_VALUE) + 1];
+    private long   totalCount = 0;
+    private long   min        = Long.MAX_VALUE;
+    private long   max        = 0;
+    private double sum        = 0;
+
+    public void record(long value) {
+        if(value < 0){
+            value = 0;
+        }
+        this.counts[indexOf(value)]++;
+        this.totalCount++;
+        this.sum += value;
+        if(value < this.min) this.min = value;
+        if(value > this.max) this.max = value;
+    }
+
+    public void add(LatencyHistogram other) {
+        for(int i=0; i<this.counts.length; i++){
+            this.counts[i] += other.counts[i];
+        }
+        this.totalCount += other.totalCount;
+        this.sum        += other.sum;
+        this.min         = Math.min(this.min, other.min);
+        this.max         = Math.max(this.max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(this.counts, 0);
+        this.totalCount = 0;
+        this.sum        = 0;
+        this.min        = Long.MAX_VALUE;
+        this.max        = 0;
+    }
+
+    public long getTotalCount() { return this.totalCount; }
+    public long getMin()        { return this.totalCount == 0 ? 0 : this.min; }
+    public long getMax()        { return this.max; }
+    public double getMean()     { return this.totalCount == 0 ? 0 : this.sum / this.totalCount; }
+
+    /**
+     * @param percentile 0 - 100.
+     * @return The highest value of the bucket holding the value at the given percentile - capped to the max
+     *         recorded value.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if(this.totalCount == 0){
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100.0 * this.totalCount));
+
+        long count = 0;
+        for(int i=0; i<this.counts.length; i++){
+            count += this.counts[i];
+            if(count >= countAtPercentile){
+                return Math.min(highestValueAt(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Prints the distribution as a table of value, percentile, total count and 1/(1-percentile) - the same columns
+     * as HdrHistogram's percentile output, so the output can be plotted with the same tools. The percentile steps
+     * get finer towards 100%: 5 steps from 0 to 50%, 5 from 50 to 75%, and so on.
+     *
+     * @param valueUnitScale Values are divided by this before printing - e.g. 1000.0 to print microseconds.
+     */
+    public void outputPercentileDistribution(PrintStream out, double valueUnitScale) {
+        out.printf("%12s %14s %10s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+        if(this.totalCount == 0){
+            return;
+        }
+
+        double percentile = 0;
+        while(true){
+            long   value    = getValueAtPercentile(percentile);
+            long   count    = countAtOrBelow(value);
+            double fraction = (double) count / this.totalCount;
+            out.printf("%12.3f %14.12f %10d %14.2f%n", value / valueUnitScale, fraction, count,
+                    fraction < 1 ? 1 / (1 - fraction) : Double.POSITIVE_INFINITY);
+            if(count == this.totalCount){
+                break;
+            }
+            // 5 steps per halving of the distance to 100%.
+            double halvings = Math.floor(Math.log(100.0 / (100.0 - percentile)) / Math.log(2)) + 1;
+            percentile = Math.min(100, percentile + 100.0 / (5 * Math.pow(2, halvings)));
+        }
+        out.printf("#[Mean    = %12.3f, Max = %12.3f]%n", getMean() / valueUnitScale, this.max / valueUnitScale);
+        out.printf("#[Total count = %d]%n", this.totalCount);
+    }
+
+    private long countAtOrBelow(long value) {
+        long count = 0;
+        int  last  = indexOf(value);
+        for(int i=0; i<=last; i++){
+            count += this.counts[i];
+        }
+        return count;
+    }
+
+    static int indexOf(long value) {
+        if(value < SUB_BUCKET_COUNT){
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift); // SUB_BUCKET_HALF .. SUB_BUCKET_COUNT - 1
+        return shift * SUB_BUCKET_HALF + subBucket;
+    }
+
+    static long highestValueAt(int index) {
+        if(index < SUB_BUCKET_COUNT){
+            return index;
+        }
+        int shift     = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = index - (long) shift * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,415 @@
+package com.jenkov.nioserver.loadgen;
+
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.MessageWriter;
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.Socket;
+import com.jenkov.nioserver.example.Main;
+import com.jenkov.nioserver.http.HttpHeaders;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import com.jenkov.nioserver.http.HttpUtil;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Sends HTTP requests to a server over N connections and records throughput and the latency distribution. Built on
+ * the same classes as the server: requests are Messages from a MessageBuffer, written by a MessageWriter per
+ * connection, responses are read via Socket and framed with HttpUtil.parseHttpRequest() - which parses responses
+ * just as well, as they have the same header / Content-Length structure.
+ *
+ * With a fixed request rate, latencies are measured from the time each request should have been sent, not from the
+ * time it was sent - so a server stall also counts against the requests that queued up behind it.
+ *
+ * Usage: LoadGenerator [options]
+ *   --host h --port p          the server, default localhost:9999
+ *   --start-server             start an example.Main server in this JVM, on the given port
+ *   --connections n            default 16
+ *   --threads n                client threads, default 1
+ *   --depth n                  pipelined requests in flight per connection, default 1
+ *   --body n                   POST a body of n bytes instead of GET
+ *   --rate n                   total requests per second, default as fast as possible
+ *   --warmup s --duration s    default 1 and 10 seconds
+ *   --histogram                print the full latency distribution
+ *   --max-p99-us n             exit code 1 if the p99 latency is above n microseconds
+ *   --min-rps n                exit code 1 if the throughput is below n requests per second
+ *
+ * The exit code is also 1 if any connection failed - so a CI job can run it against a local server.
+ */
+public class LoadGenerator {
+
+    private LoadGeneratorConfig config = null;
+    private byte[]              request = null;
+
+    private LatencyHistogram latencyHistogram  = new LatencyHistogram();
+    private long             completedRequests = 0;
+    private long             errors            = 0;
+
+    public LoadGenerator(LoadGeneratorConfig config) {
+        this.config  = config;
+        this.request = createRequest(config);
+    }
+
+    public LatencyHistogram getLatencyHistogram() { return this.latencyHistogram;  }
+    public long getCompletedRequests()           { return this.completedRequests; }
+    public long getErrors()                      { return this.errors;            }
+
+    /** Completed requests per second, over the measured duration (without the warmup). */
+    public double getThroughput() {
+        return (double) this.completedRequests / this.config.durationSeconds;
+    }
+
+    /**
+     * Connects, runs the warmup and the measurement, and closes the connections again. Returns when done.
+     */
+    public void run() throws IOException, InterruptedException {
+        int threadCount = Math.max(1, Math.min(this.config.threads, this.config.connections));
+
+        long startTime   = System.nanoTime();
+        long recordStart = startTime   + this.config.warmupSeconds   * 1_000_000_000L;
+        long endTime     = recordStart + this.config.durationSeconds * 1_000_000_000L;
+
+        LoadThread[] loadThreads = new LoadThread[threadCount];
+        for(int i=0; i<threadCount; i++){
+            loadThreads[i] = new LoadThread(recordStart, endTime);
+        }
+        for(int i=0; i<this.config.connections; i++){
+            loadThreads[i % threadCount].connect(i, startTime);
+        }
+
+        Thread[] threads = new Thread[threadCount];
+        for(int i=0; i<threadCount; i++){
+            threads[i] = new Thread(loadThreads[i], "LoadGenerator-" + i);
+            threads[i].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        for(LoadThread loadThread : loadThreads){
+            this.latencyHistogram.add(loadThread.latencyHistogram);
+            this.completedRequests += loadThread.completedRequests;
+            this.errors            += loadThread.errors;
+        }
+    }
+
+    public void printReport(PrintStream out, boolean fullHistogram) {
+        out.printf("connections %d, pipeline depth %d, body %d bytes, rate %s%n", this.config.connections,
+                this.config.pipelineDepth, this.config.bodySize,
+                this.config.requestsPerSecond > 0 ? this.config.requestsPerSecond + " req/s" : "unbounded");
+        out.printf("requests    %d in %d s, %.0f req/s, %d errors%n", this.completedRequests,
+                this.config.durationSeconds, getThroughput(), this.errors);
+        out.printf("latency us  min %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, p99.99 %.1f, max %.1f%n",
+                this.latencyHistogram.getMin() / 1000.0,
+                this.latencyHistogram.getValueAtPercentile(50) / 1000.0,
+                this.latencyHistogram.getValueAtPercentile(90) / 1000.0,
+                this.latencyHistogram.getValueAtPercentile(99) / 1000.0,
+                this.latencyHistogram.getValueAtPercentile(99.9) / 1000.0,
+                this.latencyHistogram.getValueAtPercentile(99.99) / 1000.0,
+                this.latencyHistogram.getMax() / 1000.0);
+        if(fullHistogram){
+            out.println();
+            this.latencyHistogram.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private static byte[] createRequest(LoadGeneratorConfig config) {
+        StringBuilder request = new StringBuilder();
+        request.append(config.bodySize > 0 ? "POST " : "GET ").append(config.path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(config.host).append("\r\n");
+        if(config.bodySize > 0){
+            request.append("Content-Length: ").append(config.bodySize).append("\r\n");
+        }
+        request.append("\r\n");
+        for(int i=0; i<config.bodySize; i++){
+            request.append('x');
+        }
+        return request.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * The state of one client connection.
+     */
+    private static class Connection {
+        private Socket       socket          = null;
+        private SelectionKey key             = null;
+        private HttpHeaders  responseHeaders = new HttpHeaders();
+        private ByteBuffer   readBuffer      = ByteBuffer.allocate(4 * 1024);
+
+        // send times of the requests in flight, oldest first - a ring of pipelineDepth entries.
+        private long[] sendTimes     = null;
+        private int    sendTimesHead = 0;
+        private int    inFlight      = 0;
+
+        private long   nextSendTime  = 0; // fixed rate only
+    }
+
+
+    /**
+     * Drives a share of the connections from one Selector.
+     */
+    private class LoadThread implements Runnable {
+
+        private Selector         selector         = Selector.open();
+        private MessageBuffer    messageBuffer    = new MessageBuffer();
+        private List<Connection> connections      = new ArrayList<>();
+        private LatencyHistogram latencyHistogram = new LatencyHistogram();
+        private long             completedRequests = 0;
+        private long             errors            = 0;
+
+        private long recordStart = 0;
+        private long endTime     = 0;
+        private long sendIntervalNanos = 0; // per connection, fixed rate only
+
+        LoadThread(long recordStart, long endTime) throws IOException {
+            this.recordStart = recordStart;
+            this.endTime     = endTime;
+            if(config.requestsPerSecond > 0){
+                this.sendIntervalNanos = 1_000_000_000L * config.connections / config.requestsPerSecond;
+            }
+        }
+
+        void connect(int connectionIndex, long startTime) throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(config.host, config.port));
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+
+            Connection connection = new Connection();
+            connection.socket = new Socket(channel);
+            connection.socket.messageWriter = new MessageWriter(config.pipelineDepth);
+            connection.sendTimes = new long[config.pipelineDepth];
+            connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+            if(config.requestsPerSecond > 0){
+                // stagger the connections, so the requests are spread evenly over each interval.
+                connection.nextSendTime = startTime + 1_000_000_000L * connectionIndex / config.requestsPerSecond;
+            }
+            this.connections.add(connection);
+        }
+
+        public void run() {
+            try {
+                if(this.sendIntervalNanos == 0){
+                    for(Connection connection : this.connections){
+                        fillPipeline(connection, System.nanoTime());
+                    }
+                }
+
+                while(System.nanoTime() < this.endTime && !this.connections.isEmpty()){
+                    if(this.sendIntervalNanos > 0){
+                        sendScheduledRequests();
+                    }
+
+                    this.selector.select(this.sendIntervalNanos > 0 ? 1 : 100);
+
+                    Iterator<SelectionKey> keyIterator = this.selector.selectedKeys().iterator();
+                    while(keyIterator.hasNext()){
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if(key.isReadable()){
+                                readResponses(connection);
+                            }
+                            if(key.isValid() && key.isWritable()){
+                                flush(connection);
+                            }
+                        } catch(IOException e){
+                            close(connection);
+                        }
+                    }
+                }
+            } catch(IOException e){
+                e.printStackTrace();
+                this.errors++;
+            } finally {
+                for(Connection connection : new ArrayList<>(this.connections)){
+                    closeQuietly(connection);
+                }
+                try {
+                    this.selector.close();
+                } catch(IOException e){
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void sendScheduledRequests() throws IOException {
+            long now = System.nanoTime();
+            for(int i=0; i<this.connections.size(); i++){
+                Connection connection = this.connections.get(i);
+                boolean sent = false;
+                while(connection.inFlight < config.pipelineDepth && connection.nextSendTime <= now){
+                    // latency is measured from the time the request should have been sent.
+                    if(!enqueueRequest(connection, connection.nextSendTime)){
+                        break;
+                    }
+                    connection.nextSendTime += this.sendIntervalNanos;
+                    sent = true;
+                }
+                if(sent){
+                    flush(connection);
+                }
+            }
+        }
+
+        private void fillPipeline(Connection connection, long now) throws IOException {
+            while(connection.inFlight < config.pipelineDepth){
+                if(!enqueueRequest(connection, now)){
+                    break;
+                }
+            }
+            flush(connection);
+        }
+
+        private boolean enqueueRequest(Connection connection, long sendTime) {
+            Message message = this.messageBuffer.getMessage();
+            if(message == null){
+                return false; // all blocks are waiting to be written - try again later.
+            }
+            message.writeToMessage(request);
+            connection.socket.messageWriter.enqueue(message);
+
+            connection.sendTimes[(connection.sendTimesHead + connection.inFlight) % connection.sendTimes.length] = sendTime;
+            connection.inFlight++;
+            return true;
+        }
+
+        private void flush(Connection connection) throws IOException {
+            MessageWriter messageWriter = connection.socket.messageWriter;
+            if(!messageWriter.isEmpty()){
+                messageWriter.write(connection.socket);
+            }
+            connection.key.interestOps(messageWriter.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void readResponses(Connection connection) throws IOException {
+            connection.socket.read(connection.readBuffer);
+
+            ByteBuffer readBuffer = connection.readBuffer;
+            long now = System.nanoTime();
+
+            int startIndex = 0;
+            int endIndex   = HttpUtil.parseHttpRequest(readBuffer, startIndex, readBuffer.position(), connection.responseHeaders);
+            while(endIndex != -1){
+                if(connection.inFlight == 0){
+                    throw new IOException("Response without a request");
+                }
+                long sendTime = connection.sendTimes[connection.sendTimesHead];
+                connection.sendTimesHead = (connection.sendTimesHead + 1) % connection.sendTimes.length;
+                connection.inFlight--;
+
+                if(now >= this.recordStart){
+                    this.latencyHistogram.record(now - sendTime);
+                    this.completedRequests++;
+                }
+
+                startIndex = endIndex;
+                endIndex   = HttpUtil.parseHttpRequest(readBuffer, startIndex, readBuffer.position(), connection.responseHeaders);
+            }
+
+            // move the incomplete response to the start of the buffer - the parser state is relative to its start.
+            readBuffer.flip().position(startIndex);
+            readBuffer.compact();
+            if(!readBuffer.hasRemaining()){
+                ByteBuffer largerBuffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                largerBuffer.put(readBuffer);
+                connection.readBuffer = largerBuffer;
+            }
+
+            if(connection.socket.endOfStreamReached){
+                throw new IOException("Server closed the connection");
+            }
+
+            if(this.sendIntervalNanos == 0){
+                fillPipeline(connection, now);
+            }
+        }
+
+        private void close(Connection connection) {
+            this.errors++;
+            closeQuietly(connection);
+        }
+
+        private void closeQuietly(Connection connection) {
+            this.connections.remove(connection);
+            connection.socket.messageWriter.dispose();
+            try {
+                connection.socket.socketChannel.close();
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+        boolean startServer   = false;
+        boolean fullHistogram = false;
+        long    maxP99Micros  = 0;
+        long    minRps        = 0;
+
+        for(int i=0; i<args.length; i++){
+            switch(args[i]){
+                case "--host"         : config.host              = args[++i];                   break;
+                case "--port"         : config.port              = Integer.parseInt(args[++i]); break;
+                case "--connections"  : config.connections       = Integer.parseInt(args[++i]); break;
+                case "--threads"      : config.threads           = Integer.parseInt(args[++i]); break;
+                case "--depth"        : config.pipelineDepth     = Integer.parseInt(args[++i]); break;
+                case "--body"         : config.bodySize          = Integer.parseInt(args[++i]); break;
+                case "--rate"         : config.requestsPerSecond = Integer.parseInt(args[++i]); break;
+                case "--warmup"       : config.warmupSeconds     = Integer.parseInt(args[++i]); break;
+                case "--duration"     : config.durationSeconds   = Integer.parseInt(args[++i]); break;
+                case "--start-server" : startServer   = true;                                   break;
+                case "--histogram"    : fullHistogram = true;                                   break;
+                case "--max-p99-us"   : maxP99Micros  = Long.parseLong(args[++i]);              break;
+                case "--min-rps"      : minRps        = Long.parseLong(args[++i]);              break;
+                default : {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+
+        Server server = null;
+        if(startServer){
+            server = new Server(config.port, new HttpMessageReaderFactory(), Main.createMessageProcessor());
+            server.start();
+            Thread.sleep(500); // give the accepter thread time to bind
+        }
+
+        LoadGenerator loadGenerator = new LoadGenerator(config);
+        loadGenerator.run();
+        loadGenerator.printReport(System.out, fullHistogram);
+
+        if(server != null){
+            server.stop();
+        }
+
+        boolean failed = loadGenerator.getErrors() > 0;
+        long p99Micros = loadGenerator.getLatencyHistogram().getValueAtPercentile(99) / 1000;
+        if(maxP99Micros > 0 && p99Micros > maxP99Micros){
+            System.out.println("FAILED: p99 " + p99Micros + " us > " + maxP99Micros + " us");
+            failed = true;
+        }
+        if(minRps > 0 && loadGenerator.getThroughput() < minRps){
+            System.out.printf("FAILED: %.0f req/s < %d req/s%n", loadGenerator.getThroughput(), minRps);
+            failed = true;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+}
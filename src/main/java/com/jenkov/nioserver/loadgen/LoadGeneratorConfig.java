@@ -0,0 +1,30 @@
+package com.jenkov.nioserver.loadgen;
+
+/**
+ * Configuration values for a LoadGenerator. Change the fields before calling LoadGenerator.run().
+ */
+public class LoadGeneratorConfig {
+
+    // the server to send requests to.
+    public String  host                = "localhost";
+    public int     port                = 9999;
+
+    // number of connections, spread over the client threads.
+    public int     connections         = 16;
+    // number of client threads - each drives its connections from its own Selector.
+    public int     threads             = 1;
+    // max requests sent on a connection without having received their responses.
+    public int     pipelineDepth       = 1;
+    // > 0 = send POST requests with a body of this many bytes. 0 = send GET requests.
+    public int     bodySize            = 0;
+    // > 0 = send this many requests per second in total, spread evenly over the connections. 0 = as fast as possible.
+    public int     requestsPerSecond   = 0;
+
+    // requests sent during the warmup are not recorded.
+    public int     warmupSeconds       = 1;
+    public int     durationSeconds     = 10;
+
+    // the path requested - and the Host header sent.
+    public String  path                = "/";
+
+}
@@ -0,0 +1,56 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the read size grows fast with large reads and shrinks slowly with small ones.
+ */
+public class AdaptiveReadSizeTest {
+
+    @Test
+    public void testGrowAndShrink() {
+        AdaptiveReadSize readSize = new AdaptiveReadSize(4 * 1024, 64 * 1024);
+        assertEquals(4 * 1024, readSize.getReadSize());
+
+        //a read filling the guess - two steps up.
+        readSize.record(4 * 1024);
+        assertEquals(16 * 1024, readSize.getReadSize());
+        readSize.record(10 * 1024); // between the next smaller size and the guess - no change.
+        assertEquals(16 * 1024, readSize.getReadSize());
+        readSize.record(16 * 1024);
+        assertEquals(64 * 1024, readSize.getReadSize());
+        readSize.record(1024 * 1024); // capped at the max size.
+        assertEquals(64 * 1024, readSize.getReadSize());
+
+        //small reads - one step down after two in a row.
+        readSize.record(100);
+        assertEquals(64 * 1024, readSize.getReadSize());
+        readSize.record(100);
+        assertEquals(32 * 1024, readSize.getReadSize());
+
+        //a large read in between starts over.
+        readSize.record(100);
+        readSize.record(32 * 1024);
+        readSize.record(100);
+        assertEquals(64 * 1024, readSize.getReadSize());
+
+        for(int i=0; i<20; i++){
+            readSize.record(100);
+        }
+        assertEquals(4 * 1024, readSize.getReadSize());
+
+        readSize.record(0); // nothing read - no change.
+        assertEquals(4 * 1024, readSize.getReadSize());
+    }
+
+    @Test
+    public void testMaxSizeRoundedDown() {
+        AdaptiveReadSize readSize = new AdaptiveReadSize(4 * 1024, 50 * 1024);
+        for(int i=0; i<10; i++){
+            readSize.record(1024 * 1024);
+        }
+        assertEquals(32 * 1024, readSize.getReadSize());
+    }
+}
@@ -0,0 +1,174 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.example.Main;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the server in thread per connection mode - requests and responses, pipelining and "Connection: close". The
+ * server uses virtual threads where the JVM has them, and platform threads otherwise.
+ */
+public class BlockingSocketProcessorTest {
+
+    @Test
+    public void testRequestResponse() throws Exception {
+        Server server = startServer();
+        try {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            for(int i=0; i<3; i++){
+                write(client, "GET /" + i + " HTTP/1.1\r\n\r\n");
+                assertEquals(Main.HTTP_RESPONSE, read(client, Main.HTTP_RESPONSE.length()));
+            }
+
+            //a request with a body, sent in two parts.
+            write(client, "POST /upload HTTP/1.1\r\nContent-Length: 10\r\n\r\n12345");
+            Thread.sleep(50);
+            write(client, "67890");
+            assertEquals(Main.HTTP_RESPONSE, read(client, Main.HTTP_RESPONSE.length()));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * More requests in one write than the write queue of the socket takes - all are answered, in order.
+     */
+    @Test
+    public void testPipelining() throws Exception {
+        int requestCount = 300;
+
+        Server server = startServer();
+        try {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            StringBuilder requests = new StringBuilder();
+            for(int i=0; i<requestCount; i++){
+                requests.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+            }
+            write(client, requests.toString());
+
+            String responses = read(client, requestCount * Main.HTTP_RESPONSE.length());
+            assertEquals(requestCount * Main.HTTP_RESPONSE.length(), responses.length());
+            for(int i=0; i<requestCount; i++){
+                int start = i * Main.HTTP_RESPONSE.length();
+                assertEquals(Main.HTTP_RESPONSE, responses.substring(start, start + Main.HTTP_RESPONSE.length()));
+            }
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionClose() throws Exception {
+        Server server = startServer();
+        try {
+            //the request after "Connection: close" is not answered, and the connection is closed.
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            write(client, "GET /1 HTTP/1.1\r\nConnection: close\r\n\r\nGET /2 HTTP/1.1\r\n\r\n");
+            assertEquals(Main.HTTP_RESPONSE, read(client, 2 * Main.HTTP_RESPONSE.length()));
+            assertTrue(isClosed(client));
+
+            //the client closing the connection ends the thread of the socket - the server still serves others.
+            client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            client.close();
+            client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            write(client, "GET / HTTP/1.1\r\n\r\n");
+            assertEquals(Main.HTTP_RESPONSE, read(client, Main.HTTP_RESPONSE.length()));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up via reflection - on JVMs before 21 the lookup fails,
+     * and the server falls back to platform threads. Either way connections are served.
+     */
+    @Test
+    public void testVirtualThreadFallback() throws Exception {
+        ExecutorService executor = WorkerDispatcher.createVirtualThreadExecutor();
+        if(Runtime.version().feature() < 21){
+            assertNull(executor);
+        } else {
+            assertNotNull(executor);
+            executor.shutdown();
+        }
+
+        Server server = startServer();
+        try {
+            assertEquals(executor == null, server.isVirtualThreadFallback());
+
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            write(client, "GET / HTTP/1.1\r\n\r\n");
+            assertEquals(Main.HTTP_RESPONSE, read(client, Main.HTTP_RESPONSE.length()));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private Server startServer() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.serverMode = ServerConfig.SERVER_MODE_THREAD_PER_CONNECTION;
+        Server server = new Server(0, new HttpMessageReaderFactory(), Main.createMessageProcessor(), config);
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return What was read - up to length bytes, or less if the connection was closed or 5 seconds have passed.
+     */
+    private String read(SocketChannel client, int length) throws Exception {
+        client.configureBlocking(false);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long timeout = System.currentTimeMillis() + 5000;
+        while(buffer.hasRemaining() && System.currentTimeMillis() < timeout){
+            int bytesRead = client.read(buffer);
+            if(bytesRead == -1){
+                break;
+            }
+            if(bytesRead == 0){
+                Thread.sleep(1);
+            }
+        }
+        client.configureBlocking(true);
+        return new String(buffer.array(), 0, buffer.position(), "UTF-8");
+    }
+
+    private boolean isClosed(SocketChannel client) throws Exception {
+        client.configureBlocking(false);
+        try {
+            long timeout = System.currentTimeMillis() + 2000;
+            while(System.currentTimeMillis() < timeout){
+                if(client.read(ByteBuffer.allocate(1)) == -1){
+                    return true;
+                }
+                Thread.sleep(1);
+            }
+            return false;
+        } catch(IOException e){
+            return true;
+        } finally {
+            client.configureBlocking(true);
+        }
+    }
+
+    private void write(SocketChannel client, String data) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data.getBytes("UTF-8"));
+        while(byteBuffer.hasRemaining()){
+            client.write(byteBuffer);
+        }
+    }
+}
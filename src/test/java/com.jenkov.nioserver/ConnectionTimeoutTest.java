@@ -0,0 +1,200 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.example.Main;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the server closes connections after "Connection: close", and when the idle or header timeout expires.
+ */
+public class ConnectionTimeoutTest {
+
+    @Test
+    public void testConnectionClose() throws Exception {
+        ServerConfig config = new ServerConfig();
+        Server server = startServer(config);
+        try {
+            int port = server.getLocalPort();
+
+            //the second request after "Connection: close" is not answered.
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", port));
+            write(client, "GET /1 HTTP/1.1\r\nConnection: close\r\n\r\nGET /2 HTTP/1.1\r\n\r\n");
+            assertEquals(Main.HTTP_RESPONSE, readUntilClosed(client, 2000));
+
+            //keep-alive - the connection stays open for the next request.
+            client = SocketChannel.open(new InetSocketAddress("localhost", port));
+            write(client, "GET /1 HTTP/1.1\r\n\r\n");
+            assertEquals(Main.HTTP_RESPONSE, readUntilClosed(client, 300));
+            write(client, "GET /2 HTTP/1.1\r\n\r\n");
+            assertEquals(Main.HTTP_RESPONSE, readUntilClosed(client, 300));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.idleTimeoutMillis   = 300;
+        config.headerTimeoutMillis = 300;
+        config.timerTickMillis     = 20;
+        Server server = startServer(config);
+        try {
+            int port = server.getLocalPort();
+
+            //idle after a request - closed by the idle timeout.
+            SocketChannel idleClient = SocketChannel.open(new InetSocketAddress("localhost", port));
+            write(idleClient, "GET / HTTP/1.1\r\n\r\n");
+            long start = System.currentTimeMillis();
+            assertEquals(Main.HTTP_RESPONSE, readUntilClosed(idleClient, 2000));
+            long idleMillis = System.currentTimeMillis() - start;
+            assertTrue(idleMillis >= 250 && idleMillis < 1500);
+
+            //headers sent slowly - closed by the header timeout, although the client sends a byte every 100ms.
+            SocketChannel slowClient = SocketChannel.open(new InetSocketAddress("localhost", port));
+            start = System.currentTimeMillis();
+            boolean closed = false;
+            for(int i=0; i<20 && !closed; i++){
+                try {
+                    write(slowClient, "X-Slow: " + i + "\r\n");
+                } catch(IOException e){
+                    closed = true;
+                }
+                Thread.sleep(100);
+                closed |= isClosed(slowClient);
+            }
+            assertTrue(closed);
+            assertTrue(System.currentTimeMillis() - start < 1500);
+
+            SocketProcessor socketProcessor = server.getSocketProcessors()[0];
+            assertEquals(2, socketProcessor.getTimedOutSocketCount());
+            assertEquals(2, socketProcessor.getClosedSocketCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMessageProcessorThrows() throws Exception {
+        IMessageProcessor responder = Main.createMessageProcessor();
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            if(request.getByte(request.offset + 5) == 'X'){
+                throw new IllegalStateException("GET /X");
+            }
+            responder.process(request, writeProxy);
+        };
+        Server server = new Server(0, new HttpMessageReaderFactory(), messageProcessor, new ServerConfig());
+        server.start();
+        try {
+            int port = server.getLocalPort();
+            SocketChannel goodClient = SocketChannel.open(new InetSocketAddress("localhost", port));
+            SocketChannel badClient  = SocketChannel.open(new InetSocketAddress("localhost", port));
+
+            //the exception closes the socket of the request - the request pipelined after it is not answered.
+            write(badClient, "GET /X HTTP/1.1\r\n\r\nGET /2 HTTP/1.1\r\n\r\n");
+            assertEquals("", readUntilClosed(badClient, 2000));
+            assertTrue(isClosed(badClient));
+
+            //the other sockets are still served.
+            write(goodClient, "GET /1 HTTP/1.1\r\n\r\n");
+            assertEquals(Main.HTTP_RESPONSE, readUntilClosed(goodClient, 300));
+            goodClient.close();
+
+            SocketProcessor socketProcessor = server.getSocketProcessors()[0];
+            assertEquals(1, socketProcessor.getProcessorErrorCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * A message processor which cannot answer a request closes its connection via the WriteProxy - from the
+     * SocketProcessor thread, from a worker thread, and in thread per connection mode.
+     */
+    @Test
+    public void testMessageProcessorClosesSocket() throws Exception {
+        ServerConfig workerConfig = new ServerConfig();
+        workerConfig.workerThreadCount = 2;
+        ServerConfig threadPerConnectionConfig = new ServerConfig();
+        threadPerConnectionConfig.serverMode = ServerConfig.SERVER_MODE_THREAD_PER_CONNECTION;
+
+        IMessageProcessor responder = Main.createMessageProcessor();
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            if(request.getByte(request.offset + 5) == 'X'){
+                writeProxy.closeSocket(request.socketId);
+                return;
+            }
+            responder.process(request, writeProxy);
+        };
+
+        for(ServerConfig config : new ServerConfig[]{ new ServerConfig(), workerConfig, threadPerConnectionConfig }){
+            Server server = new Server(0, new HttpMessageReaderFactory(), messageProcessor, config);
+            server.start();
+            try {
+                int port = server.getLocalPort();
+                SocketChannel goodClient   = SocketChannel.open(new InetSocketAddress("localhost", port));
+                SocketChannel closedClient = SocketChannel.open(new InetSocketAddress("localhost", port));
+
+                write(closedClient, "GET /X HTTP/1.1\r\n\r\n");
+                assertEquals("", readUntilClosed(closedClient, 2000));
+                assertTrue(isClosed(closedClient));
+
+                write(goodClient, "GET /1 HTTP/1.1\r\n\r\n");
+                assertEquals(Main.HTTP_RESPONSE, readUntilClosed(goodClient, 300));
+                goodClient.close();
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    private Server startServer(ServerConfig config) throws Exception {
+        Server server = new Server(0, new HttpMessageReaderFactory(), Main.createMessageProcessor(), config);
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return What was read until the server closed the connection, or until the wait time was over.
+     */
+    private String readUntilClosed(SocketChannel client, long waitMillis) throws Exception {
+        client.configureBlocking(false);
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        long timeout = System.currentTimeMillis() + waitMillis;
+        while(System.currentTimeMillis() < timeout){
+            if(client.read(buffer) == -1){
+                break;
+            }
+            Thread.sleep(1);
+        }
+        client.configureBlocking(true);
+        return new String(buffer.array(), 0, buffer.position(), "UTF-8");
+    }
+
+    private boolean isClosed(SocketChannel client) throws IOException {
+        client.configureBlocking(false);
+        try {
+            return client.read(ByteBuffer.allocate(1)) == -1;
+        } catch(IOException e){
+            return true;
+        } finally {
+            client.configureBlocking(true);
+        }
+    }
+
+    private void write(SocketChannel client, String data) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data.getBytes("UTF-8"));
+        while(byteBuffer.hasRemaining()){
+            client.write(byteBuffer);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the LRU eviction and the revalidation of the FileCache.
+ */
+public class FileCacheTest {
+
+    @Test
+    public void testEviction() throws IOException {
+        File[] files = createFiles(3);
+        try {
+            FileCache fileCache = new FileCache(2, 1000);
+
+            FileCache.OpenFile file0 = fileCache.open(files[0]);
+            FileCache.OpenFile file1 = fileCache.open(files[1]);
+            file1.release();
+
+            //a cache hit - and file0 is now the most recently used file.
+            assertSame(file0, fileCache.open(files[0]));
+            assertEquals(1, fileCache.getHits());
+            file0.release();
+
+            //file1 is the least recently used - evicted and closed, as it is not in use.
+            FileCache.OpenFile file2 = fileCache.open(files[2]);
+            assertEquals(2, fileCache.getOpenFileCount());
+            assertFalse(file1.channel.isOpen());
+            assertEquals(1, fileCache.getEvictions());
+
+            //file0 is evicted while in use - it is closed when released.
+            assertNotSame(file1, fileCache.open(files[1]));
+            assertTrue(file0.channel.isOpen());
+            file0.release();
+            assertFalse(file0.channel.isOpen());
+
+            file2.release();
+        } finally {
+            deleteFiles(files);
+        }
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        File[] files = createFiles(1);
+        try {
+            FileCache fileCache = new FileCache(16, 0);
+
+            FileCache.OpenFile openFile = fileCache.open(files[0]);
+            openFile.release();
+            assertEquals(3, openFile.size);
+
+            Files.write(files[0].toPath(), new byte[]{ 1, 2, 3, 4, 5 });
+            FileCache.OpenFile changedFile = fileCache.open(files[0]);
+            assertNotSame(openFile, changedFile);
+            assertEquals(5, changedFile.size);
+            assertFalse(openFile.channel.isOpen());
+            changedFile.release();
+        } finally {
+            deleteFiles(files);
+        }
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testDirectory() throws IOException {
+        new FileCache().open(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    private File[] createFiles(int count) throws IOException {
+        File[] files = new File[count];
+        for(int i=0; i<count; i++){
+            files[i] = File.createTempFile("file-cache-test", ".bin");
+            Files.write(files[i].toPath(), new byte[]{ 1, 2, 3 });
+        }
+        return files;
+    }
+
+    private void deleteFiles(File[] files) {
+        for(File file : files){
+            file.delete();
+        }
+    }
+}
@@ -7,6 +7,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by jjenkov on 18-10-2015.
@@ -32,49 +34,207 @@ public class MessageBufferTest {
         assertEquals(0       , message2.length);
         assertEquals(4 * 1024, message2.capacity);
 
-        //todo test what happens if the small buffer space is depleted of messages.
+        //a message of a given size gets the smallest block it fits in - not the next power of two.
+        Message message3 = messageBuffer.getMessage(5 * 1024);
+        assertEquals(5 * 1024, message3.capacity);
+        Message message4 = messageBuffer.getMessage(5 * 1024 + 1);
+        assertEquals(6 * 1024, message4.capacity);
+    }
 
+    @Test
+    public void testSizeClasses() {
+        MessageBufferConfig config = new MessageBufferConfig();
+        config.minBlockSize           = 4 * 1024;
+        config.maxBlockSize           = 64 * 1024;
+        config.sizeClassesPerDoubling = 2;
+        MessageBuffer messageBuffer = new MessageBuffer(config, false);
+
+        int KB = 1024;
+        int[] expected = { 4*KB, 6*KB, 8*KB, 12*KB, 16*KB, 24*KB, 32*KB, 48*KB, 64*KB };
+        assertEquals(expected.length, messageBuffer.blockSizes.length);
+        for(int i=0; i<expected.length; i++){
+            assertEquals(expected[i], messageBuffer.blockSizes[i]);
+        }
+
+        assertEquals(0 , messageBuffer.sizeClassIndexOf(1));
+        assertEquals(1 , messageBuffer.sizeClassIndexOf(4*KB + 1));
+        assertEquals(8 , messageBuffer.sizeClassIndexOf(64*KB));
+        assertEquals(-1, messageBuffer.sizeClassIndexOf(64*KB + 1));
+        assertNull(messageBuffer.getMessage(64*KB + 1));
     }
 
 
     @Test
     public void testExpandMessage(){
-        MessageBuffer messageBuffer = new MessageBuffer();
+        MessageBufferConfig config = new MessageBufferConfig();
+        config.maxBlockSize = 12 * 1024;
+        MessageBuffer messageBuffer = new MessageBuffer(config, false);
 
         Message message = messageBuffer.getMessage();
+        message.writeToMessage(new byte[]{ 1, 2, 3 });
 
         byte[] smallSharedArray = message.sharedArray;
-
-        assertNotNull(message);
-        assertEquals(0       , message.offset);
-        assertEquals(0       , message.length);
         assertEquals(4 * 1024, message.capacity);
 
-        messageBuffer.expandMessage(message);
-        assertEquals(0         , message.offset);
-        assertEquals(0         , message.length);
-        assertEquals(128 * 1024, message.capacity);
+        //expand() doubles the capacity.
+        assertTrue(messageBuffer.expandMessage(message));
+        assertEquals(0       , message.offset);
+        assertEquals(3       , message.length);
+        assertEquals(8 * 1024, message.capacity);
+        assertEquals(3       , message.sharedArray[message.offset + 2]);
 
         byte[] mediumSharedArray = message.sharedArray;
         assertNotSame(smallSharedArray, mediumSharedArray);
 
-        messageBuffer.expandMessage(message);
-        assertEquals(0          , message.offset);
-        assertEquals(0          , message.length);
-        assertEquals(1024 * 1024, message.capacity);
+        //up to the chain block size - the largest block here.
+        assertTrue(messageBuffer.expandMessage(message));
+        assertEquals(12 * 1024, message.capacity);
+        assertEquals(3        , message.length);
+        assertFalse(message.isChained());
 
+        //beyond it blocks are appended - the first block and its data stay where they are.
         byte[] largeSharedArray = message.sharedArray;
-        assertNotSame(smallSharedArray, largeSharedArray);
-        assertNotSame(mediumSharedArray, largeSharedArray);
-
-        //next expansion should not be possible.
-        assertFalse(messageBuffer.expandMessage(message));
-        assertEquals(0          , message.offset);
-        assertEquals(0          , message.length);
-        assertEquals(1024 * 1024, message.capacity);
+        assertTrue(messageBuffer.expandMessage(message));
+        assertTrue(messageBuffer.expandMessage(message, 100 * 1024));
+        assertTrue(message.isChained());
+        assertEquals(12  * 1024, message.capacity);
+        assertEquals(108 * 1024, message.getTotalCapacity());
+        assertEquals(3         , message.length);
         assertSame(message.sharedArray, largeSharedArray);
 
+        message.release();
+        assertEquals(0, messageBuffer.getBlocksInUse());
+    }
+
+    @Test
+    public void testFreeMessage() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+        int freeSmallBlocks = messageBuffer.sizeClasses[0].freeCount;
+
+        Message message = messageBuffer.getMessage();
+        assertEquals(1, messageBuffer.getBlocksInUse());
+        assertEquals(freeSmallBlocks - 1, messageBuffer.sizeClasses[0].freeCount);
+
+        message.release();
+        assertEquals(0, messageBuffer.getBlocksInUse());
+        assertEquals(freeSmallBlocks, messageBuffer.sizeClasses[0].freeCount);
+        assertNull(message.sharedArray);
 
+        //releasing twice must not put the block back twice.
+        message.release();
+        assertEquals(freeSmallBlocks, messageBuffer.sizeClasses[0].freeCount);
 
+        //the released Message object is reused from the message pool.
+        Message message2 = messageBuffer.getMessage();
+        assertSame(message, message2);
+        assertNotNull(message2.sharedArray);
+        assertEquals(0, message2.length);
+
+        //a 64KB block plus 15 chained 64KB blocks.
+        messageBuffer.expandMessage(message2, 1024 * 1024);
+        assertEquals(16, messageBuffer.getBlocksInUse());
+        assertEquals(1024 * 1024, messageBuffer.getBlockBytesInUse());
+        assertEquals(freeSmallBlocks, messageBuffer.sizeClasses[0].freeCount);
+
+        message2.release();
+        assertEquals(0, messageBuffer.getBlocksInUse());
+        assertEquals(0, messageBuffer.getBlockBytesInUse());
+    }
+
+    @Test
+    public void testGrowUnderMemoryCap() {
+        MessageBufferConfig config = new MessageBufferConfig();
+        config.slabSize         = 64 * 1024;
+        config.initialSlabCount = 1;
+        config.maxMemory        = 256 * 1024;
+        MessageBuffer messageBuffer = new MessageBuffer(config, false);
+        assertEquals(64 * 1024, messageBuffer.getReservedBytes());
+
+        //16 small blocks per slab - the 17th message adds a slab.
+        Message[] messages = new Message[64];
+        for(int i=0; i<messages.length; i++){
+            messages[i] = messageBuffer.getMessage();
+            assertNotNull(messages[i]);
+        }
+        assertEquals(256 * 1024, messageBuffer.getReservedBytes());
+        assertEquals(4, messageBuffer.sizeClasses[0].slabCount);
+
+        //the cap is reached.
+        assertNull(messageBuffer.getMessage());
+        assertNull(messageBuffer.getMessage(100 * 1024));
+        assertEquals(2, messageBuffer.getFailedAllocations());
+        assertEquals(0.0, messageBuffer.getExternalFragmentation(), 0.0);
+
+        //free all messages in two of the slabs - their memory is free for a large block then.
+        for(int i=0; i<32; i++){
+            messages[i].release();
+        }
+        assertEquals(0.5, messageBuffer.getExternalFragmentation(), 0.0001);
+
+        Message large = messageBuffer.getMessage(100 * 1024);
+        assertNotNull(large);
+        assertEquals(2, messageBuffer.sizeClasses[0].slabCount);
+        assertEquals(0, messageBuffer.sizeClasses[0].freeCount);
+        assertEquals(128 * 1024 + large.capacity, messageBuffer.getReservedBytes());
+
+        large.release();
+        for(int i=32; i<messages.length; i++){
+            messages[i].release();
+        }
+        assertEquals(0, messageBuffer.getBlocksInUse());
+        assertTrue(messageBuffer.getFragmentationReport().contains("failed allocations"));
+    }
+
+    @Test
+    public void testInternalFragmentation() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+
+        Message message = messageBuffer.getMessage();
+        message.writeToMessage(new byte[1024]);
+        message.release();
+
+        assertEquals(0.75, messageBuffer.getInternalFragmentation(), 0.0001);
+    }
+
+    /**
+     * Runs millions of request / response lifecycles through one MessageBuffer. Without releasing messages the
+     * buffer runs out of memory for new slabs.
+     */
+    @Test
+    public void testMessageLifecycleSoak() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+        long reservedBytes = messageBuffer.getReservedBytes();
+
+        byte[] request = new byte[300];
+        Message[] inFlight = new Message[64];
+
+        for(int i=0; i<5_000_000; i++){
+            int slot = i % inFlight.length;
+            if(inFlight[slot] != null){
+                inFlight[slot].release();
+            }
+
+            Message message = messageBuffer.getMessage();
+            assertNotNull(message);
+            assertEquals(request.length, message.writeToMessage(request));
+
+            if(i % 1000 == 0){
+                //now and then a large message, which is expanded twice.
+                messageBuffer.expandMessage(message);
+                messageBuffer.expandMessage(message);
+            }
+            inFlight[slot] = message;
+        }
+
+        for(int i=0; i<inFlight.length; i++){
+            inFlight[i].release();
+        }
+
+        assertEquals(0, messageBuffer.getBlocksInUse());
+        //the small blocks fit in the initial slabs - only the large messages needed new slabs.
+        assertEquals(reservedBytes, messageBuffer.sizeClasses[0].slabCount * 1024 * 1024L);
+
+        //no more Message objects were created than were in flight at the same time.
+        assertEquals(inFlight.length, messageBuffer.messagePoolSize);
     }
 }
@@ -7,7 +7,11 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 
@@ -22,31 +26,125 @@ public class MessageTest {
         MessageBuffer messageBuffer = new MessageBuffer();
 
         Message    message    = messageBuffer.getMessage();
-        ByteBuffer byteBuffer = ByteBuffer.allocate(1024 * 1024);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(4 * 1024 * 1024);
 
         fill(byteBuffer, 4096);
 
         int written = message.writeToMessage(byteBuffer);
         assertEquals(4096, written);
         assertEquals(4096, message.length);
-        assertSame(messageBuffer.smallMessageBuffer, message.sharedArray);
+        assertEquals(4096, message.capacity);
+
+        //expanded straight to the smallest block large enough.
+        fill(byteBuffer, 8 * 1024);
+        written = message.writeToMessage(byteBuffer);
+        assertEquals(8 * 1024 , written);
+        assertEquals(12 * 1024, message.length);
+        assertEquals(12 * 1024, message.capacity);
+        assertFalse(message.isChained());
 
+        //beyond the chain block size (64KB) blocks are appended instead.
         fill(byteBuffer, 124 * 1024);
         written = message.writeToMessage(byteBuffer);
         assertEquals(124 * 1024, written);
-        assertEquals(128 * 1024, message.length);
-        assertSame(messageBuffer.mediumMessageBuffer, message.sharedArray);
+        assertEquals(136 * 1024, message.length);
+        assertEquals(64  * 1024, message.capacity);
+        assertEquals(192 * 1024, message.getTotalCapacity());
+        assertTrue(message.isChained());
 
-        fill(byteBuffer, (1024-128) * 1024);
+        //no upper size limit - except the memory of the MessageBuffer.
+        fill(byteBuffer, 4 * 1024 * 1024);
         written = message.writeToMessage(byteBuffer);
-        assertEquals(896  * 1024, written);
-        assertEquals(1024 * 1024, message.length);
-        assertSame(messageBuffer.largeMessageBuffer, message.sharedArray);
+        assertEquals(4 * 1024 * 1024, written);
+        assertEquals(136 * 1024 + 4 * 1024 * 1024, message.length);
 
-        fill(byteBuffer, 1);
-        written = message.writeToMessage(byteBuffer);
-        assertEquals(-1, written);
+        ByteBuffer data = ByteBuffer.allocate(message.length);
+        assertEquals(message.length, message.writeToByteBuffer(data));
+        for(int i=0; i<4096; i++){
+            assertEquals((byte) (i%128), data.get(i));
+        }
+        for(int i=0; i<8 * 1024; i++){
+            assertEquals((byte) (i%128), data.get(4096 + i));
+        }
+        for(int i=0; i<4 * 1024 * 1024; i++){
+            assertEquals((byte) (i%128), data.get(136 * 1024 + i));
+            assertEquals((byte) (i%128), message.getByte(message.offset + 136 * 1024 + i));
+        }
+
+        //one gather buffer per block.
+        ByteBuffer[] gatherBuffers = new ByteBuffer[128];
+        assertEquals(1 + 66, message.getDataByteBuffers(0, gatherBuffers, 0));
+        assertEquals(64 * 1024, gatherBuffers[0].remaining());
+
+        message.truncate(100);
+        assertFalse(message.isChained());
+        assertEquals(1, messageBuffer.getBlocksInUse());
+
+        message.release();
+        assertEquals(0, messageBuffer.getBlocksInUse());
+    }
+
+    @Test
+    public void testWritePartialMessageToMessage() {
+        MessageBuffer messageBuffer = new MessageBuffer();
+
+        byte[] bytes = new byte[1024 * 1024];
+        for(int i=0; i<bytes.length; i++){
+            bytes[i] = (byte) (i % 127);
+        }
+        Message source = messageBuffer.getMessage();
+        source.writeToMessage(bytes);
+        assertTrue(source.isChained());
+
+        //a range across several blocks of the source.
+        Message message = messageBuffer.getMessage();
+        int startIndex = source.offset + 1000;
+        int endIndex   = source.offset + 900 * 1024;
+        assertEquals(endIndex - startIndex, message.writePartialMessageToMessage(source, startIndex, endIndex));
+        assertEquals(endIndex - startIndex, message.length);
+        for(int i=0; i<message.length; i++){
+            assertEquals(bytes[1000 + i], message.getByte(message.offset + i));
+        }
+    }
+
+    @Test
+    public void testWriteToDirectMessage() throws IOException {
+        assertWriteToMessage(new MessageBuffer(true));
+
+        File mappedFile = File.createTempFile("message-test", ".buf");
+        assertWriteToMessage(new MessageBuffer(mappedFile));
+        mappedFile.delete();
+    }
+
+    private void assertWriteToMessage(MessageBuffer messageBuffer) {
+        Message    message    = messageBuffer.getMessage();
+        ByteBuffer byteBuffer = ByteBuffer.allocate(1024 * 1024);
+
+        assertNull(message.sharedArray);
+        assertTrue(message.sharedBuffer.isDirect());
+
+        fill(byteBuffer, 4096);
+        assertEquals(4096, message.writeToMessage(byteBuffer));
+
+        //expanding copies the data to a 64KB block, and appends a block.
+        fill(byteBuffer, 124 * 1024);
+        assertEquals(124 * 1024, message.writeToMessage(byteBuffer));
+        assertEquals(128 * 1024, message.length);
+        assertEquals(128 * 1024, message.getTotalCapacity());
+        assertTrue(message.isChained());
+        assertTrue(message.sharedBuffer.isDirect());
+
+        assertEquals(3, message.writeToMessage(new byte[]{ 1, 2, 3 }));
+
+        ByteBuffer data = message.getDataByteBuffer(0);
+        assertEquals(message.capacity, data.remaining());
+        for(int i=0; i<4096; i++){
+            assertEquals((byte) (i%128), data.get(message.offset + i));
+        }
+        assertEquals(3, message.getByte(message.offset + 128 * 1024 + 2));
 
+        ByteBuffer freeSection = message.getFreeSectionByteBuffer();
+        assertEquals(message.getTotalCapacity() - message.length, freeSection.remaining());
     }
 
     private void fill(ByteBuffer byteBuffer, int length){
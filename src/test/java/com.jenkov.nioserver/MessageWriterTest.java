@@ -0,0 +1,196 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the gathering writes of the MessageWriter over a loopback connection.
+ */
+public class MessageWriterTest {
+
+    @Test
+    public void testWriteQueuedMessages() throws IOException {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+
+            MessageBuffer messageBuffer = new MessageBuffer();
+            MessageWriter messageWriter = new MessageWriter();
+
+            //three messages, the second one larger than a small block - all written with one gathering write.
+            byte[] expected = new byte[10 + 5000 + 20];
+            for(int i=0; i<expected.length; i++){
+                expected[i] = (byte) (i % 127);
+            }
+            messageWriter.enqueue(createMessage(messageBuffer, expected, 0, 10));
+            messageWriter.enqueue(createMessage(messageBuffer, expected, 10, 5000));
+            messageWriter.enqueue(createMessage(messageBuffer, expected, 5010, 20));
+            assertEquals(3, messageWriter.getQueueSize());
+            assertEquals(expected.length, messageWriter.getBytesQueued());
+
+            while(!messageWriter.isEmpty()){
+                messageWriter.write(socket);
+            }
+
+            ByteBuffer received = ByteBuffer.allocate(expected.length);
+            while(received.hasRemaining()){
+                clientChannel.read(received);
+            }
+            for(int i=0; i<expected.length; i++){
+                assertEquals(expected[i], received.get(i));
+            }
+
+            //all messages were released after writing.
+            assertEquals(0, messageBuffer.getBlocksInUse());
+            assertTrue(messageWriter.isEmpty());
+            assertEquals(0, messageWriter.getBytesQueued());
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    /**
+     * A file response between two ordinary messages - the file is sent with transferTo(), in order.
+     */
+    @Test
+    public void testWriteFile() throws Exception {
+        File file = File.createTempFile("message-writer-test", ".bin");
+        byte[] fileBytes = new byte[2 * 1024 * 1024];
+        for(int i=0; i<fileBytes.length; i++){
+            fileBytes[i] = (byte) (i % 251);
+        }
+        Files.write(file.toPath(), fileBytes);
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+
+            MessageBuffer messageBuffer = new MessageBuffer();
+            MessageWriter messageWriter = new MessageWriter();
+            FileCache     fileCache     = new FileCache();
+
+            int fileLength = fileBytes.length - 1000;
+            FileCache.OpenFile openFile = fileCache.open(file);
+            Message fileMessage = createMessage(messageBuffer, "head".getBytes(), 0, 4);
+            fileMessage.setFile(openFile, 1000, fileLength);
+
+            messageWriter.enqueue(createMessage(messageBuffer, "first".getBytes(), 0, 5));
+            messageWriter.enqueue(fileMessage);
+            messageWriter.enqueue(createMessage(messageBuffer, "last".getBytes(), 0, 4));
+
+            //the file is larger than the socket buffers - read while writing.
+            ByteBuffer received = ByteBuffer.allocate(5 + 4 + fileLength + 4);
+            while(received.hasRemaining()){
+                if(!messageWriter.isEmpty()){
+                    messageWriter.write(socket);
+                }
+                clientChannel.read(received);
+            }
+            assertTrue(messageWriter.isEmpty());
+
+            assertEquals("firsthead", new String(received.array(), 0, 9));
+            for(int i=0; i<fileLength; i++){
+                assertEquals(fileBytes[1000 + i], received.get(9 + i));
+            }
+            assertEquals("last", new String(received.array(), 9 + fileLength, 4));
+
+            //the messages were released - and with them the file, which stays open in the cache until evicted.
+            assertEquals(0, messageBuffer.getBlocksInUse());
+            assertTrue(openFile.channel.isOpen());
+            fileCache.clear();
+            assertFalse(openFile.channel.isOpen());
+
+            clientChannel.close();
+            peerChannel.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A file which shrinks while being sent makes the write fail - instead of transferTo() sending 0 bytes forever -
+     * and is removed from the cache.
+     */
+    @Test
+    public void testWriteShrunkFile() throws Exception {
+        File file = File.createTempFile("message-writer-test", ".bin");
+        Files.write(file.toPath(), new byte[2 * 1024 * 1024]);
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+
+            MessageBuffer messageBuffer = new MessageBuffer();
+            MessageWriter messageWriter = new MessageWriter();
+            FileCache     fileCache     = new FileCache();
+
+            FileCache.OpenFile openFile = fileCache.open(file);
+            Message fileMessage = createMessage(messageBuffer, "head".getBytes(), 0, 4);
+            fileMessage.setFile(openFile, 0, openFile.size);
+            messageWriter.enqueue(fileMessage);
+
+            try(FileChannel truncater = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)){
+                truncater.truncate(1000);
+            }
+
+            clientChannel.configureBlocking(false);
+            ByteBuffer received = ByteBuffer.allocate(64 * 1024);
+            boolean failed = false;
+            for(int i=0; i<100 && !failed; i++){
+                try {
+                    messageWriter.write(socket);
+                } catch(IOException e){
+                    failed = true;
+                }
+                received.clear();
+                clientChannel.read(received);
+            }
+            assertTrue(failed);
+            assertEquals(0, fileCache.getOpenFileCount());
+
+            //closing the socket releases the message - and closes the file.
+            messageWriter.dispose();
+            assertFalse(openFile.channel.isOpen());
+
+            clientChannel.close();
+            peerChannel.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private Message createMessage(MessageBuffer messageBuffer, byte[] data, int offset, int length) {
+        Message message = messageBuffer.getMessage();
+        message.writeToMessage(data, offset, length);
+        return message;
+    }
+}
@@ -0,0 +1,112 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the lock-free outbound message queue.
+ */
+public class RingBufferMpscTest {
+
+    @Test
+    public void testOfferAndPoll() {
+        RingBufferMpsc<Integer> queue = new RingBufferMpsc<>(3);
+        assertEquals(4, queue.capacity());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        for(int round=0; round<10; round++){
+            assertTrue(queue.offer(1));
+            assertTrue(queue.offer(2));
+            assertTrue(queue.offer(3));
+            assertTrue(queue.offer(4));
+
+            //full - backpressure signal.
+            assertFalse(queue.offer(5));
+            assertEquals(4, queue.size());
+
+            assertEquals(1, (int) queue.poll());
+            assertEquals(2, (int) queue.poll());
+            assertEquals(3, (int) queue.poll());
+            assertEquals(4, (int) queue.poll());
+            assertNull(queue.poll());
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void testIterator() {
+        RingBufferMpsc<Integer> queue = new RingBufferMpsc<>(4);
+        assertEquals("[]", queue.toString());
+
+        queue.offer(1);
+        queue.offer(2);
+        queue.poll();
+        queue.offer(3);
+        queue.offer(4);
+        queue.offer(5); //wraps around the end of the ring.
+
+        assertEquals("[2, 3, 4, 5]", queue.toString());
+        assertTrue(queue.contains(5));
+        assertFalse(queue.contains(1));
+        assertTrue(queue.containsAll(Arrays.asList(2, 4)));
+        assertEquals(4, queue.size());
+
+        Iterator<Integer> iterator = queue.iterator();
+        assertEquals(2, (int) iterator.next());
+        queue.poll();
+        queue.offer(6);  //offered after the iterator passed the head - iteration goes on in order.
+        assertEquals(3, (int) iterator.next());
+        assertEquals(4, (int) iterator.next());
+        assertEquals(5, (int) iterator.next());
+        assertEquals(6, (int) iterator.next());
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testMultipleProducers() throws InterruptedException {
+        final int producerCount       = 4;
+        final int elementsPerProducer = 200_000;
+
+        RingBufferMpsc<Integer> queue = new RingBufferMpsc<>(1024);
+
+        Thread[] producers = new Thread[producerCount];
+        for(int p=0; p<producerCount; p++){
+            final int producer = p;
+            producers[p] = new Thread(() -> {
+                for(int i=0; i<elementsPerProducer; i++){
+                    Integer element = producer * elementsPerProducer + i;
+                    while(!queue.offer(element)){
+                        Thread.yield();
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        //elements from each producer must arrive in the order that producer offered them.
+        int[] nextExpected = new int[producerCount];
+        int received = 0;
+        while(received < producerCount * elementsPerProducer){
+            Integer element = queue.poll();
+            if(element == null){
+                continue;
+            }
+            int producer = element / elementsPerProducer;
+            assertEquals(nextExpected[producer]++, element % elementsPerProducer);
+            received++;
+        }
+
+        for(Thread producer : producers){
+            producer.join();
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -13,12 +14,16 @@ import java.nio.channels.SocketChannel;
  */
 public class SelectorTest {
 
-    @Test
+    /**
+     * A channel whose key was cancelled cannot be registered with the same selector again until the selector's next
+     * select() has removed the cancelled key - register() throws CancelledKeyException until then.
+     */
+    @Test(expected = CancelledKeyException.class)
     public void test() throws IOException {
         Selector selector = Selector.open();
 
         SocketChannel socketChannel = SocketChannel.open();
-        socketChannel.bind(new InetSocketAddress("localhost", 9999));
+        socketChannel.bind(new InetSocketAddress("localhost", 0));
 
         socketChannel.configureBlocking(false);
 
@@ -0,0 +1,164 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the overload policies of the SocketAccepter against a SocketProcessor which is never started, so its
+ * socket queue fills up.
+ */
+public class SocketAccepterTest {
+
+    @Test
+    public void testRejectWhenSocketQueueFull() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.acceptOverloadPolicy = ServerConfig.ACCEPT_OVERLOAD_REJECT;
+
+        Queue<Socket> socketQueue = new ArrayBlockingQueue<>(1);
+        SocketAccepter socketAccepter = startAccepter(socketQueue, config);
+
+        SocketChannel[] clients = connect(socketAccepter.getLocalPort(), 3);
+        waitForAccepted(socketAccepter, 3);
+
+        assertEquals(1, socketQueue.size());
+        assertEquals(2, socketAccepter.getRejectedCount());
+
+        // the rejected connections were closed by the server.
+        assertEquals(-1, clients[1].read(ByteBuffer.allocate(1)));
+        assertEquals(-1, clients[2].read(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void testPauseWhenSocketQueueFull() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.acceptOverloadPolicy = ServerConfig.ACCEPT_OVERLOAD_PAUSE;
+
+        Queue<Socket> socketQueue = new ArrayBlockingQueue<>(1);
+        SocketAccepter socketAccepter = startAccepter(socketQueue, config);
+
+        connect(socketAccepter.getLocalPort(), 3);
+        waitForAccepted(socketAccepter, 2);
+        Thread.sleep(100);
+
+        // one socket queued, one waiting for room, the third still in the listen backlog.
+        assertEquals(2, socketAccepter.getAcceptedCount());
+        assertEquals(0, socketAccepter.getRejectedCount());
+
+        socketQueue.poll();
+        waitForAccepted(socketAccepter, 3);
+
+        socketQueue.poll();
+        waitForAccepted(socketAccepter, 3);
+        Thread.sleep(100);
+        assertEquals(1, socketQueue.size());
+    }
+
+    @Test
+    public void testRoundRobinDistribution() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.socketDistribution = ServerConfig.SOCKET_DISTRIBUTION_ROUND_ROBIN;
+
+        List<Queue<Socket>> socketQueues   = new ArrayList<>();
+        SocketAccepter      socketAccepter = startAccepter(socketQueues, 3, config);
+
+        connect(socketAccepter.getLocalPort(), 7);
+        waitForAccepted(socketAccepter, 7);
+
+        // one after the other: 0, 1, 2, 0, 1, 2, 0.
+        assertEquals(3, socketQueues.get(0).size());
+        assertEquals(2, socketQueues.get(1).size());
+        assertEquals(2, socketQueues.get(2).size());
+        socketAccepter.stop();
+    }
+
+    @Test
+    public void testLeastConnectionsDistribution() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.socketDistribution = ServerConfig.SOCKET_DISTRIBUTION_LEAST_CONNECTIONS;
+
+        List<Queue<Socket>> socketQueues   = new ArrayList<>();
+        SocketAccepter      socketAccepter = startAccepter(socketQueues, 3, config);
+
+        // processor 0 already has 3 sockets, processor 1 has 1.
+        socketQueues.get(0).add(new Socket());
+        socketQueues.get(0).add(new Socket());
+        socketQueues.get(0).add(new Socket());
+        socketQueues.get(1).add(new Socket());
+
+        // the new sockets fill up processors 2 and 1 first - ties go to the lower index: 2, 1, 2, 1, 2, then 0.
+        connect(socketAccepter.getLocalPort(), 6);
+        waitForAccepted(socketAccepter, 6);
+
+        assertEquals(4, socketQueues.get(0).size());
+        assertEquals(3, socketQueues.get(1).size());
+        assertEquals(3, socketQueues.get(2).size());
+        socketAccepter.stop();
+    }
+
+    /**
+     * Starts an accepter on a port picked by the OS, spreading sockets over processors which are never started.
+     */
+    private SocketAccepter startAccepter(List<Queue<Socket>> socketQueues, int processorCount, ServerConfig config) throws Exception {
+        SocketProcessor[] socketProcessors = new SocketProcessor[processorCount];
+        for(int i=0; i<processorCount; i++){
+            socketQueues.add(new ArrayBlockingQueue<>(16));
+            socketProcessors[i] = new SocketProcessor(socketQueues.get(i), new MessageBuffer(), new MessageBuffer(), null, null, config, i);
+        }
+        SocketAccepter socketAccepter = new SocketAccepter(0, socketProcessors, config);
+
+        Thread accepterThread = new Thread(socketAccepter, "SocketAccepter-distribution");
+        accepterThread.setDaemon(true);
+        accepterThread.start();
+
+        long timeout = System.currentTimeMillis() + 5000;
+        while(socketAccepter.getLocalPort() == 0 && System.currentTimeMillis() < timeout){
+            Thread.sleep(1);
+        }
+        return socketAccepter;
+    }
+
+    /**
+     * Starts an accepter on a port picked by the OS, handing sockets to one processor which is never started.
+     */
+    private SocketAccepter startAccepter(Queue<Socket> socketQueue, ServerConfig config) throws Exception {
+        SocketProcessor socketProcessor = new SocketProcessor(socketQueue, new MessageBuffer(), new MessageBuffer(), null, null, config, 0);
+        SocketAccepter  socketAccepter  = new SocketAccepter(0, new SocketProcessor[]{ socketProcessor }, config);
+
+        Thread accepterThread = new Thread(socketAccepter, "SocketAccepter");
+        accepterThread.setDaemon(true);
+        accepterThread.start();
+
+        long timeout = System.currentTimeMillis() + 5000;
+        while(socketAccepter.getLocalPort() == 0 && System.currentTimeMillis() < timeout){
+            Thread.sleep(1);
+        }
+        return socketAccepter;
+    }
+
+    private SocketChannel[] connect(int port, int count) throws IOException {
+        SocketChannel[] clients = new SocketChannel[count];
+        for(int i=0; i<count; i++){
+            clients[i] = SocketChannel.open(new InetSocketAddress("localhost", port));
+        }
+        return clients;
+    }
+
+    private void waitForAccepted(SocketAccepter socketAccepter, long count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while(socketAccepter.getAcceptedCount() < count && System.currentTimeMillis() < timeout){
+            Thread.sleep(10);
+        }
+        assertEquals(count, socketAccepter.getAcceptedCount());
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Runs the cycles of a SocketProcessor one by one, and checks that work beyond the per cycle budgets is left for the
+ * next cycle - and that deferred sockets go first then.
+ */
+public class SocketProcessorBudgetTest {
+
+    @Test
+    public void testBudgets() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.maxNewSocketsPerCycle = 1;
+        config.maxMessagesPerCycle   = 1;
+
+        List<Long> processed = new ArrayList<>();
+        IMessageProcessor messageProcessor = (request, writeProxy) -> processed.add(request.socketId);
+
+        Queue<Socket>   socketQueue     = new ArrayBlockingQueue<>(16);
+        SocketProcessor socketProcessor = new SocketProcessor(socketQueue, new MessageBuffer(), new MessageBuffer(),
+                new HttpMessageReaderFactory(), messageProcessor, config, 0);
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientA = SocketChannel.open(serverChannel.getLocalAddress());
+            socketQueue.add(new Socket(serverChannel.accept()));
+            SocketChannel clientB = SocketChannel.open(serverChannel.getLocalAddress());
+            socketQueue.add(new Socket(serverChannel.accept()));
+
+            String requests = "GET /1 HTTP/1.1\r\n\r\nGET /2 HTTP/1.1\r\n\r\nGET /3 HTTP/1.1\r\n\r\n";
+            write(clientA, requests);
+            write(clientB, requests);
+            Thread.sleep(100);
+
+            //one new socket per cycle - A is taken and read from, B waits in the queue.
+            socketProcessor.executeCycle();
+            assertEquals(1, socketQueue.size());
+            assertEquals(3, processed.size());
+            assertEquals(0, socketProcessor.getDeferredCycleCount());
+
+            //A and B are both ready - the first socket read uses up the message budget, the other one is deferred.
+            write(clientA, requests);
+            Thread.sleep(100);
+            socketProcessor.executeCycle();
+            assertEquals(0, socketQueue.size());
+            assertEquals(6, processed.size());
+            assertEquals(1, socketProcessor.getDeferredCycleCount());
+            long firstSocketId = processed.get(3);
+
+            //the deferred socket goes first in the next cycle.
+            socketProcessor.executeCycle();
+            assertEquals(9, processed.size());
+            assertEquals(1, socketProcessor.getDeferredCycleCount());
+            long secondSocketId = processed.get(6);
+            assertNotEquals(firstSocketId, secondSocketId);
+
+            long socketIdA = processed.get(0);
+            assertEquals(6, processed.stream().filter(id -> id == socketIdA).count());
+            assertEquals(3, processed.stream().filter(id -> id != socketIdA).count());
+
+            clientA.close();
+            clientB.close();
+        } finally {
+            socketProcessor.stop();
+            socketProcessor.run(); // closes the sockets and selectors.
+        }
+    }
+
+    private void write(SocketChannel client, String data) throws Exception {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data.getBytes("UTF-8"));
+        while(byteBuffer.hasRemaining()){
+            client.write(byteBuffer);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the socket id lookups of the SocketTable - also with stale ids of removed sockets.
+ */
+public class SocketTableTest {
+
+    @Test
+    public void testAddGetRemove() {
+        long idBase = 3 * SocketProcessor.SOCKET_ID_RANGE;
+        SocketTable socketTable = new SocketTable(idBase, 16);
+
+        //more sockets than the initial capacity - the table grows.
+        List<Socket> sockets   = new ArrayList<>();
+        Set<Long>    socketIds = new HashSet<>();
+        for(int i=0; i<100; i++){
+            Socket socket = new Socket();
+            long socketId = socketTable.add(socket);
+            assertEquals(socketId, socket.socketId);
+            assertTrue(socketId >= idBase + 16 * 1024);
+            assertTrue(socketId <  idBase + SocketProcessor.SOCKET_ID_RANGE);
+            sockets.add(socket);
+            socketIds.add(socketId);
+        }
+        assertEquals(100, socketIds.size());
+        assertEquals(100, socketTable.size());
+        for(Socket socket : sockets){
+            assertSame(socket, socketTable.get(socket.socketId));
+        }
+
+        //ids of another processor, or never handed out.
+        assertNull(socketTable.get(sockets.get(0).socketId - idBase));
+        assertNull(socketTable.get(idBase + SocketProcessor.SOCKET_ID_RANGE + sockets.get(0).socketId));
+        assertNull(socketTable.get(idBase + 500));
+
+        Socket removed   = sockets.get(10);
+        long   removedId = removed.socketId;
+        assertTrue(socketTable.remove(removed));
+        assertFalse(socketTable.remove(removed));
+        assertNull(socketTable.get(removedId));
+        assertEquals(99, socketTable.size());
+
+        //the slot is reused with a new generation - the stale id does not find the new socket.
+        Socket reused = new Socket();
+        socketTable.add(reused);
+        assertTrue(reused.socketId != removedId);
+        assertEquals(removedId & (SocketTable.MAX_SLOTS - 1), reused.socketId & (SocketTable.MAX_SLOTS - 1));
+        assertNull(socketTable.get(removedId));
+        assertSame(reused, socketTable.get(reused.socketId));
+    }
+
+    @Test
+    public void testFreeSlotsReusedInOrder() {
+        SocketTable socketTable = new SocketTable(0, 16);
+        Socket[] sockets = new Socket[16];
+        for(int i=0; i<sockets.length; i++){
+            sockets[i] = new Socket();
+            socketTable.add(sockets[i]);
+        }
+
+        //freed slots are reused oldest first - a slot freed last is not reused right away.
+        socketTable.remove(sockets[5]);
+        socketTable.remove(sockets[2]);
+        Socket first  = new Socket();
+        Socket second = new Socket();
+        socketTable.add(first);
+        socketTable.add(second);
+        assertEquals(5, first.socketId  & (SocketTable.MAX_SLOTS - 1));
+        assertEquals(2, second.socketId & (SocketTable.MAX_SLOTS - 1));
+
+        //many reuses of the same slot - a socket id is never handed out twice within a generation round.
+        Set<Long> socketIds = new HashSet<>();
+        Socket socket = first;
+        for(int i=0; i<1000; i++){
+            socketTable.remove(socket);
+            socket = new Socket();
+            socketTable.add(socket);
+            assertTrue(socketIds.add(socket.socketId));
+        }
+
+        int count = 0;
+        for(int i=0; i<socketTable.getSlotCount(); i++){
+            if(socketTable.getSocket(i) != null){
+                count++;
+            }
+        }
+        assertEquals(16, count);
+        assertEquals(16, socketTable.size());
+    }
+}
@@ -0,0 +1,137 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.http.HttpHeaders;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams a 4MB upload to a message processor which keeps the body chunks - the server stops reading from the
+ * socket until the chunks are handed back.
+ */
+public class StreamingMessageProcessorTest {
+
+    @Test
+    public void testFlowControl() throws Exception {
+        int bodyLength = 4 * 1024 * 1024;
+
+        AtomicInteger               contentLength  = new AtomicInteger();
+        AtomicInteger               bytesReceived  = new AtomicInteger();
+        AtomicInteger               bytesCorrupted = new AtomicInteger();
+        Queue<Message>              keptChunks     = new ConcurrentLinkedQueue<>();
+        AtomicReference<WriteProxy> proxy          = new AtomicReference<>();
+
+        IStreamingMessageProcessor messageProcessor = new IStreamingMessageProcessor() {
+            @Override
+            public void process(Message message, WriteProxy writeProxy) {
+            }
+
+            @Override
+            public void processHead(Message head, WriteProxy writeProxy) {
+                contentLength.set(((HttpHeaders) head.metaData).contentLength);
+            }
+
+            @Override
+            public boolean processBody(Message chunk, boolean last, WriteProxy writeProxy) {
+                for(int i=0; i<chunk.length; i++){
+                    if(chunk.getByte(chunk.offset + i) != (byte) ('a' + (bytesReceived.get() + i) % 26)){
+                        bytesCorrupted.incrementAndGet();
+                    }
+                }
+                bytesReceived.addAndGet(chunk.length);
+
+                if(last){
+                    Message response = writeProxy.getMessage();
+                    response.socketId = chunk.socketId;
+                    response.writeToMessage("HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes());
+                    writeProxy.enqueue(response);
+                }
+                proxy.set(writeProxy);
+                keptChunks.add(chunk);
+                return false;
+            }
+        };
+
+        ServerConfig config = new ServerConfig();
+        config.maxBodyChunksInFlight = 4;
+        Server server = new Server(0, new HttpMessageReaderFactory(1024), messageProcessor, config);
+        server.start();
+        try {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+
+            byte[] head    = ("POST /upload HTTP/1.1\r\nContent-Length: " + bodyLength + "\r\n\r\n").getBytes();
+            byte[] request = new byte[head.length + bodyLength];
+            System.arraycopy(head, 0, request, 0, head.length);
+            for(int i=0; i<bodyLength; i++){
+                request[head.length + i] = (byte) ('a' + i % 26);
+            }
+            ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+
+            // blocks once the socket buffers are full - the server does not read while it has 4 chunks in flight.
+            Thread writer = new Thread(() -> {
+                try {
+                    while(requestBuffer.hasRemaining()){
+                        client.write(requestBuffer);
+                    }
+                } catch(Exception e){
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+
+            waitFor(() -> keptChunks.size() == 4);
+            Thread.sleep(200);
+            assertEquals(4, keptChunks.size());
+            assertEquals(bodyLength, contentLength.get());
+            assertTrue(bytesReceived.get() < bodyLength);
+
+            // hand the chunks back - reading continues until the whole body has been received.
+            long timeout = System.currentTimeMillis() + 10000;
+            while(bytesReceived.get() < bodyLength && System.currentTimeMillis() < timeout){
+                Message chunk = keptChunks.poll();
+                if(chunk != null){
+                    proxy.get().release(chunk);
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+            writer.join();
+            assertEquals(bodyLength, bytesReceived.get());
+            assertEquals(0, bytesCorrupted.get());
+
+            ByteBuffer response = ByteBuffer.allocate(1024);
+            while(response.position() < 15){
+                client.read(response);
+            }
+            assertEquals("HTTP/1.1 200 OK", new String(response.array(), 0, 15));
+
+            Message chunk = keptChunks.poll();
+            while(chunk != null){
+                proxy.get().release(chunk);
+                chunk = keptChunks.poll();
+            }
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean() && System.currentTimeMillis() < timeout){
+            Thread.sleep(1);
+        }
+    }
+
+}
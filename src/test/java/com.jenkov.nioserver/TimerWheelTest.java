@@ -0,0 +1,83 @@
+package com.jenkov.nioserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that timers expire in the tick of their deadline - also deadlines more than one round of the wheel away.
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void testExpire() {
+        TimerWheel<String> timerWheel = new TimerWheel<>(8, 10, 1000); // 8 slots of 10ms - one round is 80ms.
+
+        timerWheel.schedule("a", 1025);
+        timerWheel.schedule("b", 1030);
+        timerWheel.schedule("c", 1025 + 80 * 3); // three rounds later, in the same slot as "a".
+        timerWheel.schedule("d", 500);           // in the past - expires with the next tick.
+        assertEquals(4, timerWheel.size());
+
+        List<String> expired = new ArrayList<>();
+        timerWheel.expire(1005, expired);
+        assertEquals(1, expired.size());
+        assertEquals("d", expired.get(0));
+
+        //"a" is due at 1025 - the slot of tick 103 is checked from 1030 on.
+        expired.clear();
+        timerWheel.expire(1029, expired);
+        assertTrue(expired.isEmpty());
+        timerWheel.expire(1030, expired);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains("a") && expired.contains("b"));
+
+        //"c" stays in its slot until its round has come.
+        expired.clear();
+        timerWheel.expire(1200, expired);
+        assertTrue(expired.isEmpty());
+        assertEquals(1, timerWheel.size());
+        assertEquals(1270, timerWheel.getNextTickMillis()); // the tick of "c" - its deadline 1265 rounded up.
+
+        //a long pause - all slots are visited once.
+        timerWheel.expire(5000, expired);
+        assertEquals(1, expired.size());
+        assertEquals("c", expired.get(0));
+        assertEquals(Long.MAX_VALUE, timerWheel.getNextTickMillis());
+    }
+
+    @Test
+    public void testNextTick() {
+        TimerWheel<String> timerWheel = new TimerWheel<>(8, 10, 1000); // 8 slots of 10ms - one round is 80ms.
+        assertEquals(Long.MAX_VALUE, timerWheel.getNextTickMillis());
+
+        //the tick of the deadline - not the next tick of the wheel.
+        timerWheel.schedule("a", 1055);
+        assertEquals(1060, timerWheel.getNextTickMillis());
+        timerWheel.schedule("b", 1021);
+        assertEquals(1030, timerWheel.getNextTickMillis());
+
+        //several rounds away - in the slot of the next tick.
+        timerWheel.schedule("c", 1000 + 80 * 3);
+        assertEquals(1030, timerWheel.getNextTickMillis());
+
+        List<String> expired = new ArrayList<>();
+        timerWheel.expire(1030, expired);
+        assertEquals(1, expired.size());
+        assertEquals(1060, timerWheel.getNextTickMillis());
+
+        expired.clear();
+        timerWheel.expire(1060, expired);
+        assertEquals(1, expired.size());
+        assertEquals(1000 + 80 * 3, timerWheel.getNextTickMillis());
+
+        expired.clear();
+        timerWheel.expire(1000 + 80 * 3, expired);
+        assertEquals(1, expired.size());
+        assertEquals(Long.MAX_VALUE, timerWheel.getNextTickMillis());
+    }
+}
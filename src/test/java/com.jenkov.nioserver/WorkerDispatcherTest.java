@@ -0,0 +1,178 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.example.Main;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests that messages dispatched to worker threads are processed in order per socket, and are handed back to the
+ * SocketProcessor without waiting for its select timeout.
+ */
+public class WorkerDispatcherTest {
+
+    @Test
+    public void testOrderPerSocket() throws InterruptedException {
+        final int socketCount       = 8;
+        final int messagesPerSocket = 100; // 800 messages in flight at most - less than the 1024 small blocks.
+
+        List<List<Integer>> processedPerSocket = new ArrayList<>();
+        for(int i=0; i<socketCount; i++){
+            processedPerSocket.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        IMessageProcessor messageProcessor = (message, writeProxy) -> {
+            if(ThreadLocalRandom.current().nextInt(10) == 0){
+                Thread.yield();
+            }
+            processedPerSocket.get((int) message.socketId).add(message.length);
+        };
+
+        ExecutorService executor = WorkerDispatcher.createExecutor(4, false);
+        WorkerDispatcher dispatcher = new WorkerDispatcher(executor, messageProcessor, null);
+
+        MessageBuffer messageBuffer = new MessageBuffer();
+        Socket[] sockets = new Socket[socketCount];
+        for(int i=0; i<socketCount; i++){
+            sockets[i] = new Socket();
+            sockets[i].socketId = i;
+        }
+
+        //message.length is used as the sequence number of the message.
+        for(int n=0; n<messagesPerSocket; n++){
+            for(int i=0; i<socketCount; i++){
+                Message message = messageBuffer.getMessage();
+                message.socketId = i;
+                message.length   = n;
+                dispatcher.dispatch(sockets[i], message);
+            }
+            dispatcher.releaseProcessedMessages();
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        dispatcher.releaseProcessedMessages();
+
+        for(int i=0; i<socketCount; i++){
+            List<Integer> processed = processedPerSocket.get(i);
+            assertEquals(messagesPerSocket, processed.size());
+            for(int n=0; n<messagesPerSocket; n++){
+                assertEquals(n, (int) processed.get(n));
+            }
+        }
+
+        //all messages were handed back and released.
+        assertEquals(0, messageBuffer.getBlocksInUse());
+    }
+
+    @Test
+    public void testRejectedExecution() {
+        ExecutorService executor = WorkerDispatcher.createExecutor(1, false);
+        executor.shutdown();
+        WorkerDispatcher dispatcher = new WorkerDispatcher(executor, (message, writeProxy) -> {}, null);
+
+        MessageBuffer messageBuffer = new MessageBuffer();
+        Socket socket = new Socket();
+        assertFalse(dispatcher.dispatch(socket, messageBuffer.getMessage()));
+        assertFalse(dispatcher.dispatch(socket, messageBuffer.getMessage()));
+
+        //released unprocessed.
+        assertEquals(0, messageBuffer.getBlocksInUse());
+    }
+
+    /**
+     * The message is handed back after the SocketProcessor has gone to sleep in select() - with no timers and a long
+     * select timeout, only the wakeup by the WorkerDispatcher gets the message released in time.
+     */
+    @Test
+    public void testWakeupWhenProcessed() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.idleTimeoutMillis      = 0;
+        config.headerTimeoutMillis    = 0;
+        config.writeTimeoutMillis     = 0;
+        config.maxSelectTimeoutMillis = 60 * 1000;
+
+        IMessageProcessor messageProcessor = (message, writeProxy) -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        MessageBuffer   readMessageBuffer = new MessageBuffer();
+        Queue<Socket>   socketQueue       = new ArrayBlockingQueue<>(16);
+        SocketProcessor socketProcessor   = new SocketProcessor(socketQueue, readMessageBuffer, new MessageBuffer(),
+                new HttpMessageReaderFactory(), messageProcessor, config, 0);
+        ExecutorService executor = WorkerDispatcher.createExecutor(1, false);
+        socketProcessor.setWorkerExecutor(executor);
+        Thread processorThread = new Thread(socketProcessor);
+        processorThread.start();
+
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+            SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+            socketQueue.add(new Socket(serverChannel.accept()));
+            socketProcessor.wakeup();
+
+            client.write(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes("UTF-8")));
+
+            long timeout = System.currentTimeMillis() + 5000;
+            while(readMessageBuffer.getBlocksInUse() == 0 && System.currentTimeMillis() < timeout){
+                Thread.sleep(1);
+            }
+            assertEquals(1, readMessageBuffer.getBlocksInUse());
+
+            timeout = System.currentTimeMillis() + 2000;
+            while(readMessageBuffer.getBlocksInUse() > 0 && System.currentTimeMillis() < timeout){
+                Thread.sleep(1);
+            }
+            assertEquals(0, readMessageBuffer.getBlocksInUse());
+            client.close();
+        } finally {
+            socketProcessor.stop();
+            processorThread.join(5000);
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Virtual worker threads fall back to platform worker threads on JVMs before 21 - the server tells which one it
+     * got, and serves connections either way.
+     */
+    @Test
+    public void testVirtualWorkerThreads() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.virtualWorkerThreads = true;
+        Server server = new Server(0, new HttpMessageReaderFactory(), Main.createMessageProcessor(), config);
+        server.start();
+        try {
+            assertEquals(Runtime.version().feature() < 21, server.isVirtualThreadFallback());
+
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+            client.write(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes("UTF-8")));
+            ByteBuffer response = ByteBuffer.allocate(Main.HTTP_RESPONSE.length());
+            while(response.hasRemaining() && client.read(response) != -1){
+            }
+            assertEquals(Main.HTTP_RESPONSE, new String(response.array(), 0, response.position(), "UTF-8"));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+}
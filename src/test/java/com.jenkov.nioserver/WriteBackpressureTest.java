@@ -0,0 +1,283 @@
+package com.jenkov.nioserver;
+
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A client pipelines requests with large responses without reading them - the server stops reading its requests
+ * above the write high watermark, and continues once the client reads the responses. Run with one selector, and
+ * with a separate write selector, as the responses are written partially many times.
+ */
+public class WriteBackpressureTest {
+
+    private static final int REQUEST_COUNT = 100;
+    private static final int BODY_LENGTH   = 64 * 1024;
+
+    @Test
+    public void testWriteWatermarks() throws Exception {
+        testWriteWatermarks(true);
+    }
+
+    @Test
+    public void testWriteWatermarksWriteSelector() throws Exception {
+        testWriteWatermarks(false);
+    }
+
+    private void testWriteWatermarks(boolean singleSelector) throws Exception {
+        AtomicInteger requestsProcessed = new AtomicInteger();
+        ServerConfig config = new ServerConfig();
+        config.writeHighWatermark = 256 * 1024;
+        config.writeLowWatermark  =  64 * 1024;
+        config.singleSelector     = singleSelector;
+        Server server = new Server(0, new HttpMessageReaderFactory(), createMessageProcessor(requestsProcessed), config);
+        server.start();
+        try {
+            int responseLength = responseHead().length + BODY_LENGTH;
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+
+            // one request at a time, so the server sees them in separate reads.
+            Thread writer = new Thread(() -> {
+                try {
+                    for(int i=0; i<REQUEST_COUNT; i++){
+                        ByteBuffer request = ByteBuffer.wrap(("GET /" + i + " HTTP/1.1\r\n\r\n").getBytes("UTF-8"));
+                        while(request.hasRemaining()){
+                            client.write(request);
+                        }
+                        Thread.sleep(2);
+                    }
+                } catch(Exception e){
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+            writer.join();
+            Thread.sleep(200);
+
+            SocketProcessor socketProcessor = server.getSocketProcessors()[0];
+            assertTrue(requestsProcessed.get() < REQUEST_COUNT);
+            assertEquals(1, socketProcessor.getWritePausedSocketCount());
+            assertTrue(socketProcessor.getWriteBytesQueued() > config.writeHighWatermark);
+
+            // reading the responses lets the server read the remaining requests.
+            ByteBuffer responses = ByteBuffer.allocate(1024 * 1024);
+            long bytesRead = 0;
+            long timeout   = System.currentTimeMillis() + 10000;
+            while(bytesRead < (long) REQUEST_COUNT * responseLength && System.currentTimeMillis() < timeout){
+                responses.clear();
+                bytesRead += client.read(responses);
+            }
+            assertEquals((long) REQUEST_COUNT * responseLength, bytesRead);
+            assertEquals(REQUEST_COUNT, requestsProcessed.get());
+            assertTrue(socketProcessor.getWritePauseCount() > 0);
+            // updated by the SocketProcessor thread right after the last write.
+            waitFor(() -> socketProcessor.getWriteBytesQueued() == 0);
+            assertEquals(0, socketProcessor.getWritePausedSocketCount());
+            assertEquals(0, socketProcessor.getWriteBytesQueued());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Hundreds of requests in one write are read at once - the watermarks are only checked after the read, so the
+     * queued responses go far above the high watermark. All of them are still answered once the client reads.
+     */
+    @Test
+    public void testWriteWatermarksPipelinedInOneWrite() throws Exception {
+        int requestCount = 300;
+
+        AtomicInteger requestsProcessed = new AtomicInteger();
+        ServerConfig config = new ServerConfig();
+        config.writeHighWatermark = 256 * 1024;
+        config.writeLowWatermark  =  64 * 1024;
+        Server server = new Server(0, new HttpMessageReaderFactory(), createMessageProcessor(requestsProcessed), config);
+        server.start();
+        try {
+            int responseLength = responseHead().length + BODY_LENGTH;
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+
+            StringBuilder requests = new StringBuilder();
+            for(int i=0; i<requestCount; i++){
+                requests.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+            }
+            ByteBuffer requestBuffer = ByteBuffer.wrap(requests.toString().getBytes("UTF-8"));
+            while(requestBuffer.hasRemaining()){
+                client.write(requestBuffer);
+            }
+
+            ByteBuffer responses = ByteBuffer.allocate(1024 * 1024);
+            long bytesRead = 0;
+            long timeout   = System.currentTimeMillis() + 20000;
+            while(bytesRead < (long) requestCount * responseLength && System.currentTimeMillis() < timeout){
+                responses.clear();
+                int read = client.read(responses);
+                if(read == -1){
+                    break;
+                }
+                bytesRead += read;
+            }
+            assertEquals((long) requestCount * responseLength, bytesRead);
+            assertEquals(requestCount, requestsProcessed.get());
+
+            SocketProcessor socketProcessor = server.getSocketProcessors()[0];
+            assertTrue(socketProcessor.getWritePauseCount() > 0);
+            waitFor(() -> socketProcessor.getWriteBytesQueued() == 0);
+            assertEquals(0, socketProcessor.getWritePausedSocketCount());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * 1000 requests in one write are read at once - far more responses than the write queue of the socket takes. The
+     * rest are held back until the queue has drained, and every request is answered.
+     */
+    @Test
+    public void testWriteQueueFull() throws Exception {
+        int    requestCount = 1000;
+        byte[] response     = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("UTF-8");
+
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            Message message = writeProxy.getMessage();
+            message.socketId = request.socketId;
+            message.writeToMessage(response);
+            writeProxy.enqueue(message);
+        };
+
+        Server server = new Server(0, new HttpMessageReaderFactory(), messageProcessor, new ServerConfig());
+        server.start();
+        try {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+
+            StringBuilder requests = new StringBuilder();
+            for(int i=0; i<requestCount; i++){
+                requests.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+            }
+            ByteBuffer requestBuffer = ByteBuffer.wrap(requests.toString().getBytes("UTF-8"));
+            while(requestBuffer.hasRemaining()){
+                client.write(requestBuffer);
+            }
+
+            ByteBuffer responses = ByteBuffer.allocate(64 * 1024);
+            long bytesRead = 0;
+            long timeout   = System.currentTimeMillis() + 10000;
+            while(bytesRead < (long) requestCount * response.length && System.currentTimeMillis() < timeout){
+                responses.clear();
+                int read = client.read(responses);
+                if(read == -1){
+                    break;
+                }
+                bytesRead += read;
+            }
+            assertEquals((long) requestCount * response.length, bytesRead);
+            assertTrue(server.getSocketProcessors()[0].getWriteQueueFullCount() > 0);
+
+            // the held back responses counted as queued bytes - and no longer do.
+            SocketProcessor socketProcessor = server.getSocketProcessors()[0];
+            waitFor(() -> socketProcessor.getWriteBytesQueued() == 0);
+            assertEquals(0, socketProcessor.getWriteBytesQueued());
+
+            // the connection is still open for more requests.
+            client.write(ByteBuffer.wrap("GET / HTTP/1.1\r\n\r\n".getBytes("UTF-8")));
+            responses.clear();
+            while(responses.position() < response.length && client.read(responses) != -1){
+            }
+            assertEquals(response.length, responses.position());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * More responses than the write queue and the write backlog of the socket hold together - the socket is closed.
+     */
+    @Test
+    public void testWriteBacklogFull() throws Exception {
+        byte[] response = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes("UTF-8");
+        IMessageProcessor messageProcessor = (request, writeProxy) -> {
+            Message message = writeProxy.getMessage();
+            message.socketId = request.socketId;
+            message.writeToMessage(response);
+            writeProxy.enqueue(message);
+        };
+
+        ServerConfig config = new ServerConfig();
+        config.writeQueueCapacity   = 16;
+        config.writeBacklogCapacity = 100;
+        Server server = new Server(0, new HttpMessageReaderFactory(), messageProcessor, config);
+        server.start();
+        try {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getLocalPort()));
+
+            StringBuilder requests = new StringBuilder();
+            for(int i=0; i<1000; i++){
+                requests.append("GET /").append(i).append(" HTTP/1.1\r\n\r\n");
+            }
+            ByteBuffer requestBuffer = ByteBuffer.wrap(requests.toString().getBytes("UTF-8"));
+            while(requestBuffer.hasRemaining()){
+                client.write(requestBuffer);
+            }
+
+            ByteBuffer responses = ByteBuffer.allocate(64 * 1024);
+            long timeout = System.currentTimeMillis() + 10000;
+            boolean closed = false;
+            while(!closed && System.currentTimeMillis() < timeout){
+                responses.clear();
+                try {
+                    closed = client.read(responses) == -1;
+                } catch(IOException e){
+                    closed = true; // reset - the server closed with responses unread.
+                }
+            }
+            assertTrue(closed);
+
+            SocketProcessor socketProcessor = server.getSocketProcessors()[0];
+            assertEquals(1, socketProcessor.getWriteBacklogFullCount());
+            waitFor(() -> socketProcessor.getWriteBytesQueued() == 0);
+            assertEquals(0, socketProcessor.getWriteBytesQueued());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Answers every request with a BODY_LENGTH response.
+     */
+    private IMessageProcessor createMessageProcessor(AtomicInteger requestsProcessed) throws Exception {
+        byte[] head = responseHead();
+        byte[] body = new byte[BODY_LENGTH];
+        return (request, writeProxy) -> {
+            requestsProcessed.incrementAndGet();
+            Message response = writeProxy.getMessage();
+            response.socketId = request.socketId;
+            response.writeToMessage(head);
+            response.writeToMessage(body);
+            writeProxy.enqueue(response);
+        };
+    }
+
+    private byte[] responseHead() throws Exception {
+        return ("HTTP/1.1 200 OK\r\nContent-Length: " + BODY_LENGTH + "\r\n\r\n").getBytes("UTF-8");
+    }
+
+    private void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean() && System.currentTimeMillis() < timeout){
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.jenkov.nioserver.http;
+
+import com.jenkov.nioserver.AdaptiveReadSize;
+import com.jenkov.nioserver.Message;
+import com.jenkov.nioserver.MessageBuffer;
+import com.jenkov.nioserver.MessageBufferConfig;
+import com.jenkov.nioserver.Socket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests reading pipelined HTTP requests over a loopback connection.
+ */
+public class HttpMessageReaderTest {
+
+    @Test
+    public void testReadPipelinedRequests() throws IOException, InterruptedException {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+
+            String request1 = "GET /1 HTTP/1.1\r\nHost: a\r\n\r\n";
+            String request2 = "POST /2 HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc";
+            String request3 = "GET /3 HTTP/1.1\r\n\r\n";
+            String request4 = "GET /4 HTTP/1.1\r\nHost: d\r\n\r\n";
+
+            //three full requests and the first half of the fourth in one read.
+            write(clientChannel, request1 + request2 + request3 + request4.substring(0, 10));
+            readUntilMessages(messageReader, socket, 3);
+
+            List<Message> messages = messageReader.getMessages();
+            assertRequest(messages.get(0), request1, "/1");
+            assertRequest(messages.get(1), request2, "/2");
+            assertRequest(messages.get(2), request3, "/3");
+            assertEquals("abc", body(messages.get(1)));
+            messages.clear();
+
+            //the rest of the fourth request completes the carried over bytes.
+            write(clientChannel, request4.substring(10));
+            readUntilMessages(messageReader, socket, 1);
+            assertRequest(messageReader.getMessages().get(0), request4, "/4");
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    /**
+     * A 3MB upload is read into a chained message - no copy per expansion, no 1MB limit - followed by a pipelined
+     * request in the same stream.
+     */
+    @Test
+    public void testReadLargeRequest() throws Exception {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+
+            int bodyLength = 3 * 1024 * 1024;
+            StringBuilder body = new StringBuilder(bodyLength);
+            for(int i=0; i<bodyLength; i++){
+                body.append((char) ('a' + i % 26));
+            }
+            String request1 = "POST /upload HTTP/1.1\r\nContent-Length: " + bodyLength + "\r\n\r\n" + body;
+            String request2 = "GET /2 HTTP/1.1\r\n\r\n";
+
+            //written from another thread - the socket buffers are smaller than the request.
+            Thread writer = new Thread(() -> {
+                try {
+                    write(clientChannel, request1 + request2);
+                } catch(IOException e){
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+            readUntilMessages(messageReader, socket, 2);
+            writer.join();
+
+            List<Message> messages = messageReader.getMessages();
+            Message upload = messages.get(0);
+            assertTrue(upload.isChained());
+            assertEquals(request1.length(), upload.length);
+            assertRequest(upload, request1, "/upload");
+            assertEquals(body.toString(), body(upload));
+            assertRequest(messages.get(1), request2, "/2");
+
+            upload.release();
+            messages.get(1).release();
+            messageReader.dispose();
+            assertEquals(0, messageBuffer.getBlocksInUse());
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    /**
+     * A 1MB upload is streamed in chunks of at most 64KB between two pipelined requests. Released as they come, the
+     * chunks never hold more than a few blocks.
+     */
+    @Test
+    public void testReadStreamedRequest() throws Exception {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader(1024);
+            messageReader.init(messageBuffer);
+
+            int bodyLength = 1024 * 1024;
+            StringBuilder body = new StringBuilder(bodyLength);
+            for(int i=0; i<bodyLength; i++){
+                body.append((char) ('a' + i % 26));
+            }
+            String request1 = "POST /small HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc";
+            String head2    = "POST /upload HTTP/1.1\r\nContent-Length: " + bodyLength + "\r\n\r\n";
+            String request3 = "GET /3 HTTP/1.1\r\n\r\n";
+
+            Thread writer = new Thread(() -> {
+                try {
+                    write(clientChannel, request1 + head2 + body + request3);
+                } catch(IOException e){
+                    e.printStackTrace();
+                }
+            });
+            writer.start();
+
+            List<Message> messages = messageReader.getMessages();
+            StringBuilder bodyRead = new StringBuilder();
+            Message request3Read = null;
+            int maxBlocksInUse = 0;
+
+            long timeout = System.currentTimeMillis() + 5000;
+            while(request3Read == null && System.currentTimeMillis() < timeout){
+                messageReader.read(socket, null);
+                for(Message message : messages){
+                    HttpHeaders httpHeaders = (HttpHeaders) message.metaData;
+                    if(message.part == Message.PART_HEAD){
+                        assertEquals(head2, string(message, message.offset, message.offset + message.length));
+                        assertEquals(bodyLength, httpHeaders.contentLength);
+                    } else if(message.part != Message.PART_WHOLE){
+                        assertTrue(message.length <= HttpMessageReader.STREAM_CHUNK_SIZE);
+                        bodyRead.append(string(message, message.offset, message.offset + message.length));
+                        assertEquals(message.part == Message.PART_LAST_BODY, bodyRead.length() == bodyLength);
+                    } else if(bodyRead.length() == 0){
+                        assertRequest(message, request1, "/small");
+                    } else {
+                        assertRequest(message, request3, "/3");
+                        request3Read = message;
+                        continue;
+                    }
+                    message.release();
+                }
+                messages.clear();
+                maxBlocksInUse = Math.max(maxBlocksInUse, messageBuffer.getBlocksInUse());
+            }
+            writer.join();
+
+            assertEquals(body.toString(), bodyRead.toString());
+            assertTrue(request3Read != null);
+            assertTrue(maxBlocksInUse <= 4);
+
+            request3Read.release();
+            messageReader.dispose();
+            assertEquals(0, messageBuffer.getBlocksInUse());
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    /**
+     * A socket reads no more than maxReadBytes per read() call, and the first block of the next message is sized
+     * after the large reads before it.
+     */
+    @Test
+    public void testReadSizing() throws Exception {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+            socket.readSize     = new AdaptiveReadSize(4 * 1024, 64 * 1024);
+            socket.maxReadBytes = 16 * 1024;
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+
+            char[] body = new char[40 * 1024];
+            Arrays.fill(body, 'x');
+            String request = "POST /upload HTTP/1.1\r\nContent-Length: " + body.length + "\r\n\r\n" + new String(body);
+            write(clientChannel, request);
+            Thread.sleep(100);
+
+            //16KB per read - the 40KB request takes three reads, although all of it is available.
+            messageReader.read(socket, null);
+            assertEquals(0, messageReader.getMessages().size());
+            messageReader.read(socket, null);
+            assertEquals(0, messageReader.getMessages().size());
+            messageReader.read(socket, null);
+            assertEquals(1, messageReader.getMessages().size());
+            assertRequest(messageReader.getMessages().get(0), request, "/upload");
+            messageReader.getMessages().clear();
+
+            //the reads filled 16KB - the next message starts with a 64KB block, large enough for the next request.
+            assertEquals(64 * 1024, socket.readSize.getReadSize());
+            socket.maxReadBytes = Integer.MAX_VALUE;
+            write(clientChannel, request);
+            readUntilMessages(messageReader, socket, 1);
+            Message message = messageReader.getMessages().get(0);
+            assertRequest(message, request, "/upload");
+            assertEquals(64 * 1024, message.capacity);
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    /**
+     * Hundreds of the smallest requests - blank lines are parsed as requests too - in one read, the pipelining loop
+     * takes each out and stops at the end of the data.
+     */
+    @Test
+    public void testReadManyTinyPipelinedRequests() throws Exception {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+
+            StringBuilder requests = new StringBuilder();
+            for(int i=0; i<300; i++){
+                requests.append(i % 2 == 0 ? "GET / HTTP/1.1\r\n\r\n" : "\r\n\r\n");
+            }
+            write(clientChannel, requests.toString());
+            readUntilMessages(messageReader, socket, 300);
+            assertFalse(socket.endOfStreamReached);
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    /**
+     * A Content-Length which overflows an int is a bad request - the reader reports end of stream, so the socket is
+     * closed, instead of waiting for a body which never comes.
+     */
+    @Test
+    public void testReadOverflowingContentLength() throws Exception {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+            MessageBuffer messageBuffer = new MessageBuffer();
+            HttpMessageReader messageReader = new HttpMessageReader();
+            messageReader.init(messageBuffer);
+
+            //a valid request, then a 56 byte request claiming a 4294967240 byte body.
+            String request1 = "GET /1 HTTP/1.1\r\n\r\n";
+            String request2 = "POST / HTTP/1.1\r\nContent-Length: 4294967240\r\n\r\n123456789";
+            assertEquals(56, request2.length());
+            write(clientChannel, request1 + request2);
+
+            long timeout = System.currentTimeMillis() + 5000;
+            while(!socket.endOfStreamReached && System.currentTimeMillis() < timeout){
+                messageReader.read(socket, null);
+                Thread.sleep(1);
+            }
+            assertTrue(socket.endOfStreamReached);
+            assertEquals(1, messageReader.getMessages().size());
+            assertRequest(messageReader.getMessages().get(0), request1, "/1");
+
+            //the same request on its own - as the first request of a read.
+            socket.endOfStreamReached = false;
+            messageReader.getMessages().clear();
+            write(clientChannel, request2);
+            timeout = System.currentTimeMillis() + 5000;
+            while(!socket.endOfStreamReached && System.currentTimeMillis() < timeout){
+                messageReader.read(socket, null);
+                Thread.sleep(1);
+            }
+            assertTrue(socket.endOfStreamReached);
+            assertEquals(0, messageReader.getMessages().size());
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    /**
+     * A body larger than the max content length is rejected as soon as the headers are read - by default the max is
+     * all the memory of the MessageBuffer.
+     */
+    @Test
+    public void testReadContentLengthOverMax() throws Exception {
+        MessageBufferConfig config = new MessageBufferConfig();
+        config.maxMemory = 4 * 1024 * 1024;
+        assertEndOfStreamAfter(new HttpMessageReader(), new MessageBuffer(config, false),
+                "POST / HTTP/1.1\r\nContent-Length: " + (config.maxMemory + 1) + "\r\n\r\n12345");
+        assertEndOfStreamAfter(new HttpMessageReader(-1, 100), new MessageBuffer(),
+                "POST / HTTP/1.1\r\nContent-Length: 101\r\n\r\n12345");
+    }
+
+    private void assertEndOfStreamAfter(HttpMessageReader messageReader, MessageBuffer messageBuffer, String request) throws Exception {
+        try(ServerSocketChannel serverChannel = ServerSocketChannel.open()){
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+
+            SocketChannel clientChannel = SocketChannel.open(serverChannel.getLocalAddress());
+            SocketChannel peerChannel   = serverChannel.accept();
+            peerChannel.configureBlocking(false);
+
+            Socket socket = new Socket(peerChannel);
+            messageReader.init(messageBuffer);
+
+            write(clientChannel, request);
+            long timeout = System.currentTimeMillis() + 5000;
+            while(!socket.endOfStreamReached && System.currentTimeMillis() < timeout){
+                messageReader.read(socket, null);
+                Thread.sleep(1);
+            }
+            assertTrue(socket.endOfStreamReached);
+            assertEquals(0, messageReader.getMessages().size());
+
+            clientChannel.close();
+            peerChannel.close();
+        }
+    }
+
+    private void readUntilMessages(HttpMessageReader messageReader, Socket socket, int count) throws IOException, InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while(messageReader.getMessages().size() < count && System.currentTimeMillis() < timeout){
+            messageReader.read(socket, null);
+            Thread.sleep(1);
+        }
+        assertEquals(count, messageReader.getMessages().size());
+    }
+
+    private void assertRequest(Message message, String request, String path) {
+        assertEquals(request, string(message, message.offset, message.offset + message.length));
+
+        HttpHeaders httpHeaders = (HttpHeaders) message.metaData;
+        assertEquals(path, string(message, httpHeaders.pathStartIndex, httpHeaders.pathEndIndex));
+        assertEquals(message.offset + message.length, httpHeaders.bodyEndIndex);
+    }
+
+    private String body(Message message) {
+        HttpHeaders httpHeaders = (HttpHeaders) message.metaData;
+        return string(message, httpHeaders.bodyStartIndex, httpHeaders.bodyEndIndex);
+    }
+
+    private String string(Message message, int startIndex, int endIndex) {
+        byte[] bytes = new byte[endIndex - startIndex];
+        for(int i=0; i<bytes.length; i++){
+            bytes[i] = message.getByte(startIndex + i);
+        }
+        return new String(bytes);
+    }
+
+    private void write(SocketChannel channel, String data) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data.getBytes("UTF-8"));
+        while(byteBuffer.hasRemaining()){
+            channel.write(byteBuffer);
+        }
+    }
+
+}
@@ -3,6 +3,7 @@ package com.jenkov.nioserver.http;
 import org.junit.Test;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -35,6 +36,23 @@ public class HttpUtilTest {
 
 
 
+    @Test
+    public void testKeepAlive() throws UnsupportedEncodingException {
+        assertKeepAlive("GET / HTTP/1.1\r\n\r\n"                                   , true);
+        assertKeepAlive("GET / HTTP/1.1\r\nConnection: close\r\n\r\n"            , false);
+        assertKeepAlive("GET / HTTP/1.1\r\nconnection: Upgrade, Close \r\n\r\n"  , false);
+        assertKeepAlive("GET / HTTP/1.0\r\n\r\n"                                   , false);
+        assertKeepAlive("GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n"       , true);
+    }
+
+    private void assertKeepAlive(String httpRequest, boolean keepAlive) throws UnsupportedEncodingException {
+        byte[] source = httpRequest.getBytes("UTF-8");
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        assertEquals(source.length, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        assertEquals(keepAlive, httpHeaders.keepAlive);
+    }
+
     @Test
     public void testParseHttpRequest() throws UnsupportedEncodingException {
         String httpRequest =
@@ -85,4 +103,153 @@ public class HttpUtilTest {
 
 
 
+    @Test
+    public void testParseHttpRequestIncrementally() throws UnsupportedEncodingException {
+        String httpRequest =
+                "POST /index.html HTTP/1.1\r\n" +
+                "host:  localhost:8080 \r\n" +
+                "X-Custom: abc\r\n" +
+                "content-length: 5\r\n" +
+                "\r\n12345";
+        byte[] source = httpRequest.getBytes("UTF-8");
+
+        //feed the request one byte at a time - every call continues where the previous one stopped.
+        HttpHeaders httpHeaders = new HttpHeaders();
+        for(int endIndex = 0; endIndex < source.length; endIndex++){
+            assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, endIndex, httpHeaders));
+        }
+        assertEquals(source.length, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+
+        assertEquals(HttpHeaders.HTTP_METHOD_POST, httpHeaders.httpMethod);
+        assertEquals("/index.html",    substring(source, httpHeaders.pathStartIndex, httpHeaders.pathEndIndex));
+        assertEquals("localhost:8080", substring(source, httpHeaders.hostStartIndex, httpHeaders.hostEndIndex));
+        assertEquals(5, httpHeaders.contentLength);
+        assertEquals("12345", substring(source, httpHeaders.bodyStartIndex, httpHeaders.bodyEndIndex));
+
+        assertEquals(3, httpHeaders.headerCount);
+        assertEquals("X-Custom", substring(source, httpHeaders.getHeaderNameStartIndex(1),  httpHeaders.getHeaderNameEndIndex(1)));
+        assertEquals("abc",      substring(source, httpHeaders.getHeaderValueStartIndex(1), httpHeaders.getHeaderValueEndIndex(1)));
+    }
+
+    @Test
+    public void testParseMovedHttpRequest() throws UnsupportedEncodingException {
+        byte[] request = ("GET /a HTTP/1.1\r\nHost: x\r\n\r\n").getBytes("UTF-8");
+
+        //parse the first half at index 0, then continue after the request was moved to index 100.
+        HttpHeaders httpHeaders = new HttpHeaders();
+        int half = 20;
+        assertEquals(-1, HttpUtil.parseHttpRequest(request, 0, half, httpHeaders));
+
+        byte[] moved = new byte[100 + request.length];
+        System.arraycopy(request, 0, moved, 100, request.length);
+        assertEquals(moved.length, HttpUtil.parseHttpRequest(moved, 100, moved.length, httpHeaders));
+
+        assertEquals("/a", substring(moved, httpHeaders.pathStartIndex, httpHeaders.pathEndIndex));
+        assertEquals("x",  substring(moved, httpHeaders.hostStartIndex, httpHeaders.hostEndIndex));
+        assertEquals(moved.length, httpHeaders.bodyStartIndex);
+    }
+
+    @Test
+    public void testParseInvalidContentLength() throws UnsupportedEncodingException {
+        assertBadRequest("4294967240");           // wraps around to -56 in int arithmetic
+        assertBadRequest("2147483648");           // Integer.MAX_VALUE + 1
+        assertBadRequest("99999999999999999999"); // overflows a long too
+        assertBadRequest("12abc");
+        assertBadRequest("-5");
+        assertBadRequest("");
+
+        //the largest int is still a valid - if incomplete - request.
+        byte[] source = ("POST / HTTP/1.1\r\nContent-Length: 2147483647\r\n\r\nabc").getBytes("UTF-8");
+        HttpHeaders httpHeaders = new HttpHeaders();
+        assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        assertFalse(httpHeaders.isBadRequest());
+        assertEquals(Integer.MAX_VALUE, httpHeaders.contentLength);
+    }
+
+    @Test
+    public void testParseContentLengthOverMax() throws UnsupportedEncodingException {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.maxContentLength = 9;
+        byte[] source = ("POST / HTTP/1.1\r\nContent-Length: 9\r\n\r\n123456789").getBytes("UTF-8");
+        assertEquals(source.length, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        assertFalse(httpHeaders.isBadRequest());
+
+        //the limit stays after the reset for the next request.
+        source = ("POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\n123456789").getBytes("UTF-8");
+        assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        assertTrue(httpHeaders.isBadRequest());
+    }
+
+    private void assertBadRequest(String contentLength) throws UnsupportedEncodingException {
+        byte[] source = ("POST / HTTP/1.1\r\nContent-Length: " + contentLength + "\r\n\r\n123456789").getBytes("UTF-8");
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        assertTrue(httpHeaders.isBadRequest());
+
+        //more bytes do not make a bad request parseable.
+        assertEquals(-1, HttpUtil.parseHttpRequest(source, 0, source.length, httpHeaders));
+        assertTrue(httpHeaders.isBadRequest());
+    }
+
+    /**
+     * HttpMessageReader parses pipelined requests in a loop from the end of one request to the next - every parsed
+     * request must end after its start, whatever the bytes are.
+     */
+    @Test
+    public void testParseHttpRequestMakesProgress() {
+        byte[] alphabet = new byte[]{'\r', '\n', ':', ' ', '0', '9', 'C', 'G', '-'};
+        Random random = new Random(42);
+        for(int run = 0; run < 20000; run++){
+            byte[] source = new byte[1 + random.nextInt(60)];
+            for(int i=0; i<source.length; i++){
+                source[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            int startIndex = random.nextInt(source.length);
+
+            HttpHeaders httpHeaders = new HttpHeaders();
+            int endIndex = HttpUtil.parseHttpRequest(source, startIndex, source.length, httpHeaders);
+            assertTrue(endIndex == -1 || (endIndex > startIndex && endIndex <= source.length));
+        }
+    }
+
+    @Test
+    public void testFindNext() {
+        //every start index, end index and value - compared with a byte at a time scan.
+        byte[] source = new byte[40];
+        for(int i=0; i<source.length; i++){
+            source[i] = (byte) (i * 37 % 11 - 5); // includes negative bytes and repeated values
+        }
+        source[33] = (byte) 0x80;
+
+        for(int startIndex = 0; startIndex < source.length; startIndex++){
+            for(int endIndex = startIndex; endIndex <= source.length; endIndex++){
+                for(int value = -6; value <= 6; value++){
+                    assertEquals(findNextByteAtATime(source, startIndex, endIndex, (byte) value),
+                                 HttpUtil.findNext(source, startIndex, endIndex, (byte) value));
+                }
+                assertEquals(findNextByteAtATime(source, startIndex, endIndex, (byte) 0x80),
+                             HttpUtil.findNext(source, startIndex, endIndex, (byte) 0x80));
+            }
+        }
+    }
+
+    @Test
+    public void testFindNextLineBreak() throws UnsupportedEncodingException {
+        byte[] source = "0123456789\nabc\r\nxyz".getBytes("UTF-8");
+        assertEquals(15, HttpUtil.findNextLineBreak(source, 1, source.length));
+        assertEquals(-1, HttpUtil.findNextLineBreak(source, 1, 15));
+    }
+
+    private int findNextByteAtATime(byte[] source, int startIndex, int endIndex, byte value) {
+        for(int i=startIndex; i<endIndex; i++){
+            if(source[i] == value) return i;
+        }
+        return -1;
+    }
+
+    private String substring(byte[] source, int startIndex, int endIndex) throws UnsupportedEncodingException {
+        return new String(source, startIndex, endIndex - startIndex, "UTF-8");
+    }
+
 }
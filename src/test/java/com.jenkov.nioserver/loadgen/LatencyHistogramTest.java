@@ -0,0 +1,83 @@
+package com.jenkov.nioserver.loadgen;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testIndexes() {
+        long previousHighest = -1;
+        for(int index=0; index<LatencyHistogram.indexOf(Long.MAX_VALUE); index++){
+            long highest = LatencyHistogram.highestValueAt(index);
+            assertTrue(highest > previousHighest);
+            assertEquals(index, LatencyHistogram.indexOf(highest));
+            assertEquals(index, LatencyHistogram.indexOf(previousHighest + 1));
+            previousHighest = highest;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long value=1; value<=100_000; value++){
+            histogram.record(value * 1000);
+        }
+
+        assertEquals(100_000, histogram.getTotalCount());
+        assertEquals(1000, histogram.getMin());
+        assertEquals(100_000_000, histogram.getMax());
+        assertEquals(50_000_500, histogram.getMean(), 1);
+
+        assertWithinPrecision(50_000_000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(99_000_000, histogram.getValueAtPercentile(99));
+        assertWithinPrecision(99_900_000, histogram.getValueAtPercentile(99.9));
+        assertEquals(100_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testAdd() {
+        LatencyHistogram histogram1 = new LatencyHistogram();
+        LatencyHistogram histogram2 = new LatencyHistogram();
+        histogram1.record(10);
+        histogram2.record(20);
+        histogram2.record(30);
+
+        histogram1.add(histogram2);
+        assertEquals(3, histogram1.getTotalCount());
+        assertEquals(10, histogram1.getMin());
+        assertEquals(30, histogram1.getMax());
+        assertEquals(20, histogram1.getValueAtPercentile(50));
+
+        histogram1.reset();
+        assertEquals(0, histogram1.getTotalCount());
+        assertEquals(0, histogram1.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testOutputPercentileDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long value=1; value<=1000; value++){
+            histogram.record(value * 1000);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.outputPercentileDistribution(new PrintStream(bytes), 1000.0);
+        String[] lines = bytes.toString().split("\n");
+
+        assertTrue(lines[0].contains("Percentile"));
+        assertTrue(lines[lines.length - 1].contains("Total count = 1000"));
+        // the row before the summary lines reaches 100%.
+        assertTrue(lines[lines.length - 3].contains("1.000000000000"));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertEquals(expected, actual, expected / 128.0);
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.jenkov.nioserver.loadgen;
+
+import com.jenkov.nioserver.Server;
+import com.jenkov.nioserver.example.Main;
+import com.jenkov.nioserver.http.HttpMessageReaderFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a short load against an in-process example server - pipelined, and at a fixed rate with request bodies.
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void testPipelined() throws Exception {
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+        config.connections   = 4;
+        config.pipelineDepth = 8;
+
+        LoadGenerator loadGenerator = runAgainstServer(config);
+
+        assertEquals(0, loadGenerator.getErrors());
+        assertTrue(loadGenerator.getCompletedRequests() > 0);
+        assertEquals(loadGenerator.getCompletedRequests(), loadGenerator.getLatencyHistogram().getTotalCount());
+    }
+
+    @Test
+    public void testFixedRate() throws Exception {
+        LoadGeneratorConfig config = new LoadGeneratorConfig();
+        config.connections       = 4;
+        config.bodySize          = 100;
+        config.requestsPerSecond = 200;
+
+        LoadGenerator loadGenerator = runAgainstServer(config);
+
+        assertEquals(0, loadGenerator.getErrors());
+        // about 200 requests in the 1 second measured.
+        assertTrue(loadGenerator.getCompletedRequests() > 150);
+        assertTrue(loadGenerator.getCompletedRequests() < 250);
+    }
+
+    private static LoadGenerator runAgainstServer(LoadGeneratorConfig config) throws Exception {
+        config.warmupSeconds   = 0;
+        config.durationSeconds = 1;
+
+        Server server = new Server(0, new HttpMessageReaderFactory(), Main.createMessageProcessor());
+        server.start();
+        try {
+            config.port = server.getLocalPort();
+            LoadGenerator loadGenerator = new LoadGenerator(config);
+            loadGenerator.run();
+            return loadGenerator;
+        } finally {
+            server.stop();
+        }
+    }
+
+}